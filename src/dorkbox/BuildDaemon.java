@@ -0,0 +1,344 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import dorkbox.build.BuildSession;
+import dorkbox.build.Project;
+import dorkbox.build.SimpleArgs;
+import dorkbox.build.util.BuildLog;
+import dorkbox.build.util.Hash;
+
+/**
+ * Keeps the builder resident, so that successive builds do not have to pay for JVM startup, recompiling the build instructions,
+ * rescanning annotations, re-hashing unchanged files and warming up javac every time.
+ * <p/>
+ * Start the daemon (in the directory the builds run from) with:   daemon [port=41414]
+ * <p/>
+ * Then send builds to it with:   remote build myProject [method] [args...] [port=41414]
+ * <p/>
+ * Stop it with:   remote stop
+ * <p/>
+ * Requests are sent over a loopback socket. Builds are run one at a time, and the output of the build is sent back to the client.
+ * <p/>
+ * Every request must start with the token that the daemon wrote to {@link #TOKEN_FILE} (which only the owner can read), so other users
+ * of the machine cannot start builds or stop the daemon.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class BuildDaemon {
+    public static final String DAEMON_MODE = "daemon";
+    public static final String REMOTE_MODE = "remote";
+    public static final String STOP = "stop";
+
+    public static final int DEFAULT_PORT = 41414;
+
+    // the token that clients must send, in the staging dir (which is relative to the working dir of the daemon and the client)
+    public static final String TOKEN_FILE = Project.STAGING + File.separator + "daemon.token";
+
+    private static final String PORT = "port=";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the last line of every response, followed by the exit code of the build
+    private static final String EXIT_MARKER = "\u0000exit:";
+
+    private static volatile boolean running = false;
+
+    /**
+     * @return true if the builder is running as a daemon, in which case the build instructions, annotation scans and checksums are
+     *         cached between builds.
+     */
+    public static
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Runs either the daemon or the client, depending on the mode (the first arg)
+     */
+    static
+    void start(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        List<String> arguments = new ArrayList<String>(args.length);
+
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith(PORT)) {
+                port = Integer.parseInt(arg.substring(PORT.length()));
+            }
+            else {
+                arguments.add(arg);
+            }
+        }
+
+        if (DAEMON_MODE.equals(args[0])) {
+            serve(port);
+        }
+        else {
+            int exitCode = send(port, arguments);
+            if (exitCode != 0) {
+                System.exit(exitCode);
+            }
+        }
+    }
+
+    /**
+     * Listens for build requests until a "stop" request is received.
+     */
+    private static
+    void serve(int port) throws IOException {
+        final String workingDir = new File("").getAbsolutePath();
+
+        // every build starts with the same settings location (a build can change it for it's own session)
+        final String settings = BuildOptions.settings;
+
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        File tokenFile = new File(TOKEN_FILE).getAbsoluteFile();
+        byte[] token;
+        try {
+            token = writeToken(tokenFile);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+
+        running = true;
+        Hash.enableCache();
+
+        BuildLog.title("Build daemon")
+                .println("Listening on " + serverSocket.getLocalSocketAddress(), "Working dir: " + workingDir);
+
+        try {
+            while (running) {
+                Socket socket = serverSocket.accept();
+                try {
+                    handle(socket, token, workingDir, settings);
+                } catch (IOException e) {
+                    BuildLog.title("Build daemon")
+                            .println("Error handling request: " + e.getMessage());
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        } finally {
+            running = false;
+            serverSocket.close();
+
+            if (!tokenFile.delete()) {
+                tokenFile.deleteOnExit();
+            }
+        }
+
+        BuildLog.title("Build daemon")
+                .println("Stopped");
+    }
+
+    /**
+     * Creates a new random token, in a file that only the current user can read (the old one, from a previous daemon, is replaced)
+     */
+    private static
+    byte[] writeToken(File tokenFile) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+
+        StringBuilder builder = new StringBuilder(random.length * 2);
+        for (byte b : random) {
+            builder.append(Character.forDigit((b >>> 4) & 0xF, 16))
+                   .append(Character.forDigit(b & 0xF, 16));
+        }
+        byte[] token = builder.toString()
+                              .getBytes(UTF_8);
+
+        File parent = tokenFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        // the file is created with the permissions, so it is never readable by anyone else (not even for a moment)
+        Files.deleteIfExists(tokenFile.toPath());
+        try {
+            if (Files.getFileAttributeView(parent.toPath(), PosixFileAttributeView.class) != null) {
+                EnumSet<PosixFilePermission> ownerOnly = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+                Files.createFile(tokenFile.toPath(), PosixFilePermissions.asFileAttribute(ownerOnly));
+            }
+            else {
+                Files.createFile(tokenFile.toPath());
+                if (!(tokenFile.setReadable(false, false) && tokenFile.setReadable(true, true) &&
+                      tokenFile.setWritable(false, false) && tokenFile.setWritable(true, true))) {
+                    throw new IOException("Unable to make " + tokenFile + " readable only by the owner");
+                }
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Another build daemon created " + tokenFile + " at the same time", e);
+        }
+
+        Files.write(tokenFile.toPath(), token);
+        return token;
+    }
+
+    private static
+    void handle(Socket socket, byte[] token, String workingDir, String settings) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+        PrintStream output = new PrintStream(socket.getOutputStream(), true, UTF_8.name());
+
+        // the request is: the token, the working dir of the client, followed by one arg per line, terminated by an empty line
+        String clientToken = reader.readLine();
+        if (clientToken == null || !MessageDigest.isEqual(token, clientToken.getBytes(UTF_8))) {
+            output.println("Invalid token. Only the user that started the build daemon can use it (the token is in " + TOKEN_FILE + ")");
+            output.println(EXIT_MARKER + 1);
+            output.flush();
+            return;
+        }
+
+        String clientDir = reader.readLine();
+        List<String> args = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            args.add(line.toLowerCase());
+        }
+
+        int exitCode = 1;
+        if (!workingDir.equals(clientDir)) {
+            // everything (staging dirs, settings, etc) is relative to the working dir, so we cannot build for a different location
+            output.println("The build daemon is running in '" + workingDir + "', not in '" + clientDir + "'. Start a daemon there instead.");
+        }
+        else if (args.size() == 1 && STOP.equals(args.get(0))) {
+            running = false;
+            output.println("Build daemon stopped");
+            exitCode = 0;
+        }
+        else if (args.size() < 2) {
+            output.println("You must specify an action, followed by what you want done.");
+            output.println("For example:  remote build myProject  , which will then find and build your project");
+        }
+        else {
+            exitCode = build(args.toArray(new String[0]), output, settings);
+        }
+
+        output.println(EXIT_MARKER + exitCode);
+        output.flush();
+    }
+
+    private static
+    int build(final String[] args, final PrintStream output, String settings) {
+        // the output of the build goes to the log of it's session (and not System.out/err, which are shared by the whole JVM)
+
+        // every build gets it's own session, so nothing (projects, what was built, log state) is left over from the previous build.
+        // Each build happens "now", unless specified otherwise
+        final BuildSession session = new BuildSession(new File(settings));
+
+        try {
+            session.run(new Callable<Object>() {
+                @Override
+                public
+                Object call() throws Exception {
+                    BuildLog.setOutput(output);
+                    try {
+                        Builder.make(new BuildOptions(), new SimpleArgs(args));
+                    } finally {
+                        // the build checksums are saved now, instead of when the daemon exits
+                        session.close();
+                    }
+                    return null;
+                }
+            });
+            return 0;
+        } catch (Throwable e) {
+            e.printStackTrace(output);
+            return 1;
+        }
+    }
+
+    /**
+     * Sends the build request to the daemon, and prints the build output as it arrives.
+     *
+     * @return the exit code of the build
+     */
+    private static
+    int send(int port, List<String> args) throws IOException {
+        File tokenFile = new File(TOKEN_FILE);
+        if (!tokenFile.canRead()) {
+            final IOException ioException = new IOException("No build daemon is running in this directory (" + TOKEN_FILE +
+                                                            " does not exist). Start one with: " + DAEMON_MODE);
+            ioException.setStackTrace(new StackTraceElement[0]);
+            throw ioException;
+        }
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), UTF_8).trim();
+
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (ConnectException e) {
+            final IOException ioException = new IOException("No build daemon is running on port " + port + ". Start one with: " + DAEMON_MODE);
+            ioException.setStackTrace(new StackTraceElement[0]);
+            throw ioException;
+        }
+
+        try {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
+            writer.write(token);
+            writer.write('\n');
+            writer.write(new File("").getAbsolutePath());
+            writer.write('\n');
+            for (String arg : args) {
+                writer.write(arg);
+                writer.write('\n');
+            }
+            writer.write('\n');
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(EXIT_MARKER)) {
+                    return Integer.parseInt(line.substring(EXIT_MARKER.length()));
+                }
+                System.err.println(line);
+            }
+
+            // the daemon went away before finishing the build
+            return 1;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -17,6 +17,10 @@ package dorkbox;
 
 import java.io.File;
 
+import dorkbox.build.Project;
+import dorkbox.build.util.jar.ClassArchive;
+import dorkbox.build.util.jar.Pack200Util;
+
 public
 class BuildOptions {
 
@@ -60,6 +64,56 @@ class BuildOptions {
          */
         public boolean enableDebugSpeedImprovement = false;
 
+        /**
+         * Packages the jar entries (pack200, hash, LZMA, encrypt) on several threads. The jar is the same as when it's done one entry at
+         * a time, but the EncryptInterface (if any) must be thread safe.
+         */
+        public boolean parallelPackaging = false;
+
+        /**
+         * Where packaged jar entries are cached, so unchanged entries (like third-party jars) are not packaged again for every release.
+         * null to disable the cache.
+         */
+        public File packCacheDir = new File(Project.STAGING, "packCache");
+
+        /**
+         * The (approximate) maximum size of the pack cache, in bytes. The least recently used entries are deleted before every build
+         * that uses the cache, until it is not larger than this.
+         */
+        public long packCacheMaxSize = 1024L * 1024L * 1024L;
+
+        /**
+         * For debug builds, entries that would be LZMA compressed are compressed with this codec instead (for example, "deflate", which
+         * is much faster). The launcher finds the codec from the id in the extra data. null to use LZMA (unless it is removed by
+         * enableDebugSpeedImprovement).
+         */
+        public String debugCompressionCodec = null;
+
+        /**
+         * Use the (pure java) {@link ClassArchive} instead of pack200 for PackAction.Pack. This is always the case if this java does
+         * not have pack200 (java 14+). The launcher knows which was used by the header.
+         */
+        public boolean useClassArchive = !Pack200Util.isAvailable();
+
+        /**
+         * The size of the compression dictionary that is trained from the entries of a package (see DictionaryCodec). Every compressed
+         * entry of the package uses it, which is much better for small entries (like class files). 0 to not use a dictionary.
+         */
+        public int compressionDictionarySize = 0;
+
+        /**
+         * Writes a report of the packaging (the bytes in/out and the CPU time of every pack action of every entry, with totals per
+         * extension) next to the jar, as 'name.jar.pack-report.csv' and 'name.jar.pack-report.json'.
+         */
+        public boolean packReport = false;
+
+        /**
+         * Stores the files in the jar (and source zip) that are already compressed (nested jars, images, etc) instead of compressing them
+         * again (see {@link dorkbox.build.util.jar.CompressionPolicy#storeCompressed()}). This is faster, but the jar is not the same as
+         * before (so it's checksum is different). This is ignored if the project sets a compression policy.
+         */
+        public boolean storeCompressedFiles = false;
+
 
         /**
          * this is only necessary when building for lesser versions of java than you are currently running
@@ -76,6 +130,12 @@ class BuildOptions {
          */
         public boolean unlimitedJceCryptoRuntime = true;
 
+        /**
+         * Creates the jar (and source zip), signs it and saves the checksums in the background, so that projects that depend on it can
+         * start compiling as soon as it's classes exist (they compile against the class files instead of the jar).
+         */
+        public boolean pipeline = false;
+
         /**
          * Adds the "verbose" compile option. This is useful if you want to get a list (from the compiler) of EVERY CLASS compiled/used
          */
@@ -15,14 +15,15 @@
  */
 package dorkbox;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -33,25 +34,31 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import dorkbox.annotation.AnnotationDefaults;
 import dorkbox.annotation.AnnotationDetector;
+import dorkbox.build.BuildPipeline;
+import dorkbox.build.BuildSession;
+import dorkbox.build.BuildPlan;
 import dorkbox.build.Project;
 import dorkbox.build.ProjectJava;
+import dorkbox.build.ProjectWatcher;
 import dorkbox.build.SimpleArgs;
 import dorkbox.build.util.BuildLog;
 import dorkbox.build.util.BuildParser;
 import dorkbox.build.util.FileNotFoundRuntimeException;
+import dorkbox.build.util.Hash;
 import dorkbox.build.util.classloader.ByteClassloader;
 import dorkbox.build.util.classloader.ClassByteIterator;
-import dorkbox.build.util.jar.Pack200Util;
+import dorkbox.build.util.jar.JarUtil;
+import dorkbox.build.util.jar.StreamPipeline;
+import dorkbox.build.util.jar.StreamStage;
 import dorkbox.build.util.wildcard.Paths;
 import dorkbox.util.FileUtil;
-import dorkbox.util.IO;
-import dorkbox.util.LZMA;
 import dorkbox.util.OS;
 import dorkbox.util.Sys;
 import dorkbox.util.properties.PropertiesProvider;
@@ -68,6 +75,8 @@ class Builder {
     /**
      * Location where settings are stored. Can be specified on CLI by settings=settings.ini. Filename must not have an '=' in it, and
      * must be a whole word (no spaces)
+     * <p/>
+     * This is the settings of the global build session, see {@link BuildSession#getSettings()}
      */
     public static PropertiesProvider settings = new PropertiesProvider(new File(BuildOptions.settings));
     public static final boolean isJar;
@@ -77,9 +86,15 @@ class Builder {
     private static final File tempDir;
 
     // Used to specify when the "build" happens in UTC (the date to set the files to) and NOT to keep track of how long it takes to build!
+    // This is the build date of the global build session, see BuildSession.getBuildDate()
     public static long buildDateUTC = System.currentTimeMillis();
     public static int offset;
 
+    // when running as a daemon, the compiled build instructions (and what was found in them) are kept between builds
+    private static String cachedInstructionsChecksum = null;
+    private static ByteClassloader cachedClassloader = null;
+    private static final HashMap<Class<? extends Annotation>, List<Class<?>>> cachedAnnotations = new HashMap<Class<? extends Annotation>, List<Class<?>>>();
+
     static {
         // get the local time zone for use later
         defaultTimeZone = TimeZone.getDefault();
@@ -120,10 +135,18 @@ class Builder {
             _args[i] = _args[i].toLowerCase();
         }
 
+        if (_args.length > 0 && (BuildDaemon.DAEMON_MODE.equals(_args[0]) || BuildDaemon.REMOTE_MODE.equals(_args[0]))) {
+            BuildDaemon.start(_args);
+            return;
+        }
+
         if (_args.length < 2) {
             System.err.println("You must specify an action, followed by what you want done.");
             System.err.println("For example:  build myProject  , which will then find and build your project");
             System.err.println("           : see example for more specific details");
+            System.err.println("To keep the builder running between builds:  daemon  , then  remote build myProject");
+            System.err.println("To rebuild your project whenever it's files change:  watch myProject");
+            System.err.println("To see what would build (and why) without building:  plan myProject");
             return;
         }
 
@@ -168,7 +191,7 @@ class Builder {
 
         Date buildDate = args.getBuildDate();
         if (buildDate != null) {
-            Builder.buildDateUTC = buildDate.getTime();
+            BuildSession.current().setBuildDate(buildDate.getTime());
 
             Calendar c = Calendar.getInstance(defaultTimeZone);
             c.setTime(buildDate);
@@ -182,11 +205,19 @@ class Builder {
                          .replace("UTC", defaultTimeZone.getID()));
         }
 
+        // when planning, we only check what would build. Nothing is changed
+        final boolean plan = BuildPlan.PLAN_MODE.equals(args.getMode());
+        if (plan) {
+            BuildPlan.start();
+        }
+
         Builder builder = new Builder();
         Exception e = null;
         try {
-            Builder.prepareXcompile();
-            log.println();
+            if (!plan) {
+                Builder.prepareXcompile();
+                log.println();
+            }
 
             if (Builder.isJar || DEBUG_INSTRUCTIONS) {
                 // when from IDE, we want to run it directly (in case it changes significantly)
@@ -196,8 +227,16 @@ class Builder {
 
             builder.start(buildOptions, args);
 
+            // jars might still be created in the background
+            BuildPipeline.awaitAll();
+
             log.println();
 
+            if (plan) {
+                BuildPlan.print();
+                log.println();
+            }
+
             Calendar c = Calendar.getInstance(defaultTimeZone);
             c.setTime(new Date());
             c.add(Calendar.HOUR_OF_DAY, offset / 1000 / 60 / 60);
@@ -219,28 +258,38 @@ class Builder {
                    .println(args,
                             localDateString,
                             "Completed in: " + Sys.getTimePrettyFull(System.nanoTime() - builder.startTime),
-                            "Build Date code: " + Builder.buildDateUTC);
+                            "Build Date code: " + BuildSession.current().getBuildDate());
             }
 
             BuildLog.finish();
         } catch (Exception e1) {
             e = e1;
 
+            try {
+                // don't leave anything running in the background
+                BuildPipeline.awaitAll();
+            } catch (Exception ignored) {
+            }
+
             log.title("ERROR")
                .println(e.getMessage());
 
             BuildLog.finish_force();
+        } finally {
+            if (plan) {
+                BuildPlan.finish();
+
+                // the build checksums are only saved when something was built
+                BuildSession.current().removeShutdownHook();
+            }
         }
 
         // make sure to rethrow the errors
         if (e != null) {
-            System.err.println(""); // add a small space
+            BuildLog.getOutput().println(""); // add a small space
 
             // remove the "save build checksums" hook, since there was a problem
-            if (Project.shutdownHook != null) {
-                Runtime.getRuntime().removeShutdownHook(Project.shutdownHook);
-                Project.shutdownHook = null;
-            }
+            BuildSession.current().removeShutdownHook();
 
             if (e instanceof InvocationTargetException) {
 
@@ -315,20 +364,24 @@ class Builder {
                     }
 
                     BuildLog.println("  Decompressing: " + f.getAbsolutePath());
-                    InputStream inputStream = new FileInputStream(f);
-                    // now uncompress
-                    ByteArrayOutputStream outputStream = LZMA.decode(inputStream);
 
-                    // now unpack
-                    inputStream = new ByteArrayInputStream(outputStream.toByteArray());
-                    outputStream = Pack200Util.Java.unpack200((ByteArrayInputStream) inputStream);
+                    // unLZMA and unpack200 at the same time (on different threads), straight to disk. The runtime is never in memory.
+                    // It's written to a temp file first, so a failure never leaves a partial file (that the next run would accept).
+                    File tempFile = JarUtil.createTempFile(file);
+                    boolean success = false;
+                    try {
+                        InputStream inputStream = new BufferedInputStream(new FileInputStream(f));
+                        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
 
-                    // now write to disk
-                    inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+                        new StreamPipeline(StreamStage.lzmaDecode(), StreamStage.unpack200()).run(inputStream, outputStream);
 
-                    FileOutputStream fileOutputStream = new FileOutputStream(new File(fixedName));
-                    IO.copyStream(inputStream, fileOutputStream);
-                    IO.close(fileOutputStream);
+                        JarUtil.moveAtomically(tempFile, file);
+                        success = true;
+                    } finally {
+                        if (!success && tempFile.exists() && !tempFile.delete()) {
+                            tempFile.deleteOnExit();
+                        }
+                    }
                 }
             }
         }
@@ -810,6 +863,11 @@ class Builder {
      */
     public static
     boolean delete(File target) {
+        if (BuildPlan.isEnabled()) {
+            // nothing is changed when planning
+            return true;
+        }
+
         target = FileUtil.normalize(target);
 
         if (target.exists()) {
@@ -825,6 +883,10 @@ class Builder {
 
     public static
     boolean delete(File target, String... filesToIgnore) {
+        if (BuildPlan.isEnabled()) {
+            return true;
+        }
+
         target = FileUtil.normalize(target);
 
         final List<String> strings = new ArrayList<String>(Arrays.asList(filesToIgnore));
@@ -841,6 +903,10 @@ class Builder {
 
     public static
     File moveFile(String source, String target) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return FileUtil.normalize(target);
+        }
+
         source = FileUtil.normalize(source).getAbsolutePath();
         target = FileUtil.normalize(target).getAbsolutePath();
 
@@ -853,6 +919,10 @@ class Builder {
 
     public static
     File copyFile(File source, File target) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return FileUtil.normalize(target);
+        }
+
         source = FileUtil.normalize(source);
         target = FileUtil.normalize(target);
 
@@ -865,6 +935,10 @@ class Builder {
 
     public static
     void copyFile(String source, String target) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return;
+        }
+
         source = FileUtil.normalize(source).getAbsolutePath();
         target = FileUtil.normalize(target).getAbsolutePath();
 
@@ -876,6 +950,10 @@ class Builder {
 
     public static
     File copyFileToDir(File source, File target) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return new File(FileUtil.normalize(target), source.getName());
+        }
+
         source = FileUtil.normalize(source);
         target = FileUtil.normalize(target);
 
@@ -888,6 +966,10 @@ class Builder {
 
     public static
     void copyFileToDir(String source, String target) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return;
+        }
+
         source = FileUtil.normalize(source).getAbsolutePath();
         target = FileUtil.normalize(target).getAbsolutePath();
 
@@ -899,6 +981,10 @@ class Builder {
 
     public static
     void copyDirectory(String source, String target, String... dirNamesToIgnore) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return;
+        }
+
         source = FileUtil.normalize(source).getAbsolutePath();
         target = FileUtil.normalize(target).getAbsolutePath();
 
@@ -997,6 +1083,17 @@ class Builder {
             return;
         }
 
+        String instructionsChecksum = null;
+        if (BuildDaemon.isRunning()) {
+            instructionsChecksum = Hash.generateChecksums(sources, classPaths);
+
+            if (instructionsChecksum != null && instructionsChecksum.equals(cachedInstructionsChecksum)) {
+                BuildLog.println("Build instructions unchanged, using the already compiled instructions");
+                this.classloader = cachedClassloader;
+                return;
+            }
+        }
+
         ByteClassloader bytesClassloader = new ByteClassloader(sources.getFiles());
 
         ProjectJava project = ProjectJava.create("Builder")
@@ -1027,14 +1124,29 @@ class Builder {
             }
 
             this.classloader = bytesClassloader;
+
+            if (instructionsChecksum != null) {
+                cachedInstructionsChecksum = instructionsChecksum;
+                cachedClassloader = bytesClassloader;
+                cachedAnnotations.clear();
+            }
         }
     }
 
+    /**
+     * @return the classes (from the build instructions or the classpath) that have the specified annotation.
+     */
     private
-    void start(BuildOptions buildOptions, SimpleArgs args) throws Exception {
+    List<Class<?>> findAnnotated(final Class<? extends Annotation> annotation) throws Exception {
+        final boolean useCache = BuildDaemon.isRunning() && this.classloader == cachedClassloader;
+        if (useCache) {
+            List<Class<?>> classes = cachedAnnotations.get(annotation);
+            if (classes != null) {
+                return classes;
+            }
+        }
 
         dorkbox.annotation.Builder detector;
-
         if (this.classloader != null) {
             detector = AnnotationDetector.scan(this.classloader, new ClassByteIterator(this.classloader, null));
         }
@@ -1042,8 +1154,19 @@ class Builder {
             detector = AnnotationDetector.scanClassPath();
         }
 
-        List<Class<?>> controllers = detector.forAnnotations(Config.class)
-                                             .collect(AnnotationDefaults.getType);
+        List<Class<?>> classes = detector.forAnnotations(annotation)
+                                         .collect(AnnotationDefaults.getType);
+
+        if (useCache && classes != null) {
+            cachedAnnotations.put(annotation, classes);
+        }
+
+        return classes;
+    }
+
+    private
+    void start(BuildOptions buildOptions, final SimpleArgs args) throws Exception {
+        List<Class<?>> controllers = findAnnotated(Config.class);
 
         if (controllers != null) {
             if (controllers.size() > 1) {
@@ -1101,17 +1224,10 @@ class Builder {
 
         // now we want to update/search for all project builders.
         boolean found;
-        if (this.classloader != null) {
-            detector = AnnotationDetector.scan(this.classloader, new ClassByteIterator(this.classloader, null));
-        }
-        else {
-            detector = AnnotationDetector.scanClassPath();
-        }
-        List<Class<?>> builders = detector.forAnnotations(Instructions.class)
-                                          .collect(AnnotationDefaults.getType);
+        final List<Class<?>> builders = findAnnotated(Instructions.class);
 
-        if (args.getMode()
-                .equals(Builder.BUILD_MODE)) {
+        final String mode = args.getMode();
+        if (mode.equals(Builder.BUILD_MODE) || mode.equals(ProjectWatcher.WATCH_MODE) || mode.equals(BuildPlan.PLAN_MODE)) {
             String projectToBuild = args.get(1);
             String methodNameToCall = args.get(2);
             if (methodNameToCall == null) {
@@ -1133,6 +1249,25 @@ class Builder {
                 ioException.setStackTrace(new StackTraceElement[0]);
                 throw ioException;
             }
+
+            if (found && mode.equals(ProjectWatcher.WATCH_MODE)) {
+                final BuildOptions watchOptions = buildOptions;
+                final String watchMethod = methodNameToCall;
+                final String watchProject = projectToBuild;
+
+                // this only returns when the watch is stopped
+                ProjectWatcher.watch(projectToBuild, new Callable<Boolean>() {
+                    @Override
+                    public
+                    Boolean call() throws Exception {
+                        BuildLog.disable();
+                        Project.reset();
+                        BuildLog.enable();
+
+                        return runBuild(watchOptions, args, builders, watchMethod, watchProject);
+                    }
+                });
+            }
         }
 
 
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dorkbox.build.util.jar.JarSigningService;
+
+/**
+ * Runs the later stages of a project build (jar, source zip, signing and saving the checksums) in the background, so that projects that
+ * depend on it can start compiling as soon as it's classes exist.
+ * <p/>
+ * Anything that needs the output of a project (copying, merging, uploading, cleanup) must wait for it's stages to finish first.
+ *
+ * @see dorkbox.BuildOptions.Compiler#pipeline
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class BuildPipeline {
+    private static final ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                                                                                 new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public
+        Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "Build pipeline-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // project name -> the stages that are still running for it. Each build session has it's own.
+    private static
+    Map<String, Future<?>> pending() {
+        return BuildSession.current().pendingStages;
+    }
+
+    /**
+     * Runs the stage in the background (with the build session of the project). Stages for the same project run in the order they
+     * were submitted.
+     */
+    static
+    void submit(final Project<?> project, final Callable<?> stage) {
+        final Map<String, Future<?>> pending = project.session.pendingStages;
+
+        synchronized (pending) {
+            final Future<?> previous = pending.get(project.name);
+
+            Future<?> future = executor.submit(project.session.wrap(new Callable<Object>() {
+                @Override
+                public
+                Object call() throws Exception {
+                    if (previous != null) {
+                        waitFor(project.name, previous);
+                    }
+                    return stage.call();
+                }
+            }));
+
+            pending.put(project.name, future);
+        }
+    }
+
+    /**
+     * @return true if the project still has stages running in the background
+     */
+    public static
+    boolean isPending(final Project<?> project) {
+        final Map<String, Future<?>> pending = project.session.pendingStages;
+
+        synchronized (pending) {
+            Future<?> future = pending.get(project.name);
+            return future != null && !future.isDone();
+        }
+    }
+
+    /**
+     * Waits for the background stages of the project to finish.
+     *
+     * @throws IOException if one of the stages failed
+     */
+    public static
+    void await(final Project<?> project) throws IOException {
+        final Map<String, Future<?>> pending = project.session.pendingStages;
+
+        Future<?> future;
+        synchronized (pending) {
+            future = pending.remove(project.name);
+        }
+
+        if (future != null) {
+            waitFor(project.name, future);
+        }
+    }
+
+    /**
+     * Waits for all of the background stages (of the current build session), and the jars that are signed in the background, to finish.
+     *
+     * @throws IOException if one of the stages failed (the first failure is thrown, after everything has finished)
+     */
+    public static
+    void awaitAll() throws IOException {
+        final Map<String, Future<?>> pending = pending();
+
+        List<Map.Entry<String, Future<?>>> futures;
+        synchronized (pending) {
+            futures = new ArrayList<Map.Entry<String, Future<?>>>(pending.entrySet());
+            pending.clear();
+        }
+
+        IOException exception = null;
+        for (Map.Entry<String, Future<?>> entry : futures) {
+            try {
+                waitFor(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+
+        // jars that were signed in the background (only the ones of the current session)
+        try {
+            JarSigningService.awaitAll();
+        } catch (IOException e) {
+            if (exception == null) {
+                exception = e;
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static
+    void waitFor(final String projectName, final Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for '" + projectName + "' to finish building", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IOException("Unable to finish building '" + projectName + "'", cause);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dorkbox.build.util.BuildLog;
+
+/**
+ * Records what would be built (and why) without building anything.
+ * <p/>
+ * When planning, the up-to-date checks run for every project (and it's dependencies), but nothing is compiled, jarred, deleted or
+ * saved. Run with:   plan myProject [method]
+ * <p/>
+ * The plan belongs to the current {@link BuildSession}.
+ */
+@SuppressWarnings("Convert2Diamond")
+public
+class BuildPlan {
+    public static final String PLAN_MODE = "plan";
+
+    // project name -> reasons to build. Empty if the project is up-to-date. In the order they were checked (dependencies first)
+    private static
+    Map<String, List<String>> plan() {
+        return BuildSession.current().plan;
+    }
+
+    /**
+     * Starts planning (for the current build session). Until {@link #finish()} is called, projects will only record why they would build.
+     */
+    public static
+    void start() {
+        BuildSession session = BuildSession.current();
+        synchronized (session.plan) {
+            session.plan.clear();
+            session.planning = true;
+        }
+    }
+
+    public static
+    void finish() {
+        BuildSession.current().planning = false;
+    }
+
+    /**
+     * @return true if we are only planning, and should not build or change anything
+     */
+    public static
+    boolean isEnabled() {
+        return BuildSession.current().planning;
+    }
+
+    static
+    void record(final String projectName, final List<String> reasons) {
+        Map<String, List<String>> plan = plan();
+        synchronized (plan) {
+            plan.put(projectName, reasons);
+        }
+    }
+
+    static
+    boolean isPlanned(final String projectName) {
+        Map<String, List<String>> plan = plan();
+        synchronized (plan) {
+            return plan.containsKey(projectName);
+        }
+    }
+
+    static
+    boolean wouldBuild(final String projectName) {
+        List<String> reasons = getReasons(projectName);
+        return reasons != null && !reasons.isEmpty();
+    }
+
+    /**
+     * @return the names of the projects that would build, in build order
+     */
+    public static
+    List<String> getRebuildSet() {
+        Map<String, List<String>> plan = plan();
+        List<String> names = new ArrayList<String>();
+
+        synchronized (plan) {
+            for (Map.Entry<String, List<String>> entry : plan.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    names.add(entry.getKey());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the reasons the project would build. Empty if it is up-to-date, null if it was not checked.
+     */
+    public static
+    List<String> getReasons(final String projectName) {
+        Map<String, List<String>> plan = plan();
+        synchronized (plan) {
+            return plan.get(projectName);
+        }
+    }
+
+    /**
+     * Logs the rebuild set, and the reason(s) each project would build.
+     */
+    public static
+    void print() {
+        Map<String, List<String>> plan = new LinkedHashMap<String, List<String>>();
+        Map<String, List<String>> sessionPlan = plan();
+        synchronized (sessionPlan) {
+            plan.putAll(sessionPlan);
+        }
+
+        List<String> rebuildSet = getRebuildSet();
+
+        List<String> message = new ArrayList<String>();
+        if (rebuildSet.isEmpty()) {
+            message.add("Nothing to build, " + plan.size() + " project(s) up-to-date");
+        }
+        else {
+            message.add(rebuildSet.size() + " of " + plan.size() + " project(s) would build: " + rebuildSet);
+        }
+
+        for (Map.Entry<String, List<String>> entry : plan.entrySet()) {
+            List<String> reasons = entry.getValue();
+
+            if (reasons.isEmpty()) {
+                message.add(entry.getKey() + ": up-to-date");
+            }
+            else {
+                StringBuilder builder = new StringBuilder(entry.getKey()).append(": ");
+                for (int i = 0; i < reasons.size(); i++) {
+                    if (i > 0) {
+                        builder.append(", ");
+                    }
+                    builder.append(reasons.get(i));
+                }
+                message.add(builder.toString());
+            }
+        }
+
+        BuildLog.title("Plan")
+                .println(message.toArray());
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import dorkbox.BuildOptions;
+import dorkbox.Builder;
+import dorkbox.build.util.BuildLog;
+import dorkbox.build.util.Hash;
+import dorkbox.build.util.ShutdownHook;
+import dorkbox.build.util.wildcard.Paths;
+import dorkbox.util.properties.PropertiesProvider;
+
+/**
+ * Everything that belongs to a single build: the projects, which of them were built this run, where the build state (checksums) is
+ * saved, the build log and the build date.
+ * <p/>
+ * A session is bound to a thread with {@link #run(Callable)}, and everything that runs on that thread (and in the background stages it
+ * starts) uses it. Sessions do not share any state, so several builds can run in the same process at the same time. (The only exceptions
+ * are the worker threads, and the key that jars are signed with, which never changes once it is loaded.)
+ * <p/>
+ * When no session is bound, the global session is used. It keeps using {@link Builder#settings} and {@link Builder#buildDateUTC}, so
+ * existing build instructions keep working.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative", "unchecked"})
+public
+class BuildSession {
+    private static final BuildSession globalSession = new BuildSession();
+    private static final ThreadLocal<BuildSession> currentSession = new ThreadLocal<BuildSession>();
+
+    /**
+     * @return the session bound to the current thread, or the global session if there isn't one.
+     */
+    public static
+    BuildSession current() {
+        BuildSession session = currentSession.get();
+        if (session != null) {
+            return session;
+        }
+        return globalSession;
+    }
+
+    /**
+     * @return the session that is used when no session is bound to the thread
+     */
+    public static
+    BuildSession global() {
+        return globalSession;
+    }
+
+
+    // project name -> project
+    final Map<String, Project> projects = Collections.synchronizedMap(new LinkedHashMap<String, Project>());
+
+    // names of the projects that were built this run
+    final Set<String> built = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // changes every time a dependency is added to a project, so that the cached dependency closures are computed again
+    volatile int dependencyGeneration = 0;
+    final Object dependencyLock = new Object();
+
+    // project name -> the stages still running in the background. Guarded by itself. (see BuildPipeline)
+    final Map<String, Future<?>> pendingStages = new HashMap<String, Future<?>>();
+
+    // jar path -> the jar that is being signed in the background. Guarded by itself. (see JarSigningService)
+    private final Map<String, Future<File>> pendingJars = new HashMap<String, Future<File>>();
+
+    // project name -> reasons to build. Guarded by itself. (see BuildPlan)
+    final Map<String, List<String>> plan = new LinkedHashMap<String, List<String>>();
+    volatile boolean planning = false;
+
+    private final BuildLog.State logState = new BuildLog.State();
+
+    private final boolean isGlobal;
+    private volatile File settingsFile;
+    private volatile PropertiesProvider settings;
+    private volatile long buildDate;
+
+    // null until we checked if the build system changed
+    private Boolean forceRebuildAll = null;
+    private Thread shutdownHook;
+
+    private
+    BuildSession() {
+        this.isGlobal = true;
+    }
+
+    /**
+     * Creates a new, empty session.
+     *
+     * @param settingsFile where the build state (checksums, etc) is saved
+     */
+    public
+    BuildSession(final File settingsFile) {
+        this.isGlobal = false;
+        this.buildDate = System.currentTimeMillis();
+        setSettingsFile(settingsFile);
+    }
+
+    /**
+     * Runs the task with this session bound to the current thread.
+     */
+    public
+    <T> T run(final Callable<T> task) throws Exception {
+        BuildSession previous = currentSession.get();
+        currentSession.set(this);
+
+        try {
+            return task.call();
+        } finally {
+            if (previous != null) {
+                currentSession.set(previous);
+            }
+            else {
+                currentSession.remove();
+            }
+        }
+    }
+
+    /**
+     * @return a task that runs with this session bound to whatever thread runs it. Used for background tasks.
+     */
+    public
+    <T> Callable<T> wrap(final Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            public
+            T call() throws Exception {
+                return run(task);
+            }
+        };
+    }
+
+    public
+    boolean isGlobal() {
+        return isGlobal;
+    }
+
+    /**
+     * @return where the build state (checksums, etc) is saved
+     */
+    public
+    PropertiesProvider getSettings() {
+        if (isGlobal) {
+            return Builder.settings;
+        }
+        return settings;
+    }
+
+    public
+    File getSettingsFile() {
+        if (isGlobal) {
+            return new File(BuildOptions.settings);
+        }
+        return settingsFile;
+    }
+
+    /**
+     * Changes where the build state (checksums, etc) is saved
+     */
+    public
+    void setSettingsFile(final File settingsFile) {
+        if (isGlobal) {
+            BuildOptions.settings = settingsFile.getPath();
+            Builder.settings = new PropertiesProvider(settingsFile);
+        }
+        else {
+            this.settingsFile = settingsFile;
+            this.settings = new PropertiesProvider(settingsFile);
+        }
+    }
+
+    /**
+     * @return when the build happens (in UTC). This is the date the files are set to, and NOT used to keep track of how long it takes.
+     */
+    public
+    long getBuildDate() {
+        if (isGlobal) {
+            return Builder.buildDateUTC;
+        }
+        return buildDate;
+    }
+
+    public
+    void setBuildDate(final long buildDate) {
+        if (isGlobal) {
+            Builder.buildDateUTC = buildDate;
+        }
+        else {
+            this.buildDate = buildDate;
+        }
+    }
+
+    public
+    BuildLog.State getLogState() {
+        return logState;
+    }
+
+    /**
+     * @return the jars of this session that are being signed in the background (jar path -> signed jar). Guarded by itself.
+     */
+    public
+    Map<String, Future<File>> getPendingJars() {
+        return pendingJars;
+    }
+
+    /**
+     * @return a read-only view of the projects in this session
+     */
+    public
+    Map<String, Project> getProjects() {
+        return Collections.unmodifiableMap(projects);
+    }
+
+    /**
+     * Invalidates the cached dependency closure of every project, since a dependency was added to one of them.
+     */
+    void dependenciesChanged() {
+        synchronized (dependencyLock) {
+            dependencyGeneration++;
+        }
+    }
+
+    /**
+     * Removes all of the projects (and which were built) from this session. Used to "reset everything", similar to if it was relaunched.
+     */
+    void reset() {
+        projects.clear();
+        built.clear();
+        dependenciesChanged();
+    }
+
+    /**
+     * Checks (once per session) if our build code has changed. If yes, then we have to rebuild everything since we don't know what might
+     * have changed.
+     *
+     * @return true if every project must be rebuilt
+     */
+    public synchronized
+    boolean isForceRebuildAll() {
+        if (forceRebuildAll != null) {
+            return forceRebuildAll;
+        }
+
+        forceRebuildAll = false;
+
+        final Paths paths = new Paths();
+        File file = new File(Project.class.getSimpleName() + ".java").getAbsoluteFile().getParentFile();
+        paths.glob(file.getAbsolutePath(), Project.Java_Pattern);
+
+        for (File f : Project.builderFiles) {
+            paths.glob(f.getAbsolutePath(), Project.Java_Pattern);
+        }
+
+        try {
+            String oldHash = getSettings().get("BUILD", String.class);
+            String hashedContents = Hash.generateChecksums(paths);
+
+            if (oldHash == null || !oldHash.equals(hashedContents)) {
+                forceRebuildAll = true;
+                BuildLog.println("Build system changed. Rebuilding.");
+
+                // we only want to save the project checksums ON EXIT (so version modifications/save() can be applied)!
+                shutdownHook = new Thread(new ShutdownHook(paths, getSettings()));
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return forceRebuildAll;
+    }
+
+    /**
+     * Removes the "save build checksums" hook, because there was a problem (or nothing was built).
+     */
+    public synchronized
+    void removeShutdownHook() {
+        if (shutdownHook != null) {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * Finishes this session. The build checksums are saved now (instead of when the process exits), if they have to be.
+     */
+    public synchronized
+    void close() {
+        if (shutdownHook != null) {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            shutdownHook.run();
+            shutdownHook = null;
+        }
+    }
+
+
+    /**
+     * The projects of whatever session is current. This is so {@link Project#deps} still works.
+     */
+    static
+    class CurrentProjects extends AbstractMap<String, Project> {
+        @Override
+        public
+        Set<Entry<String, Project>> entrySet() {
+            return current().projects.entrySet();
+        }
+
+        @Override
+        public
+        Project get(final Object key) {
+            return current().projects.get(key);
+        }
+
+        @Override
+        public
+        boolean containsKey(final Object key) {
+            return current().projects.containsKey(key);
+        }
+
+        @Override
+        public
+        Project put(final String key, final Project value) {
+            return current().projects.put(key, value);
+        }
+
+        @Override
+        public
+        Project remove(final Object key) {
+            return current().projects.remove(key);
+        }
+
+        @Override
+        public
+        void clear() {
+            current().projects.clear();
+        }
+
+        @Override
+        public
+        int size() {
+            return current().projects.size();
+        }
+    }
+}
@@ -5,8 +5,9 @@ import java.io.IOException;
 
 import dorkbox.build.util.BuildLog;
 import dorkbox.build.util.PreJarAction;
+import dorkbox.build.util.jar.CompressionPolicy;
 import dorkbox.build.util.jar.JarOptions;
-import dorkbox.build.util.jar.JarSigner;
+import dorkbox.build.util.jar.JarSigningService;
 import dorkbox.build.util.jar.JarUtil;
 import dorkbox.build.util.wildcard.Paths;
 
@@ -23,6 +24,12 @@ class Jarable {
 
     private boolean includeLicenseInfo = true;
 
+    private boolean parallelCompression = false;
+
+    private CompressionPolicy compressionPolicy = null;
+
+    private boolean incremental = false;
+
     /**
      * Sign the jar with a self-signed certificate
      */
@@ -132,11 +139,47 @@ class Jarable {
         return this;
     }
 
+    /**
+     * Compress the jar (and source zip) entries on several threads. The jar is exactly the same as when it is compressed on one thread.
+     */
+    public
+    Jarable parallelCompression() {
+        this.parallelCompression = true;
+        return this;
+    }
+
+    /**
+     * How the jar (and source zip) entries are compressed. By default, everything is compressed, unless
+     * {@link dorkbox.BuildOptions.Compiler#storeCompressedFiles} is set (then files that are already compressed are stored).
+     */
+    public
+    Jarable compressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+
+    /**
+     * Only compress the entries of the jar (and source zip) that changed since it was last built, the unchanged entries are copied
+     * from the previous jar as-is.
+     */
+    public
+    Jarable incremental() {
+        this.incremental = true;
+        return this;
+    }
+
     /**
      * Builds a jar from the specified source files, class file, and extras
      */
     void buildJar() throws IOException {
+        prepareJar();
+        createJar();
+    }
 
+    /**
+     * Runs the actions that have to happen (to the class files) before the project is jar'd
+     */
+    void prepareJar() throws IOException {
         if (this.preJarAction != null) {
             BuildLog.start();
 
@@ -146,9 +189,27 @@ class Jarable {
 
             BuildLog.finish();
         }
+    }
+
+    /**
+     * Creates the jar (and source zip), and signs it. This can run in the background (see {@link BuildPipeline})
+     */
+    void createJar() throws IOException {
+        CompressionPolicy compressionPolicy = this.compressionPolicy;
+        if (compressionPolicy == null) {
+            if (this.projectJava.buildOptions.compiler.storeCompressedFiles) {
+                compressionPolicy = CompressionPolicy.storeCompressed();
+            }
+            else {
+                compressionPolicy = CompressionPolicy.defaults();
+            }
+        }
 
         JarOptions jarOptions = new JarOptions();
         jarOptions.overrideDate = this.overrideDate;
+        jarOptions.parallelCompression = this.parallelCompression;
+        jarOptions.compressionPolicy = compressionPolicy;
+        jarOptions.incremental = this.incremental;
         jarOptions.outputFile = this.projectJava.outputFile.get();
         jarOptions.inputPaths = new Paths(this.projectJava.stagingDir.getAbsolutePath());
         jarOptions.extraPaths = this.projectJava.extraFiles;
@@ -167,12 +228,26 @@ class Jarable {
         if (this.newClassPath != null) {
             jarOptions.classpath = this.newClassPath;
         }
+        if (this.signJar) {
+            if (this.sigName == null) {
+                throw new IllegalArgumentException("The signature name must be set to sign the jar.");
+            }
 
-        JarUtil.jar(jarOptions);
+            // the entries are digested while the jar is written, so it is not read again for signing. The jar is created (and signed)
+            // in the background, while the source zip is created.
+            jarOptions.signatureName = this.sigName;
+            JarSigningService.submit(jarOptions);
+        }
+        else {
+            JarUtil.jar(jarOptions);
+        }
 
         if (this.includeSourceAsSeparate) {
             jarOptions = new JarOptions();
             jarOptions.overrideDate = this.overrideDate;
+            jarOptions.parallelCompression = this.parallelCompression;
+            jarOptions.compressionPolicy = compressionPolicy;
+            jarOptions.incremental = this.incremental;
             jarOptions.outputFile = this.projectJava.outputFile.getSource();
             jarOptions.extraPaths = this.projectJava.extraFiles;
             jarOptions.sourcePaths = this.projectJava.sourcePaths;
@@ -187,7 +262,8 @@ class Jarable {
         }
 
         if (this.signJar) {
-            JarSigner.sign(this.projectJava.outputFile.get().getAbsolutePath(), this.sigName);
+            // the checksums (saved after this) are of the signed jar
+            JarSigningService.await(this.projectJava.outputFile.get());
         }
     }
 
@@ -173,14 +173,14 @@ class MavenExporter {
             writer = new BufferedWriter(new FileWriter(pomFile));
             writer.write(pomFileText);
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         } finally {
             try {
                 if (writer != null) {
                     writer.close();
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                e.printStackTrace(BuildLog.getOutput());
             }
         }
 
@@ -193,14 +193,14 @@ class MavenExporter {
         try {
             writer = new BufferedWriter(new FileWriter(docsFile));
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         } finally {
             try {
                 if (writer != null) {
                     writer.close();
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                e.printStackTrace(BuildLog.getOutput());
             }
         }
 
@@ -423,7 +423,7 @@ class MavenExporter {
                     try {
                         Thread.sleep(2000L);
                     } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        e.printStackTrace(BuildLog.getOutput());
                     }
 //                    hasErrors = "";
 //                    closeRepo(authInfo, profile, repo, nameAndVersion);
@@ -465,7 +465,7 @@ class MavenExporter {
                         try {
                             Thread.sleep(2000L);
                         } catch (InterruptedException e) {
-                            e.printStackTrace();
+                            e.printStackTrace(BuildLog.getOutput());
                         }
 
                         boolean alreadyTransitioning = !hasErrors.contains("Staging repository is already transitioning");
@@ -474,7 +474,7 @@ class MavenExporter {
                             try {
                                 Thread.sleep(8000L);
                             } catch (InterruptedException e) {
-                                e.printStackTrace();
+                                e.printStackTrace(BuildLog.getOutput());
                             }
                         } else if (!hasErrors.contains("has invalid state: open")) {
                             BuildLog.println("Unknown error during promotion, retrying!", hasErrors);
@@ -513,7 +513,7 @@ class MavenExporter {
                     try {
                         Thread.sleep(2000L);
                     } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        e.printStackTrace(BuildLog.getOutput());
                     }
 
                     // sometimes it takes a while for the system to show that the repo has been released.
@@ -681,7 +681,7 @@ class MavenExporter {
             @Override
             public
             void onThrowable(final Throwable throwable) {
-                throwable.printStackTrace();
+                throwable.printStackTrace(BuildLog.getOutput());
             }
 
             @Override
@@ -719,7 +719,7 @@ class MavenExporter {
         } catch (ConnectException ignored) {
             return "Not connected or bad address";
         } catch (Exception e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         }
 
         return "Error getting response";
@@ -18,12 +18,9 @@ package dorkbox.build;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,7 +39,6 @@ import dorkbox.Builder;
 import dorkbox.build.util.BuildLog;
 import dorkbox.build.util.Hash;
 import dorkbox.build.util.OutputFile;
-import dorkbox.build.util.ShutdownHook;
 import dorkbox.build.util.wildcard.Paths;
 import dorkbox.license.License;
 import dorkbox.util.FileUtil;
@@ -62,15 +58,10 @@ class Project<T extends Project<T>> {
     public static final String Java_Pattern = "**" + File.separator + "*.java";
     public static final String Jar_Pattern = "**" + File.separator + "*.jar";
 
-    public static Map<String, Project> deps = new LinkedHashMap<String, Project>();
-    protected static Set<String> buildList = new HashSet<String>();
-
-    private static boolean forceRebuildAll = false;
-    private static boolean alreadyChecked = false;
-    private static Comparator<Project> dependencyComparator = new ProjectComparator();
+    /** The projects of the current build session. (see {@link BuildSession}) */
+    public static final Map<String, Project> deps = new BuildSession.CurrentProjects();
 
     public static List<File> builderFiles = new ArrayList<File>();
-    public static Thread shutdownHook;
 
     static final SerializationManager manager = new SerializationManager() {
         Kryo kryo = new Kryo();
@@ -155,48 +146,6 @@ class Project<T extends Project<T>> {
     };
 
 
-    static {
-        // check to see if our deploy code has changed. if yes, then we have to rebuild everything since
-        // we don't know what might have changed.
-        final Paths paths = new Paths();
-        File file = new File(Project.class.getSimpleName() + ".java").getAbsoluteFile().getParentFile();
-        paths.glob(file.getAbsolutePath(), Java_Pattern);
-
-        for (File f : builderFiles) {
-            paths.glob(f.getAbsolutePath(), Java_Pattern);
-        }
-
-        try {
-            String oldHash = Builder.settings.get("BUILD", String.class);
-            String hashedContents = Hash.generateChecksums(paths);
-
-            if (oldHash != null) {
-                if (!oldHash.equals(hashedContents)) {
-                    forceRebuildAll = true;
-                }
-            }
-            else {
-                forceRebuildAll = true;
-            }
-
-            if (forceRebuildAll) {
-                if (!alreadyChecked) {
-                    alreadyChecked = true;
-                    BuildLog.println("Build system changed. Rebuilding.");
-                }
-
-                // we only want to save the project checksums ON EXIT (so version modifications/save() can be applied)!
-                shutdownHook = new Thread(new ShutdownHook(paths));
-
-                Runtime.getRuntime().addShutdownHook(shutdownHook);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        Hash.forceRebuildAll = forceRebuildAll;
-    }
-
     public static
     Project<?> create(Project<?> project) {
         deps.put(project.name, project);
@@ -206,8 +155,7 @@ class Project<T extends Project<T>> {
     // removes all saved checksums as well as dependencies. Used to "reset everything", similar to if it was relaunched.
     public static
     void reset() {
-        deps.clear();
-        buildList.clear();
+        BuildSession.current().reset();
 
         BuildLog.start();
         BuildLog.title("RESET").println("All project info resetting...");
@@ -218,6 +166,9 @@ class Project<T extends Project<T>> {
 
     public String name;
 
+    // the build session this project belongs to
+    protected final transient BuildSession session = BuildSession.current();
+
     protected BuildVersion version;
 
     protected File stagingDir;
@@ -243,6 +194,10 @@ class Project<T extends Project<T>> {
     /** ALL related dependencies for this project (ie: recursively searched) */
     protected transient List<Project<?>> fullDependencyList = null;
 
+    // the cached result of getDependencyClosure(), valid while the generation matches the session
+    private transient List<Project<?>> dependencyClosure = null;
+    private transient int dependencyClosureGeneration = -1;
+
     // used to make sure licenses are called in the correct spot
     private transient boolean calledLicenseBefore = false;
 
@@ -297,12 +252,14 @@ class Project<T extends Project<T>> {
 
     public static
     void buildAll() throws Exception {
-        // organize the list of items to build, so that our build order is at least SOMEWHAT in order,
-        // were the dependencies build first. This is just an optimization step
-        List<Project> sorted = new ArrayList<Project>(deps.values());
+        // the dependencies of every project are built before it
+        Set<Project<?>> sorted = new LinkedHashSet<Project<?>>();
+        for (Project<?> project : deps.values()) {
+            sorted.addAll(project.getDependencyClosure());
+            sorted.add(project);
+        }
 
-        Collections.sort(sorted, dependencyComparator);
-        for (Project project : sorted) {
+        for (Project<?> project : sorted) {
             if (!(project instanceof ProjectJar)) {
                 project.build();
             }
@@ -318,9 +275,10 @@ class Project<T extends Project<T>> {
         Iterator<String> iterator = this.unresolvedDependencies.iterator();
         while (iterator.hasNext()) {
             String unresolved = iterator.next();
-            Project<?> project = deps.get(unresolved);
+            Project<?> project = this.session.projects.get(unresolved);
             if (project != null) {
                 this.dependencies.add(project);
+                this.session.dependenciesChanged();
                 iterator.remove();
             }
         }
@@ -334,7 +292,7 @@ class Project<T extends Project<T>> {
             project.build();
         }
         else {
-            System.err.println("Project is NULL. Aborting build.");
+            BuildLog.getOutput().println("Project is NULL. Aborting build.");
         }
     }
 
@@ -457,21 +415,79 @@ class Project<T extends Project<T>> {
     void getRecursiveLicenses(Set<License> licenses) {
         licenses.addAll(this.licenses);
 
-        Set<Project<?>> deps = new HashSet<Project<?>>();
-        getRecursiveDependencies(deps);
-
-        for (Project<?> project : deps) {
-            project.getRecursiveLicenses(licenses);
+        // the closure is already recursive, so we only need the licenses of each project
+        for (Project<?> project : getDependencyClosure()) {
+            licenses.addAll(project.licenses);
         }
     }
 
 
     public
     void getRecursiveDependencies(Set<Project<?>> dependencies) {
+        dependencies.addAll(getDependencyClosure());
+    }
+
+    /**
+     * @return all of the projects this project depends on (recursively), in build order: every project is after all of it's own
+     *         dependencies. This is only computed again when dependencies are added (to any project in the build session).
+     *
+     * @throws RuntimeException if the dependencies are circular
+     */
+    public
+    List<Project<?>> getDependencyClosure() {
+        synchronized (this.session.dependencyLock) {
+            return dependencyClosure(new LinkedHashSet<Project<?>>());
+        }
+    }
+
+    /**
+     * @param path the projects we are currently getting the closure for, used to detect circular dependencies
+     */
+    private
+    List<Project<?>> dependencyClosure(final LinkedHashSet<Project<?>> path) {
+        final int generation = this.session.dependencyGeneration;
+        if (this.dependencyClosure != null && this.dependencyClosureGeneration == generation) {
+            return this.dependencyClosure;
+        }
+
+        path.add(this);
+
+        // dependencies of a dependency come first, and the first time we see a project is where it stays.
+        Set<Project<?>> closure = new LinkedHashSet<Project<?>>();
         for (Project<?> project : this.dependencies) {
-            dependencies.add(project);
-            project.getRecursiveDependencies(dependencies);
+            if (path.contains(project)) {
+                throw circularDependency(path, project);
+            }
+
+            closure.addAll(project.dependencyClosure(path));
+            closure.add(project);
         }
+
+        path.remove(this);
+
+        this.dependencyClosure = Collections.unmodifiableList(new ArrayList<Project<?>>(closure));
+        this.dependencyClosureGeneration = generation;
+        return this.dependencyClosure;
+    }
+
+    private static
+    RuntimeException circularDependency(final LinkedHashSet<Project<?>> path, final Project<?> project) {
+        StringBuilder builder = new StringBuilder();
+
+        boolean inCycle = false;
+        for (Project<?> p : path) {
+            inCycle |= p.equals(project);
+
+            if (inCycle) {
+                builder.append(p.name)
+                       .append(" -> ");
+            }
+        }
+        builder.append(project.name);
+
+        RuntimeException runtimeException = new RuntimeException("Circular dependency: " + builder.toString());
+        runtimeException.setStackTrace(new StackTraceElement[0]);
+        return runtimeException;
     }
 
     /**
@@ -484,16 +500,21 @@ class Project<T extends Project<T>> {
 
         if (fullDependencyList == null) {
             // ONLY build the dependencies as well
-            HashSet<Project<?>> deps = new HashSet<Project<?>>();
-            getRecursiveDependencies(deps);
-
-            Project<?>[] array = new Project<?>[deps.size()];
-            deps.toArray(array);
-            fullDependencyList = Arrays.asList(array);
-            fullDependencyList.sort(dependencyComparator);
+            fullDependencyList = getDependencyClosure();
         }
     }
 
+    /**
+     * Resets the state of the last build, so that this project can be checked (and built if necessary) again. The project configuration
+     * is not changed.
+     */
+    void resetBuildState() {
+        this.shouldBuild = false;
+        this.skippedBuild = false;
+        this.isBuildingDependencies = false;
+        this.fullDependencyList = null;
+    }
+
     /**
      * suppress logging what dependencies are used
      */
@@ -590,9 +611,10 @@ class Project<T extends Project<T>> {
             ProjectJar.create(projectOrJar).outputFile(file);
         }
 
-        Project<?> project = deps.get(projectOrJar);
+        Project<?> project = this.session.projects.get(projectOrJar);
         if (project != null) {
             this.dependencies.add(project);
+            this.session.dependenciesChanged();
         }
         else {
             this.unresolvedDependencies.add(projectOrJar);
@@ -613,6 +635,7 @@ class Project<T extends Project<T>> {
 
         this.licenses.addAll(project.licenses);
         this.dependencies.add(project);
+        this.session.dependenciesChanged();
 
         return (T) this;
     }
@@ -814,6 +837,13 @@ class Project<T extends Project<T>> {
 
     public
     void copyFiles(File targetLocation) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return;
+        }
+
+        // the output file might still be created in the background
+        BuildPipeline.await(this);
+
         File file = null;
         if (this.outputFile != null) {
             file = this.outputFile.get();
@@ -878,6 +908,12 @@ class Project<T extends Project<T>> {
     @SuppressWarnings("WeakerAccess")
     public
     void copyMainFiles(File targetLocation) throws IOException {
+        if (BuildPlan.isEnabled()) {
+            return;
+        }
+
+        BuildPipeline.await(this);
+
         if (this.outputFile != null) {
             final File file = this.outputFile.get();
             final File source = this.outputFile.getSource();
@@ -905,6 +941,18 @@ class Project<T extends Project<T>> {
      */
     public
     void cleanup() {
+        if (BuildPlan.isEnabled()) {
+            // we don't change anything when planning
+            return;
+        }
+
+        try {
+            // the staging dir might still be used to create the jar in the background
+            BuildPipeline.await(this);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
         if (fullDependencyList != null) {
             for (Project<?> project : fullDependencyList) {
                  project.cleanup();
@@ -20,7 +20,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -29,6 +29,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
@@ -44,11 +45,11 @@ import com.esotericsoftware.yamlbeans.YamlWriter;
 import com.esotericsoftware.yamlbeans.scalar.ScalarSerializer;
 
 import dorkbox.BuildVersion;
-import dorkbox.Builder;
 import dorkbox.build.util.BuildLog;
 import dorkbox.build.util.CrossCompileClass;
 import dorkbox.build.util.DependencyWalker;
 import dorkbox.build.util.FileNotFoundRuntimeException;
+import dorkbox.build.util.Hash;
 import dorkbox.build.util.classloader.ByteClassloader;
 import dorkbox.build.util.classloader.JavaMemFileManager;
 import dorkbox.build.util.wildcard.Path;
@@ -76,6 +77,10 @@ class ProjectJava extends Project<ProjectJava> {
     Integer targetJavaVersion = null;
     private boolean isUploaded = false;
 
+    // dependencies that are still being jar'd in the background. We compile against their class files (and not their jar) instead.
+    private transient Paths stagedDependencies = new Paths();
+    private transient Set<String> pendingJars = new HashSet<String>();
+
     public static
     ProjectJava create(String projectName) {
         ProjectJava project = new ProjectJava(projectName);
@@ -159,6 +164,9 @@ class ProjectJava extends Project<ProjectJava> {
     @Override
     public
     boolean build(final int targetJavaVersion) throws IOException {
+        // if we are still finishing a previous build (in the background), we must wait for it.
+        BuildPipeline.await(this);
+
         // we should always rebuild if specified
         forceRebuild |= buildOptions.compiler.forceRebuild;
 
@@ -168,6 +176,11 @@ class ProjectJava extends Project<ProjectJava> {
         // check dependencies for this project
         resolveDependencies();
 
+        if (BuildPlan.isEnabled() && this.bytesClassloader == null) {
+            // only check what would happen. (the build instructions are compiled in memory, and must always build)
+            return plan();
+        }
+
         // we should always rebuild if specified
         shouldBuild |= forceRebuild;
 
@@ -177,16 +190,13 @@ class ProjectJava extends Project<ProjectJava> {
 
 
         // exit early if we already built this project, unless we force a rebuild
-        if (!forceRebuild && buildList.contains(this.name)) {
+        if (!session.built.add(this.name) && !forceRebuild) {
             if (!this.isBuildingDependencies) {
                 BuildLog.title("Building")
                         .println(this.name + " already built this run");
             }
             return true;
         }
-        else {
-            buildList.add(this.name);
-        }
 
         BuildLog.start();
 
@@ -213,7 +223,7 @@ class ProjectJava extends Project<ProjectJava> {
             for (Project<?> project : fullDependencyList) {
                 // dep can be a jar as well (don't have to build a jar)
                 if (!(project instanceof ProjectJar)) {
-                    if (!buildList.contains(project.name)) {
+                    if (!session.built.contains(project.name)) {
                         // let the build itself determine if it needs to run,
                         boolean prev = project.isBuildingDependencies;
                         project.isBuildingDependencies = true;
@@ -235,12 +245,21 @@ class ProjectJava extends Project<ProjectJava> {
                 throw new IOException("No source files specified for project: " + this.name);
             }
 
+            this.stagedDependencies = new Paths();
+            this.pendingJars = new HashSet<String>();
+
             // make sure ALL dependencies are on the classpath.
             for (Project<?> project : fullDependencyList) {
                 // dep can be a jar as well
                 final File file = project.outputFile.get();
 
-                if (!file.canRead()) {
+                if (BuildPipeline.isPending(project)) {
+                    // the jar is still being created, so we compile against the class files. The jar is still listed for the manifest.
+                    this.stagedDependencies.addFile(project.stagingDir.getAbsolutePath());
+                    this.pendingJars.add(file.getAbsolutePath());
+                    this.classPaths.addFile(file.getAbsolutePath());
+                }
+                else if (!file.canRead()) {
                     // if this project is a jar project, there might be "extra files", which mean this project IS NOT a
                     // compile dependency, but a runtime dependency (via the "extra files" section)
                     Paths extraFiles = project.extraFiles();
@@ -423,24 +442,35 @@ class ProjectJava extends Project<ProjectJava> {
             runCompile(targetJavaVersion);
             BuildLog.println("Compile success");
 
-            if (!temporary && this.version != null) {
+            if (!temporary && this.version != null && !BuildPlan.isEnabled()) {
                 // only save the version info + files if we are NOT temporary
                 // update the version BEFORE creating the jar!
                 this.version.save();
             }
 
             if (this.jarable != null) {
-                this.jarable.buildJar();
+                this.jarable.prepareJar();
             }
 
-            // calculate the hash of all the files in the source path
-            saveChecksums();
+            final File crossCompileBuilt = crossCompatBuiltFile;
 
-            // save our dependencies and their version info
-            saveDependencyVersionInfo();
+            // cross-compiled classes are not in the staging dir (dependents would not see them), and temp projects are used right away
+            if (this.buildOptions.compiler.pipeline && this.jarable != null && this.bytesClassloader == null && crossCompileBuilt == null &&
+                !this.temporary) {
 
-            if (crossCompatBuiltFile != null) {
-                FileUtil.delete(crossCompatBuiltFile);
+                BuildPipeline.submit(this, new Callable<Void>() {
+                    @Override
+                    public
+                    Void call() throws Exception {
+                        finishBuild(crossCompileBuilt);
+                        return null;
+                    }
+                });
+
+                BuildLog.println("Creating jar in the background");
+            }
+            else {
+                finishBuild(crossCompileBuilt);
             }
 
             BuildLog.println();
@@ -456,22 +486,98 @@ class ProjectJava extends Project<ProjectJava> {
         return shouldBuild;
     }
 
+    /**
+     * Creates the jar, then saves the checksums and dependency info. When pipelining, this happens in the background.
+     */
+    private
+    void finishBuild(final File crossCompileBuilt) throws IOException {
+        if (this.jarable != null) {
+            this.jarable.createJar();
+        }
+
+        if (!BuildPlan.isEnabled()) {
+            // calculate the hash of all the files in the source path
+            saveChecksums();
+
+            // save our dependencies and their version info
+            saveDependencyVersionInfo();
+        }
+
+        if (crossCompileBuilt != null) {
+            FileUtil.delete(crossCompileBuilt);
+        }
+    }
+
+    /**
+     * Runs the same checks as a build does, and records why this project (and it's dependencies) would build. Nothing is built.
+     *
+     * @return true if this project would build
+     */
+    private
+    boolean plan() throws IOException {
+        if (BuildPlan.isPlanned(this.name)) {
+            return BuildPlan.wouldBuild(this.name);
+        }
+
+        // dependencies are planned first, so the plan is in build order
+        for (Project<?> project : fullDependencyList) {
+            if (!(project instanceof ProjectJar)) {
+                project.build(targetJavaVersion);
+            }
+        }
+
+        List<String> reasons = new ArrayList<String>();
+        if (session.isForceRebuildAll()) {
+            reasons.add("build system changed");
+        }
+        if (forceRebuild) {
+            reasons.add("forced rebuild");
+        }
+
+        hasDependenciesChanged(reasons);
+
+        if (reasons.isEmpty()) {
+            verifyChecksums(reasons);
+        }
+
+        BuildPlan.record(this.name, reasons);
+        return !reasons.isEmpty();
+    }
+
     /**
      * @return true if our dependencies have changed and we need to rebuild
      */
     private
     boolean hasDependenciesChanged() throws IOException {
+        return hasDependenciesChanged(null);
+    }
+
+    /**
+     * @param reasons if not null, every reason to rebuild is added to this list (instead of stopping at the first one)
+     *
+     * @return true if our dependencies have changed and we need to rebuild
+     */
+    private
+    boolean hasDependenciesChanged(final List<String> reasons) throws IOException {
         boolean shouldBuild = false;
 
         // we want to make sure that we build IF one of our dependencies needs to build too
         for (Project<?> project : fullDependencyList) {
-            if (!shouldBuild && !(project instanceof ProjectJar)) {
+            if ((!shouldBuild || reasons != null) && !(project instanceof ProjectJar)) {
                 // if one of our dependencies has to build, so do we (don't keep checking if we have to build)
                 // also, we DO NOT check jar versions/etc here (that happens later)
 
-                // if true, this means that the files ARE the same and they have not changed
-                final boolean b = project.hash.verifyChecksums();
-                shouldBuild = !b;
+                // if true, this means that the files ARE the same and they have not changed.
+                // When pipelining, a dependency that was built this run might not have saved it's checksums yet, so it has changed
+                final boolean builtThisRun = buildOptions.compiler.pipeline && project.shouldBuild && session.built.contains(project.name);
+                final boolean b = !builtThisRun && project.hash.verifyChecksums();
+                if (!b) {
+                    shouldBuild = true;
+
+                    if (reasons != null) {
+                        reasons.add("dependency changed: " + project.name);
+                    }
+                }
             }
         }
 
@@ -482,8 +588,14 @@ class ProjectJava extends Project<ProjectJava> {
             depsWithVersionInfo.add(project.name + ":" + project.version);
         }
 
-        final String origDepsWithVersion = Builder.settings.get(this.name + ":deps", String.class);
-        shouldBuild |= !depsWithVersionInfo.toString().equals(origDepsWithVersion);
+        final String origDepsWithVersion = session.getSettings().get(this.name + ":deps", String.class);
+        if (!depsWithVersionInfo.toString().equals(origDepsWithVersion)) {
+            shouldBuild = true;
+
+            if (reasons != null) {
+                reasons.add(origDepsWithVersion == null ? "never built" : "dependencies or their versions changed");
+            }
+        }
 
         return shouldBuild;
     }
@@ -578,10 +690,11 @@ class ProjectJava extends Project<ProjectJava> {
             throw new RuntimeException("No compiler available. Ensure you are running from a JDK, and not a JRE.");
         }
 
-        if (this.classPaths != null && !this.classPaths.isEmpty()) {
+        final String classPath = getCompileClassPath();
+        if (!classPath.isEmpty()) {
             args.add("-classpath");
-            // System.err.println("CP " + this.classPaths.toString(File.pathSeparator));
-            StringBuilder cp = new StringBuilder(this.classPaths.toString(File.pathSeparator));
+            // System.err.println("CP " + classPath);
+            StringBuilder cp = new StringBuilder(classPath);
             String javaLibPath = System.getProperty("java.home") + File.separator + "lib" + File.separator;
 
             // have to try to load the JCE to the classpath (it is not always included)
@@ -601,9 +714,9 @@ class ProjectJava extends Project<ProjectJava> {
         DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
         JavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
 
-        PrintStream error = System.err;
-        PrintStream out = System.out;
-        final StringBuilder errorsDuringCompile = new StringBuilder();
+        // anything the compiler writes (other than diagnostics) is an error. This is captured per-compile (instead of redirecting
+        // System.err/out) so that concurrent builds don't see each others output.
+        final StringWriter errorsDuringCompile = new StringWriter();
         try {
             Iterable<? extends JavaFileObject> javaFileObjectsFromFiles;
             if (this.bytesClassloader == null) {
@@ -615,41 +728,27 @@ class ProjectJava extends Project<ProjectJava> {
                 javaFileObjectsFromFiles = ((JavaMemFileManager) fileManager).getSourceFiles();
             }
 
-            // redirect OUT/ERR
-            PrintStream nullErrorStream = new PrintStream(new OutputStream() {
-                @Override
-                public
-                void write(int b) throws IOException {
-                    errorsDuringCompile.append((char)b);
-                }
-            });
-
-            System.setErr(nullErrorStream);
-            System.setOut(nullErrorStream);
-
-            compiler.getTask(null, fileManager, diagnostics, args, null, javaFileObjectsFromFiles).call();
+            compiler.getTask(errorsDuringCompile, fileManager, diagnostics, args, null, javaFileObjectsFromFiles).call();
         } finally {
             try {
                 fileManager.close();
             } catch (Exception e) {
                 e.printStackTrace();
             }
-
-            System.setErr(error);
-            System.setOut(out);
         }
 
-        if (errorsDuringCompile.length() > 0) {
-            int length = errorsDuringCompile.length() - 1;
-            if (errorsDuringCompile.charAt(length) == '\n') {
-                errorsDuringCompile.deleteCharAt(length);
-                length = errorsDuringCompile.length() - 1;
+        final StringBuffer compileErrors = errorsDuringCompile.getBuffer();
+        if (compileErrors.length() > 0) {
+            int length = compileErrors.length() - 1;
+            if (compileErrors.charAt(length) == '\n') {
+                compileErrors.deleteCharAt(length);
+                length = compileErrors.length() - 1;
 
-                if (errorsDuringCompile.charAt(length) == '\r') {
-                    errorsDuringCompile.deleteCharAt(length);
+                if (length >= 0 && compileErrors.charAt(length) == '\r') {
+                    compileErrors.deleteCharAt(length);
                 }
             }
-            RuntimeException runtimeException = new RuntimeException("Compilation error: " + errorsDuringCompile.toString());
+            RuntimeException runtimeException = new RuntimeException("Compilation error: " + compileErrors.toString());
             runtimeException.setStackTrace(new StackTraceElement[0]);
             throw runtimeException;
         }
@@ -736,6 +835,27 @@ class ProjectJava extends Project<ProjectJava> {
         }
     }
 
+    /**
+     * @return the classpath used to compile. Dependencies that are still being jar'd (in the background) are replaced by their class files.
+     */
+    private
+    String getCompileClassPath() {
+        if (this.stagedDependencies.isEmpty()) {
+            return this.classPaths == null ? "" : this.classPaths.toString(File.pathSeparator);
+        }
+
+        // the class files are first, since the jar might still be an older version
+        StringBuilder cp = new StringBuilder(this.stagedDependencies.toString(File.pathSeparator));
+        for (String path : this.classPaths.getPaths()) {
+            if (!this.pendingJars.contains(path)) {
+                cp.append(File.pathSeparator)
+                  .append(path);
+            }
+        }
+
+        return cp.toString();
+    }
+
     private static
     String getLineInfo(final Diagnostic<? extends JavaFileObject> diagnostic) {
         if (diagnostic.getLineNumber() > 0) {
@@ -847,7 +967,9 @@ class ProjectJava extends Project<ProjectJava> {
         final boolean export = buildOptions.compiler.saveBuild;
         exportToMaven = export;
 
-        if (!skippedBuild) {
+        BuildPipeline.await(this);
+
+        if (!skippedBuild && !BuildPlan.isEnabled()) {
             for (Project project : fullDependencyList) {
                 project.exportToMaven = export;
 
@@ -875,13 +997,29 @@ class ProjectJava extends Project<ProjectJava> {
      * matches the saved checksums.  If it's a temp project (and specifies a jar) the jarChecksum is ignored (so only checksums based on source code changes)
      */
     boolean verifyChecksums() throws IOException {
+        return verifyChecksums(null);
+    }
+
+    /**
+     * @param reasons if not null, the reason the checksums did not match is added to this list
+     *
+     * @see #verifyChecksums()
+     */
+    private
+    boolean verifyChecksums(final List<String> reasons) throws IOException {
         // if temporary + we override the status, we ALWAYS build it
         if (this.temporary && this.overrideTemporary) {
+            if (reasons != null) {
+                reasons.add("temporary project");
+            }
             return false;
         }
 
         boolean sourceHashesSame = hash.verifyChecksums();
         if (!sourceHashesSame) {
+            if (reasons != null) {
+                reasons.add(hash.hasSavedChecksums() ? "sources changed" : "never built");
+            }
             return false;
         }
 
@@ -895,7 +1033,7 @@ class ProjectJava extends Project<ProjectJava> {
 
         if (originalOutputFile.canRead()) {
             String jarChecksum = hash.generateChecksum(originalOutputFile);
-            String checkContents = Builder.settings.get(this.name + ":" + originalOutputFile.getAbsolutePath(), String.class);
+            String checkContents = session.getSettings().get(this.name + ":" + originalOutputFile.getAbsolutePath(), String.class);
 
             boolean outputFileGood = jarChecksum != null && jarChecksum.equals(checkContents);
 
@@ -908,15 +1046,23 @@ class ProjectJava extends Project<ProjectJava> {
 
                     // now check the src.zip file (if there was one).
                     jarChecksum = hash.generateChecksum(originalOutputFileSource);
-                    checkContents = Builder.settings.get(this.name + ":" + originalOutputFileSource.getAbsolutePath(), String.class);
+                    checkContents = session.getSettings().get(this.name + ":" + originalOutputFileSource.getAbsolutePath(), String.class);
 
-                    return jarChecksum != null && jarChecksum.equals(checkContents);
+                    boolean sourceFileGood = jarChecksum != null && jarChecksum.equals(checkContents);
+                    if (!sourceFileGood && reasons != null) {
+                        reasons.add("source zip changed");
+                    }
+                    return sourceFileGood;
                 }
             }
         }
         else {
             // output file was removed
             BuildLog.println("Output file was removed.");
+
+            if (reasons != null) {
+                reasons.add("output file was removed");
+            }
             return false;
         }
 
@@ -944,7 +1090,7 @@ class ProjectJava extends Project<ProjectJava> {
         // hash/save the jar file (if there was one)
         if (currentOutputFile.exists()) {
             String fileChecksum = hash.generateChecksum(currentOutputFile);
-            Builder.settings.save(this.name + ":" + currentOutputFile.getAbsolutePath(), fileChecksum);
+            session.getSettings().save(this.name + ":" + currentOutputFile.getAbsolutePath(), fileChecksum);
 
             if (this.jarable != null && this.jarable.includeSourceAsSeparate) {
                 final File currentOutputFileSource = this.outputFile.getSource();
@@ -952,7 +1098,7 @@ class ProjectJava extends Project<ProjectJava> {
                 // now check the src.zip file (if there was one).
                 fileChecksum = hash.generateChecksum(currentOutputFileSource);
 
-                Builder.settings.save(this.name + ":" + currentOutputFileSource.getAbsolutePath(), fileChecksum);
+                session.getSettings().save(this.name + ":" + currentOutputFileSource.getAbsolutePath(), fileChecksum);
             }
         }
     }
@@ -968,6 +1114,6 @@ class ProjectJava extends Project<ProjectJava> {
             depsWithVersionInfo.add(project.name + ":" + project.version);
         }
 
-        Builder.settings.save(this.name + ":deps", depsWithVersionInfo.toString());
+        session.getSettings().save(this.name + ":deps", depsWithVersionInfo.toString());
     }
 }
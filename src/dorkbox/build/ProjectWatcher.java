@@ -0,0 +1,364 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.build.util.BuildLog;
+import dorkbox.build.util.Hash;
+import dorkbox.build.util.wildcard.Paths;
+import dorkbox.util.FileUtil;
+import dorkbox.util.OS;
+import dorkbox.util.Sys;
+
+/**
+ * Watches the source paths, source dependencies and extra files of a project (and of all of it's dependencies), and rebuilds the
+ * affected projects when they change.
+ * <p/>
+ * When files are only modified, the already configured projects are rebuilt directly (the checksums of unchanged files are cached, so
+ * only the projects that actually changed, and the projects that depend on them, will build). When files are added or removed, the
+ * build instructions have to run again, since the source paths are globbed when the project is configured.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class ProjectWatcher {
+    public static final String WATCH_MODE = "watch";
+
+    // how long the files have to be "quiet" before we rebuild. Editors (and VCS operations) usually touch many files at once.
+    private static final long DEBOUNCE_MS = 300L;
+
+    /**
+     * Builds the instructions (which is the initial build), then watches the project(s) for changes until the process is stopped.
+     *
+     * @param projectName the name of the project to watch. If there is no project by that name, every project that was built is watched.
+     * @param instructions re-runs the build instructions, which is necessary when files are added or removed.
+     */
+    public static
+    void watch(final String projectName, final Callable<?> instructions) throws Exception {
+        // the checksums of unchanged files are remembered between builds, so checking if a project changed is cheap
+        Hash.enableCache();
+
+        ProjectWatcher watcher = new ProjectWatcher(projectName, instructions);
+        try {
+            watcher.run();
+        } finally {
+            watcher.watchService.close();
+        }
+    }
+
+
+    private final String projectName;
+    private final Callable<?> instructions;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+    // absolute file name -> projects that use that file
+    private final Map<String, Set<Project<?>>> owners = new HashMap<String, Set<Project<?>>>();
+
+    // the build session the watched projects belong to
+    private final BuildSession session = BuildSession.current();
+
+    private final String stagingDir = FileUtil.normalize(Project.STAGING).getAbsolutePath();
+    private final String settingsFile = FileUtil.normalize(session.getSettingsFile()).getAbsolutePath();
+
+    private List<Project<?>> projects;
+
+    private
+    ProjectWatcher(final String projectName, final Callable<?> instructions) throws IOException {
+        this.projectName = projectName;
+        this.instructions = instructions;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * @return the project with the watched name, or (if there is no project by that name) all of the projects that were built
+     */
+    private
+    List<Project<?>> findProjects() {
+        List<Project<?>> found = new ArrayList<Project<?>>();
+
+        List<Project<?>> projects = new ArrayList<Project<?>>();
+        synchronized (session.projects) {
+            for (Project<?> project : session.projects.values()) {
+                projects.add(project);
+            }
+        }
+
+        for (Project<?> project : projects) {
+            if (project.name.equalsIgnoreCase(projectName)) {
+                found.add(project);
+                return found;
+            }
+        }
+
+        for (Project<?> project : projects) {
+            if (project instanceof ProjectJava && !project.temporary && session.built.contains(project.name)) {
+                found.add(project);
+            }
+        }
+
+        return found;
+    }
+
+    private
+    void register() throws IOException {
+        for (WatchKey key : keys.keySet()) {
+            key.cancel();
+        }
+        keys.clear();
+        owners.clear();
+
+        this.projects = findProjects();
+
+        Set<File> dirs = new LinkedHashSet<File>();
+        for (Project<?> project : projects) {
+            addProject(project, dirs);
+
+            List<Project<?>> dependencies = project.getFullDependencyList();
+            if (dependencies != null) {
+                for (Project<?> dependency : dependencies) {
+                    addProject(dependency, dirs);
+                }
+            }
+        }
+
+        for (File dir : dirs) {
+            registerTree(dir.toPath());
+        }
+
+        BuildLog.title("Watching")
+                .println(projects.toString(), keys.size() + " directories, " + owners.size() + " files");
+    }
+
+    private
+    void addProject(final Project<?> project, final Set<File> dirs) {
+        addPaths(project, project.sourcePaths, dirs);
+        addPaths(project, project.sourceDependencies, dirs);
+        addPaths(project, project.extraFiles, dirs);
+    }
+
+    private
+    void addPaths(final Project<?> project, final Paths paths, final Set<File> dirs) {
+        for (dorkbox.build.util.wildcard.Path path : paths.get()) {
+            File file = FileUtil.normalize(path.file());
+
+            Set<Project<?>> projects = owners.get(file.getAbsolutePath());
+            if (projects == null) {
+                projects = new HashSet<Project<?>>();
+                owners.put(file.getAbsolutePath(), projects);
+            }
+            projects.add(project);
+
+            // the root of the glob is watched as well, so that we know when files are added that the glob would match
+            File root = FileUtil.normalize(path.dir);
+            if (root.isDirectory()) {
+                dirs.add(root);
+            }
+            else if (file.getParentFile() != null && file.getParentFile().isDirectory()) {
+                dirs.add(file.getParentFile());
+            }
+        }
+    }
+
+    private
+    void registerTree(final Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public
+            FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                if (isIgnored(dir.toFile()) || keys.containsValue(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * VCS dirs, editor swap/backup files and the files the build writes itself are not watched.
+     */
+    private
+    boolean isIgnored(final File file) {
+        String name = file.getName();
+        if (name.startsWith(".") || name.endsWith("~") || name.endsWith(".swp") || name.endsWith(".tmp")) {
+            return true;
+        }
+
+        String absolutePath = file.getAbsolutePath();
+        return absolutePath.startsWith(stagingDir) || absolutePath.equals(settingsFile);
+    }
+
+    private
+    void run() throws Exception {
+        register();
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Set<File> changed = new LinkedHashSet<File>();
+
+            // wait for something to change, then wait until things are quiet again
+            WatchKey key = watchService.take();
+            boolean structural = collect(key, changed);
+
+            while ((key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null) {
+                structural |= collect(key, changed);
+            }
+
+            if (!changed.isEmpty() || structural) {
+                rebuild(changed, structural);
+            }
+        }
+    }
+
+    /**
+     * @return true if files were added or removed (which means the build instructions have to run again)
+     */
+    private
+    boolean collect(final WatchKey key, final Set<File> changed) {
+        Path dir = keys.get(key);
+        boolean structural = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+
+            if (kind == OVERFLOW) {
+                // we lost events, so we don't know what changed.
+                structural = true;
+                continue;
+            }
+
+            if (dir == null) {
+                continue;
+            }
+
+            File file = dir.resolve((Path) event.context()).toFile();
+            if (isIgnored(file)) {
+                continue;
+            }
+
+            if (owners.containsKey(file.getAbsolutePath())) {
+                // editors will sometimes delete + create the file when saving it, so we check later if it still exists
+                changed.add(file);
+            }
+            else if (kind != ENTRY_MODIFY) {
+                // a new (or removed) file or directory, which might change what the globs match
+                changed.add(file);
+                structural = true;
+            }
+        }
+
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+
+        return structural;
+    }
+
+    private
+    void rebuild(final Set<File> changed, boolean structural) {
+        Set<String> affected = new LinkedHashSet<String>();
+        for (File file : changed) {
+            Set<Project<?>> projects = owners.get(file.getAbsolutePath());
+            if (projects != null) {
+                for (Project<?> project : projects) {
+                    affected.add(project.name);
+                }
+
+                if (!file.exists()) {
+                    structural = true;
+                }
+            }
+        }
+
+        BuildLog.reset();
+        BuildLog.start();
+
+        List<Object> message = new ArrayList<Object>();
+        message.add(changed.size() + " file(s) changed");
+        if (!affected.isEmpty()) {
+            message.add("Affects: " + affected);
+        }
+        BuildLog.title("Watch")
+                .println(message.toArray());
+
+        final long startTime = System.nanoTime();
+        try {
+            if (structural) {
+                BuildLog.println("Files were added or removed, running the build instructions again");
+
+                // the projects are configured again by the instructions
+                instructions.call();
+                register();
+            }
+            else {
+                session.built.clear();
+                synchronized (session.projects) {
+                    for (Project<?> project : session.projects.values()) {
+                        project.resetBuildState();
+                    }
+                }
+
+                for (Project<?> project : projects) {
+                    int targetJavaVersion = OS.javaVersion;
+                    if (project instanceof ProjectJava && ((ProjectJava) project).targetJavaVersion != null) {
+                        targetJavaVersion = ((ProjectJava) project).targetJavaVersion;
+                    }
+
+                    project.build(targetJavaVersion);
+                }
+            }
+
+            // jars might still be created in the background
+            BuildPipeline.awaitAll();
+
+            BuildLog.title("Watch")
+                    .println("Rebuilt in: " + Sys.getTimePrettyFull(System.nanoTime() - startTime), "Waiting for changes...");
+            BuildLog.finish();
+        } catch (Exception e) {
+            // we keep watching, the next change might fix the problem
+            BuildLog.title("ERROR")
+                    .println(e.getMessage());
+            BuildLog.finish_force();
+        }
+    }
+}
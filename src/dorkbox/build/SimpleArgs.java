@@ -15,10 +15,6 @@
  */
 package dorkbox.build;
 
-import dorkbox.BuildOptions;
-import dorkbox.Builder;
-import dorkbox.util.properties.PropertiesProvider;
-
 import java.io.File;
 import java.util.Arrays;
 import java.util.Date;
@@ -50,8 +46,7 @@ public class SimpleArgs {
             }
             else if (lowerCase.startsWith("settings")) {
                 String string = arg.split("=")[1];
-                BuildOptions.settings = string;
-                Builder.settings = new PropertiesProvider(new File(BuildOptions.settings));
+                BuildSession.current().setSettingsFile(new File(string));
             }
             else {
                 this.argsAsSet.add(lowerCase);
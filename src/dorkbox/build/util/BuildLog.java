@@ -17,6 +17,8 @@ package dorkbox.build.util;
 
 import java.io.PrintStream;
 
+import dorkbox.build.BuildSession;
+
 // UNICODE is from: https://en.wikipedia.org/wiki/List_of_Unicode_characters#Box_Drawing
 
 public
@@ -24,33 +26,49 @@ class BuildLog {
     private static final int TITLE_ADJUSTMENT = 2;
 
     private static final int STOCK_TITLE_WIDTH = 17;
-    private static int TITLE_WIDTH = STOCK_TITLE_WIDTH;
 
     private static final String TITLE_MESSAGE_DELIMITER = "│";
     private static final String TITLE_SEPERATOR = "─";
 
     public static BuildLog LOG = new BuildLog();
-    private static int nestedCount = 0;
-    private static int suppressCount = 0;
 
-    private static PrintStream printer = System.err;
+    /**
+     * The log state of a build session. Each session has it's own, so concurrent builds do not mess up each others nesting.
+     */
+    public static final
+    class State {
+        private int TITLE_WIDTH = STOCK_TITLE_WIDTH;
+
+        private int nestedCount = 0;
+        private int suppressCount = 0;
+
+        private PrintStream printer = System.err;
 
-    private static String title = null;
+        private String title = null;
 
-    private static StringBuilder cachedSpacer;
-    private static int cachedSpacerWidth = -1;
+        private StringBuilder cachedSpacer;
+        private int cachedSpacerWidth = -1;
 
-    private static boolean lastActionWasPrintln = true;
+        private boolean lastActionWasPrintln = true;
+    }
+
+    private static
+    State state() {
+        return BuildSession.current().getLogState();
+    }
 
     /**
      * Starts a new section in the log
      * @return
      */
-    public static synchronized
+    public static
     BuildLog start() {
-        if (suppressCount == 0) {
-            nestedCount++;
-            titleStart();
+        final State state = state();
+        synchronized (state) {
+            if (state.suppressCount == 0) {
+                state.nestedCount++;
+                titleStart(state);
+            }
         }
         return LOG;
     }
@@ -58,13 +76,16 @@ class BuildLog {
     /**
      * Closes this section of the log
      */
-    public static synchronized
+    public static
     BuildLog finish() {
-        if (suppressCount == 0) {
-            nestedCount--;
-            titleEnd();
+        final State state = state();
+        synchronized (state) {
+            if (state.suppressCount == 0) {
+                state.nestedCount--;
+                titleEnd(state);
+            }
+            state.title = null;
         }
-        title = null;
         return LOG;
     }
 
@@ -72,105 +93,134 @@ class BuildLog {
     /**
      * Resets all of the log state
      */
-    public static synchronized
+    public static
     BuildLog reset() {
-        nestedCount = 0;
-        suppressCount = 0;
+        final State state = state();
+        synchronized (state) {
+            reset(state);
+        }
+        return LOG;
+    }
+
+    private static
+    void reset(final State state) {
+        state.nestedCount = 0;
+        state.suppressCount = 0;
 
-        TITLE_WIDTH = STOCK_TITLE_WIDTH;
+        state.TITLE_WIDTH = STOCK_TITLE_WIDTH;
 
-        cachedSpacer = null;
-        title = null;
+        state.cachedSpacer = null;
+        state.title = null;
 
-        lastActionWasPrintln = true;
-        return LOG;
+        state.lastActionWasPrintln = true;
     }
 
     /**
      * Forces the "end" of this, so that there is no trailing "opening" for further log elements
      */
-    public static synchronized
+    public static
     BuildLog finish_force() {
-        if (suppressCount == 0) {
-            nestedCount--;
+        final State state = state();
+        synchronized (state) {
+            if (state.suppressCount == 0) {
+                state.nestedCount--;
+
+                String sep = TITLE_SEPERATOR;
+                StringBuilder spacerTitle = new StringBuilder(state.TITLE_WIDTH);
+                for (int i = 2; i < state.TITLE_WIDTH; i++) {
+                    spacerTitle.append(sep);
+                }
 
-            String sep = TITLE_SEPERATOR;
-            StringBuilder spacerTitle = new StringBuilder(TITLE_WIDTH);
-            for (int i = 2; i < TITLE_WIDTH; i++) {
                 spacerTitle.append(sep);
-            }
+                spacerTitle.append(sep);
+                spacerTitle.append('╯');
 
-            spacerTitle.append(sep);
-            spacerTitle.append(sep);
-            spacerTitle.append('╯');
+                state.printer.println(spacerTitle.toString());
+                state.TITLE_WIDTH -= 2;
+            }
 
-            printer.println(spacerTitle.toString());
-            TITLE_WIDTH -= 2;
+            reset(state);
         }
-
-        reset();
         return LOG;
     }
 
-    public static synchronized
+    public static
     BuildLog enable() {
-        if (suppressCount > 0) {
-            // don't let us go <0. Enable has to match disable counts to build, but if there are too many "enable", who cares
-            suppressCount--;
+        final State state = state();
+        synchronized (state) {
+            if (state.suppressCount > 0) {
+                // don't let us go <0. Enable has to match disable counts to build, but if there are too many "enable", who cares
+                state.suppressCount--;
+            }
         }
         return LOG;
     }
 
-    public static synchronized
+    public static
     BuildLog disable() {
-        suppressCount++;
+        final State state = state();
+        synchronized (state) {
+            state.suppressCount++;
+        }
         return LOG;
     }
 
-    public static synchronized
+    public static
     PrintStream getOutput() {
-        return printer;
+        final State state = state();
+        synchronized (state) {
+            return state.printer;
+        }
     }
 
-    public static synchronized
+    public static
     BuildLog setOutput(PrintStream printer) {
-        BuildLog.printer = printer;
+        final State state = state();
+        synchronized (state) {
+            state.printer = printer;
+        }
         return LOG;
     }
 
-    public static synchronized
+    public static
     int getNestedCount() {
-        return nestedCount;
+        final State state = state();
+        synchronized (state) {
+            return state.nestedCount;
+        }
     }
 
-    public static synchronized
+    public static
     BuildLog title(final String title) {
-        if (suppressCount != 0) {
-            // don't log anything.
-            return LOG;
-        }
+        final State state = state();
+        synchronized (state) {
+            if (state.suppressCount != 0) {
+                // don't log anything.
+                return LOG;
+            }
 
-        // always set the title
-        BuildLog.title = null;
+            // always set the title
+            state.title = null;
 
-        if (!lastActionWasPrintln) {
-            printer.println();
-            lastActionWasPrintln = true;
-        }
+            if (!state.lastActionWasPrintln) {
+                state.printer.println();
+                state.lastActionWasPrintln = true;
+            }
 
-        makeTitle(title);
+            makeTitle(state, title);
+        }
         return LOG;
     }
 
-    private static synchronized
-    void titleStart() {
+    private static
+    void titleStart(final State state) {
         String sep = TITLE_SEPERATOR;
 
-        boolean atBeginning = TITLE_WIDTH <= STOCK_TITLE_WIDTH;
-        TITLE_WIDTH += TITLE_ADJUSTMENT;
+        boolean atBeginning = state.TITLE_WIDTH <= STOCK_TITLE_WIDTH;
+        state.TITLE_WIDTH += TITLE_ADJUSTMENT;
 
-        StringBuilder spacerTitle = new StringBuilder(TITLE_WIDTH);
-        for (int i = 2; i < TITLE_WIDTH; i++) {
+        StringBuilder spacerTitle = new StringBuilder(state.TITLE_WIDTH);
+        for (int i = 2; i < state.TITLE_WIDTH; i++) {
             spacerTitle.append(sep);
         }
 
@@ -184,20 +234,20 @@ class BuildLog {
         spacerTitle.append(sep);
         spacerTitle.append('╮');
 
-        printer.println(spacerTitle.toString());
+        state.printer.println(spacerTitle.toString());
     }
 
     private static
-    void titleEnd() {
+    void titleEnd(final State state) {
         String sep = TITLE_SEPERATOR;
 
-        StringBuilder spacerTitle = new StringBuilder(TITLE_WIDTH);
-        for (int i = 2; i < TITLE_WIDTH; i++) {
+        StringBuilder spacerTitle = new StringBuilder(state.TITLE_WIDTH);
+        for (int i = 2; i < state.TITLE_WIDTH; i++) {
             spacerTitle.append(sep);
         }
 
-        TITLE_WIDTH -= TITLE_ADJUSTMENT;
-        boolean atBeginning = TITLE_WIDTH <= STOCK_TITLE_WIDTH;
+        state.TITLE_WIDTH -= TITLE_ADJUSTMENT;
+        boolean atBeginning = state.TITLE_WIDTH <= STOCK_TITLE_WIDTH;
 
         if (atBeginning) {
             spacerTitle.append(sep);
@@ -209,12 +259,12 @@ class BuildLog {
         spacerTitle.append(sep);
         spacerTitle.append('╯');
 
-        printer.println(spacerTitle.toString());
+        state.printer.println(spacerTitle.toString());
 
 
     }
 
-    public static synchronized
+    public static
     BuildLog println() {
         println((String) null);
         return LOG;
@@ -224,35 +274,36 @@ class BuildLog {
      * Creates everything in front of the message section, so that our "message" can be appended to each log entry if desired
      */
     private static
-    void makeTitle(final String title) {
-        if (BuildLog.title != null) {
+    void makeTitle(final State state, final String title) {
+        if (state.title != null) {
             // title already created, use what already exists.
-            if (lastActionWasPrintln) {
-                printer.print(BuildLog.title);
+            if (state.lastActionWasPrintln) {
+                state.printer.print(state.title);
             }
 
-            lastActionWasPrintln = false;
+            state.lastActionWasPrintln = false;
             return;
         }
 
-        lastActionWasPrintln = false;
+        state.lastActionWasPrintln = false;
 
         char spacer1 = ' ';
 
-        if (cachedSpacerWidth != TITLE_WIDTH || cachedSpacer == null) {
-            cachedSpacerWidth = TITLE_WIDTH;
+        final int TITLE_WIDTH = state.TITLE_WIDTH;
+        if (state.cachedSpacerWidth != TITLE_WIDTH || state.cachedSpacer == null) {
+            state.cachedSpacerWidth = TITLE_WIDTH;
             StringBuilder spacerTitle = new StringBuilder(TITLE_WIDTH);
             for (int i = 0; i < TITLE_WIDTH; i++) {
                 spacerTitle.append(spacer1);
             }
-            cachedSpacer = spacerTitle;
+            state.cachedSpacer = spacerTitle;
         }
 
         StringBuilder titleBuilder = new StringBuilder(1024);
 
         if (title == null) {
             // no title.
-            titleBuilder.append(cachedSpacer)
+            titleBuilder.append(state.cachedSpacer)
                         .append(TITLE_MESSAGE_DELIMITER)
                         .append(spacer1);
         }
@@ -290,36 +341,44 @@ class BuildLog {
                         .append(spacer1);
         }
 
-        BuildLog.title = titleBuilder.toString();
-        printer.print(BuildLog.title);
+        state.title = titleBuilder.toString();
+        state.printer.print(state.title);
     }
 
-    public static synchronized
+    public static
     BuildLog print(Object... message) {
-        print(false, message);
+        final State state = state();
+        synchronized (state) {
+            print(state, false, message);
+        }
         return LOG;
     }
 
-    public static synchronized
+    public static
     BuildLog println(Object... message) {
-        print(true, message);
+        final State state = state();
+        synchronized (state) {
+            print(state, true, message);
+        }
         return LOG;
     }
 
     private static
-    void print(boolean newLine, Object... message) {
-        if (suppressCount != 0 ) {
+    void print(final State state, boolean newLine, Object... message) {
+        if (state.suppressCount != 0 ) {
             // don't log anything.
             return;
         }
 
+        final PrintStream printer = state.printer;
+
         // only print the title if we need to, or if we want to print a new line ONLY
-        if (lastActionWasPrintln) {
+        if (state.lastActionWasPrintln) {
             // only makes it if necessary
-            makeTitle(null);
+            makeTitle(state, null);
         }
 
-        lastActionWasPrintln = newLine;
+        state.lastActionWasPrintln = newLine;
 
         if (message == null || message.length == 0 || message[0] == null) {
             if (newLine) {
@@ -345,7 +404,7 @@ class BuildLog {
             if (newLine) {
                 for (int i = start; i < message.length; i++) {
                     // make an empty title
-                    printer.print(cachedSpacer);
+                    printer.print(state.cachedSpacer);
                     printer.print(TITLE_MESSAGE_DELIMITER);
                     printer.print(spacer1);
                     printer.print(spacer1);
@@ -373,7 +432,7 @@ class BuildLog {
                 printer.println();
             }
 
-            BuildLog.title = null;
+            state.title = null;
         }
     }
 }
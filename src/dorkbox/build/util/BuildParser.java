@@ -146,7 +146,7 @@ public class BuildParser {
 
             return data;
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         } finally {
             IO.close(fileReader);
         }
@@ -192,13 +192,13 @@ class DependencyWalker {
                 }
             }, null);
         } catch (Exception e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         } finally {
             if (in != null) {
                 try {
                     in.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    e.printStackTrace(BuildLog.getOutput());
                 }
             }
         }
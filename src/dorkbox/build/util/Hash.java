@@ -18,8 +18,8 @@ package dorkbox.build.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -27,9 +27,11 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import dorkbox.BuildOptions;
-import dorkbox.Builder;
+import dorkbox.build.BuildSession;
 import dorkbox.build.Project;
 import dorkbox.build.util.wildcard.Paths;
 import dorkbox.util.Base64Fast;
@@ -56,17 +58,29 @@ class Hash {
     };
 
 
-    // set by Project.java
-    public static boolean forceRebuildAll = false;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // fingerprint (name, size, date of every file) -> checksum. Only used when the builder stays running between builds
+    private static final int MAX_CACHE_SIZE = 10000;
+
+    // the modification date might only have a resolution of 1 second (or worse), so files that changed recently are always read
+    private static final long RECENT_CHANGE_MILLIS = 2000L;
+
+    private static final ConcurrentHashMap<String, String> checksumCache = new ConcurrentHashMap<String, String>();
+    private static volatile boolean cacheEnabled = false;
 
     private transient Paths checksumPaths = new Paths();
     private final String projectName;
     private BuildOptions buildOptions;
 
+    // where the checksums are saved
+    private final BuildSession session;
+
     public
     Hash(final String projectName, BuildOptions buildOptions) {
         this.projectName = projectName;
         this.buildOptions = buildOptions;
+        this.session = BuildSession.current();
     }
 
     /**
@@ -88,17 +102,25 @@ class Hash {
      */
     public
     boolean verifyChecksums() throws IOException {
-        if (forceRebuildAll || this.buildOptions.compiler.forceRebuild) {
+        if (this.session.isForceRebuildAll() || this.buildOptions.compiler.forceRebuild) {
             return false;
         }
 
         // check to see if our SOURCES *and check-summed files* have changed.
         String hashedContents = generateChecksums(this.checksumPaths);
-        String checkContents = Builder.settings.get(this.projectName, String.class);
+        String checkContents = this.session.getSettings().get(this.projectName, String.class);
 
         return hashedContents != null && hashedContents.equals(checkContents);
     }
 
+    /**
+     * @return true if checksums were saved before (ie: this project was built before)
+     */
+    public
+    boolean hasSavedChecksums() {
+        return this.session.getSettings().get(this.projectName, String.class) != null;
+    }
+
     /**
      * Saves the checksums for a given path
      */
@@ -106,7 +128,7 @@ class Hash {
     void saveChecksums() throws IOException {
         // hash/save the sources *and check-summed files* files
         String hashedContents = generateChecksums(this.checksumPaths);
-        Builder.settings.save(this.projectName, hashedContents);
+        this.session.getSettings().save(this.projectName, hashedContents);
     }
 
 
@@ -115,6 +137,64 @@ class Hash {
 
 
 
+    /**
+     * Remembers the checksums of files that have not changed (by their size and modification date), so that they don't have to be read
+     * again. This is only worth it when the builder stays running between builds.
+     */
+    public static
+    void enableCache() {
+        cacheEnabled = true;
+    }
+
+    /**
+     * @return the fingerprint (name, size, date and file key (inode) of every file) of the specified files, so we don't have to read
+     *         them again to know if they changed. Null if one of the files changed too recently for the date to be trusted.
+     */
+    private static
+    String fingerprint(final MessageDigest sha1, final List<String> sortedNames) {
+        sha1.reset();
+
+        long now = System.currentTimeMillis();
+
+        for (String name : sortedNames) {
+            File file = new File(name);
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                // doesn't exist (or cannot be read), the same as when it is hashed
+                continue;
+            }
+
+            if (attributes.isRegularFile() && file.canRead()) {
+                // a file that was changed twice within the resolution of the date (with the same size) would look like it didn't change
+                if (now - attributes.lastModifiedTime().toMillis() < RECENT_CHANGE_MILLIS) {
+                    return null;
+                }
+
+                String info = name + '\0' + attributes.size() + '\0' + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + '\0' +
+                              attributes.fileKey() + '\0';
+                try {
+                    sha1.update(info.getBytes("UTF-8"));
+                } catch (IOException ignored) {
+                    // will never happen, since UTF-8 is part of java.
+                }
+            }
+        }
+
+        byte[] hashBytes = sha1.digest();
+        return Base64Fast.encodeToString(hashBytes, false);
+    }
+
+    private static
+    void cache(final String fingerprint, final String checksum) {
+        if (checksumCache.size() >= MAX_CACHE_SIZE) {
+            checksumCache.clear();
+        }
+        checksumCache.put(fingerprint, checksum);
+    }
+
     /**
      * Generates checksums for the given path
      */
@@ -132,38 +212,28 @@ class Hash {
             }
 
             MessageDigest sha1 = digestThreadLocal.get();
-            sha1.reset();
 
-            FileInputStream inputStream = null;
-            try {
-                inputStream = new FileInputStream(file);
-                FileChannel channel = inputStream.getChannel();
-
-                long length = file.length();
-                if (length > Integer.MAX_VALUE) {
-                    // you could make this work with some care,
-                    // but this code does not bother.
-                    throw new IOException("File " + file.getAbsolutePath() + " is too large.");
+            String fingerprint = null;
+            if (cacheEnabled) {
+                fingerprint = fingerprint(sha1, Collections.singletonList(file.getAbsolutePath()));
+                String checksum = fingerprint == null ? null : checksumCache.get(fingerprint);
+                if (checksum != null) {
+                    return checksum;
                 }
+            }
 
-                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            sha1.reset();
 
-                int bufsize = 1024 * 8;
-                byte[] temp = new byte[bufsize];
-                int bytesRead = 0;
+            update(sha1, file, new byte[BUFFER_SIZE]);
 
-                while (bytesRead < length) {
-                    int numBytes = (int) length - bytesRead >= bufsize ? bufsize : (int) length - bytesRead;
-                    buffer.get(temp, 0, numBytes);
-                    sha1.update(temp, 0, numBytes);
-                    bytesRead += numBytes;
-                }
+            byte[] hashBytes = sha1.digest();
+            String checksum = Base64Fast.encodeToString(hashBytes, false);
 
-                byte[] hashBytes = sha1.digest();
-                return Base64Fast.encodeToString(hashBytes, false);
-            } finally {
-                IO.closeQuietly(inputStream);
+            if (fingerprint != null) {
+                cache(fingerprint, checksum);
             }
+
+            return checksum;
         }
     }
 
@@ -187,42 +257,26 @@ class Hash {
 
             // hash of all files. faster than using java to hash files
             MessageDigest sha1 = digestThreadLocal.get();
+
+            String fingerprint = null;
+            if (cacheEnabled) {
+                fingerprint = fingerprint(sha1, sortedNames);
+                String checksum = fingerprint == null ? null : checksumCache.get(fingerprint);
+                if (checksum != null) {
+                    return checksum;
+                }
+            }
+
             sha1.reset();
 
-            int bufsize = 1024 * 8;
-            byte[] temp = new byte[bufsize];
-            int bytesRead = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
 
             boolean found = false;
             for (String name : sortedNames) {
                 File file = new File(name);
                 if (file.isFile() && file.canRead()) {
                     found = true;
-                    bytesRead = 0;
-
-                    FileInputStream inputStream = null;
-                    try {
-                        inputStream = new FileInputStream(file);
-                        FileChannel channel = inputStream.getChannel();
-
-                        long length = file.length();
-                        if (length > Integer.MAX_VALUE) {
-                            // you could make this work with some care,
-                            // but this code does not bother.
-                            throw new IOException("File " + file.getAbsolutePath() + " is too large.");
-                        }
-
-                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
-
-                        while (bytesRead < length) {
-                            int numBytes = (int) length - bytesRead >= bufsize ? bufsize : (int) length - bytesRead;
-                            buffer.get(temp, 0, numBytes);
-                            sha1.update(temp, 0, numBytes);
-                            bytesRead += numBytes;
-                        }
-                    } finally {
-                        IO.closeQuietly(inputStream);
-                    }
+                    update(sha1, file, buffer);
                 }
             }
 
@@ -231,7 +285,31 @@ class Hash {
             }
 
             byte[] hashBytes = sha1.digest();
-            return Base64Fast.encodeToString(hashBytes, false);
+            String checksum = Base64Fast.encodeToString(hashBytes, false);
+
+            if (fingerprint != null) {
+                cache(fingerprint, checksum);
+            }
+
+            return checksum;
+        }
+    }
+
+    /**
+     * Hashes the file with a fixed size buffer (files of any size, without mapping them into memory)
+     */
+    private static
+    void update(final MessageDigest digest, final File file, final byte[] buffer) throws IOException {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            IO.closeQuietly(inputStream);
         }
     }
 }
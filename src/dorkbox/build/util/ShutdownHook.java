@@ -17,16 +17,18 @@ package dorkbox.build.util;
 
 import java.io.IOException;
 
-import dorkbox.Builder;
 import dorkbox.build.util.wildcard.Paths;
+import dorkbox.util.properties.PropertiesProvider;
 
 public
 class ShutdownHook implements Runnable {
     private final Paths paths;
+    private final PropertiesProvider settings;
 
     public
-    ShutdownHook(final Paths paths) {
+    ShutdownHook(final Paths paths, final PropertiesProvider settings) {
         this.paths = paths;
+        this.settings = settings;
     }
 
     @Override
@@ -36,7 +38,7 @@ class ShutdownHook implements Runnable {
             BuildLog.start();
             BuildLog.println("Saving build file checksums.");
             String hashedContents = Hash.generateChecksums(paths);
-            Builder.settings.save("BUILD", hashedContents);
+            settings.save("BUILD", hashedContents);
             BuildLog.finish();
         } catch (IOException e) {
             e.printStackTrace();
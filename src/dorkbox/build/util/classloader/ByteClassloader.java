@@ -26,6 +26,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
+import dorkbox.build.util.BuildLog;
+
 public
 class ByteClassloader extends ClassLoader {
 
@@ -94,7 +96,7 @@ class ByteClassloader extends ClassLoader {
                     domain = new ProtectionDomain(new CodeSource(info.sourceRootLocation.toURI()
                                                                                         .toURL(), (Certificate[]) null), null);
                 } catch (MalformedURLException e) {
-                    e.printStackTrace();
+                    e.printStackTrace(BuildLog.getOutput());
                 }
 
 
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import dorkbox.util.IO;
+
+/**
+ * Streaming AES-GCM encryption, where the data is split into chunks that are each encrypted (and authenticated) on their own. Only one
+ * chunk is ever in memory, no matter how large the entry is.
+ * <p/>
+ * The nonce of every chunk is the random prefix of the stream, the chunk number and a flag for the last chunk (the STREAM construction).
+ * Chunks cannot be reordered, dropped or mixed between streams, and a truncated stream fails (because the last chunk is missing).
+ * <p/>
+ * The format is: version (1 byte), chunk size (4 bytes), nonce prefix (7 bytes), then the chunks (ciphertext + 16 byte tag). Every chunk
+ * is the full chunk size, except for the last one (which can be empty).
+ * <p/>
+ * A new instance is not needed for every entry, this is thread safe.
+ */
+public
+class AesGcmStreamEncryption implements EncryptInterface {
+    private static final int VERSION = 1;
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    // the chunk size is read from the (not yet authenticated) header, so it must be limited before a buffer is allocated for it
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int PREFIX_SIZE = 7;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+
+    private final SecretKey key;
+    private final int chunkSize;
+    private final SecureRandom random = new SecureRandom();
+
+    public
+    AesGcmStreamEncryption(final SecretKey key) {
+        this(key, DEFAULT_CHUNK_SIZE);
+    }
+
+    public
+    AesGcmStreamEncryption(final SecretKey key, final int chunkSize) {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("The chunk size must be between 1 byte and " + MAX_CHUNK_SIZE + " bytes");
+        }
+
+        this.key = key;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public
+    OutputStream encrypt(final OutputStream outputStream) throws IOException {
+        byte[] prefix = new byte[PREFIX_SIZE];
+        synchronized (random) {
+            random.nextBytes(prefix);
+        }
+
+        DataOutputStream header = new DataOutputStream(outputStream);
+        header.writeByte(VERSION);
+        header.writeInt(chunkSize);
+        header.write(prefix);
+
+        return new EncryptingOutputStream(outputStream, key, prefix, chunkSize);
+    }
+
+    @Override
+    public
+    ByteArrayOutputStream encrypt(final InputStream inputStream, final int length) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length + length / chunkSize * TAG_SIZE + 64);
+        try {
+            OutputStream encryptedStream = encrypt(outputStream);
+            IO.copyStream(inputStream, encryptedStream);
+            encryptedStream.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to encrypt the data", e);
+        }
+
+        return outputStream;
+    }
+
+    /**
+     * @return the data of the stream, as it was before it was encrypted. Reading fails if the data was changed in any way.
+     */
+    public
+    InputStream decrypt(final InputStream inputStream) throws IOException {
+        DataInputStream header = new DataInputStream(inputStream);
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported encryption version: " + version);
+        }
+
+        int size = header.readInt();
+        if (size < 1 || size > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size: " + size);
+        }
+
+        byte[] prefix = new byte[PREFIX_SIZE];
+        header.readFully(prefix);
+
+        return new DecryptingInputStream(inputStream, key, prefix, size);
+    }
+
+    static
+    Cipher cipher(final int mode, final SecretKey key, final byte[] prefix, final int chunk, final boolean last) throws IOException {
+        if (chunk < 0) {
+            throw new IOException("Too many chunks in the stream");
+        }
+
+        byte[] nonce = new byte[NONCE_SIZE];
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_SIZE);
+        nonce[7] = (byte) (chunk >>> 24);
+        nonce[8] = (byte) (chunk >>> 16);
+        nonce[9] = (byte) (chunk >>> 8);
+        nonce[10] = (byte) chunk;
+        nonce[11] = (byte) (last ? 1 : 0);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create the cipher", e);
+        }
+    }
+
+
+    /**
+     * Keeps up to one chunk. A full chunk is only written once there is more data, because the last chunk is flagged.
+     */
+    private static
+    class EncryptingOutputStream extends OutputStream {
+        private final OutputStream output;
+        private final SecretKey key;
+        private final byte[] prefix;
+
+        private final byte[] chunk;
+        private int count = 0;
+        private int chunkNumber = 0;
+        private boolean closed = false;
+
+        EncryptingOutputStream(final OutputStream output, final SecretKey key, final byte[] prefix, final int chunkSize) {
+            this.output = output;
+            this.key = key;
+            this.prefix = prefix;
+            this.chunk = new byte[chunkSize];
+        }
+
+        @Override
+        public
+        void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public
+        void write(final byte[] bytes, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            while (length > 0) {
+                if (count == chunk.length) {
+                    writeChunk(false);
+                }
+
+                int copy = Math.min(length, chunk.length - count);
+                System.arraycopy(bytes, offset, chunk, count, copy);
+                count += copy;
+                offset += copy;
+                length -= copy;
+            }
+        }
+
+        private
+        void writeChunk(final boolean last) throws IOException {
+            Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, prefix, chunkNumber++, last);
+            try {
+                output.write(cipher.doFinal(chunk, 0, count));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt the data", e);
+            }
+            count = 0;
+        }
+
+        @Override
+        public
+        void flush() throws IOException {
+            output.flush();
+        }
+
+        /**
+         * Writes the last chunk. The underlying stream is not closed.
+         */
+        @Override
+        public
+        void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                writeChunk(true);
+                output.flush();
+            }
+        }
+    }
+
+
+    private static
+    class DecryptingInputStream extends InputStream {
+        private final InputStream input;
+        private final SecretKey key;
+        private final byte[] prefix;
+
+        // the encrypted chunk, and one byte more (to know if it's the last chunk)
+        private final byte[] encrypted;
+        private int encryptedCount = 0;
+
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+        private int chunkNumber = 0;
+        private boolean done = false;
+
+        DecryptingInputStream(final InputStream input, final SecretKey key, final byte[] prefix, final int chunkSize) {
+            this.input = input;
+            this.key = key;
+            this.prefix = prefix;
+            this.encrypted = new byte[chunkSize + TAG_SIZE + 1];
+        }
+
+        @Override
+        public
+        int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public
+        int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            while (position == chunk.length) {
+                if (done) {
+                    return -1;
+                }
+                readChunk();
+            }
+
+            int read = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, bytes, offset, read);
+            position += read;
+            return read;
+        }
+
+        private
+        void readChunk() throws IOException {
+            // the extra byte (from last time) is the start of this chunk
+            while (encryptedCount < encrypted.length) {
+                int read = input.read(encrypted, encryptedCount, encrypted.length - encryptedCount);
+                if (read == -1) {
+                    break;
+                }
+                encryptedCount += read;
+            }
+
+            boolean last = encryptedCount < encrypted.length;
+            int size = last ? encryptedCount : encrypted.length - 1;
+            if (size < TAG_SIZE) {
+                throw new EOFException("The encrypted data is truncated");
+            }
+
+            Cipher cipher = cipher(Cipher.DECRYPT_MODE, key, prefix, chunkNumber++, last);
+            try {
+                chunk = cipher.doFinal(encrypted, 0, size);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("The encrypted data is not valid (it was changed, truncated or the key is wrong)", e);
+            }
+            position = 0;
+
+            if (last) {
+                done = true;
+                encryptedCount = 0;
+            }
+            else {
+                encrypted[0] = encrypted[encrypted.length - 1];
+                encryptedCount = 1;
+            }
+        }
+
+        @Override
+        public
+        void close() throws IOException {
+            input.close();
+        }
+    }
+}
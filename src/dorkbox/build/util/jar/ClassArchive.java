@@ -0,0 +1,551 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A pure java replacement for pack200 (which was removed from java 14+), used for {@link PackAction#Pack}.
+ * <p/>
+ * All of the entries of the jar are stored uncompressed, one after the other (so the LZMA that follows compresses the whole jar as one
+ * stream). The UTF-8 constants of the class files (names, descriptors, signatures, etc.) are shared by all of the classes, so every
+ * constant is only stored once. The constant pool of each class is also split into columns (tags, shared string references, new
+ * strings, numbers and indexes), so similar data is next to each other.
+ * <p/>
+ * Unlike pack200, this is lossless: the expanded jar has the same entries (in the same order, with the same times) and the class files
+ * are byte for byte the same. Jar signatures stay valid.
+ * <p/>
+ * Both directions stream, and only the shared strings (and one entry at a time) are kept in memory. There is no shared state, so this
+ * is safe to use from several threads at once.
+ */
+public final
+class ClassArchive {
+    public static final byte[] HEADER = {(byte) 0xCA, (byte) 0xFE, (byte) 0xC0, (byte) 0xDE};
+
+    private static final int VERSION = 1;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+    private static final int CHUNK_SIZE = 65536;
+
+    // the kind of every record
+    private static final int END = 0;
+    private static final int CLASS = 1;
+    private static final int FILE = 2;
+    private static final int DIRECTORY = 3;
+
+    // constant pool tags
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
+    private static final int CONSTANT_InvokeDynamic = 18;
+    private static final int CONSTANT_Module = 19;
+    private static final int CONSTANT_Package = 20;
+
+
+    /**
+     * The columns of one class, while it is compacted.
+     */
+    private static final
+    class Columns {
+        final ByteArrayOutputStream tags = new ByteArrayOutputStream(256);
+        final ByteArrayOutputStream strings = new ByteArrayOutputStream(1024);
+        final ByteArrayOutputStream newStrings = new ByteArrayOutputStream(1024);
+        final ByteArrayOutputStream numbers = new ByteArrayOutputStream(64);
+        final ByteArrayOutputStream indexes = new ByteArrayOutputStream(1024);
+
+        final DataOutputStream numbersOutput = new DataOutputStream(numbers);
+        final DataOutputStream indexesOutput = new DataOutputStream(indexes);
+    }
+
+
+    private
+    ClassArchive() {
+    }
+
+    /**
+     * @return true if the stream is a class archive. The stream is not moved.
+     */
+    public static
+    boolean isClassArchive(final ByteArrayInputStream input) {
+        input.mark(HEADER.length + 1);
+
+        try {
+            for (byte b : HEADER) {
+                if ((byte) input.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Compacts the jar (or zip) into a class archive. Neither stream is closed.
+     */
+    public static
+    void compact(final InputStream jarInputStream, final OutputStream outputStream) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(jarInputStream);
+        DataOutputStream output = new DataOutputStream(outputStream);
+
+        output.write(HEADER);
+        output.writeByte(VERSION);
+
+        // every UTF-8 constant that was seen so far, and it's index
+        Map<String, Integer> sharedStrings = new HashMap<String, Integer>(4096);
+        byte[] buffer = new byte[CHUNK_SIZE];
+
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            String name = entry.getName();
+
+            if (entry.isDirectory()) {
+                writeEntryHeader(output, DIRECTORY, entry);
+            }
+            else if (name.endsWith(".class")) {
+                byte[] bytes = readAll(zipInputStream, buffer);
+
+                // anything that isn't a valid class file is kept as it is
+                byte[] compacted = compactClass(bytes, sharedStrings);
+                if (compacted != null) {
+                    writeEntryHeader(output, CLASS, entry);
+                    output.write(compacted);
+                }
+                else {
+                    writeEntryHeader(output, FILE, entry);
+                    writeChunks(new ByteArrayInputStream(bytes), output, buffer);
+                }
+            }
+            else {
+                writeEntryHeader(output, FILE, entry);
+                writeChunks(zipInputStream, output, buffer);
+            }
+
+            zipInputStream.closeEntry();
+        }
+
+        output.writeByte(END);
+        output.flush();
+    }
+
+    /**
+     * Expands the class archive back into the jar. The input stream is not closed, and the jar is finished (but the output stream is
+     * not closed).
+     */
+    public static
+    void expand(final InputStream archiveInputStream, final OutputStream jarOutputStream) throws IOException {
+        DataInputStream input = new DataInputStream(archiveInputStream);
+
+        byte[] header = new byte[HEADER.length];
+        input.readFully(header);
+        for (int i = 0; i < HEADER.length; i++) {
+            if (header[i] != HEADER[i]) {
+                throw new IOException("Not a class archive");
+            }
+        }
+
+        int version = input.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported class archive version: " + version);
+        }
+
+        ZipOutputStream output = new ZipOutputStream(new NonClosingOutputStream(jarOutputStream));
+        List<byte[]> sharedStrings = new ArrayList<byte[]>(4096);
+        byte[] buffer = new byte[CHUNK_SIZE];
+
+        int kind;
+        while ((kind = input.readUnsignedByte()) != END) {
+            ZipEntry entry = new ZipEntry(input.readUTF());
+            long time = input.readLong();
+            if (time != -1L) {
+                entry.setTime(time);
+            }
+
+            output.putNextEntry(entry);
+
+            switch (kind) {
+                case DIRECTORY:
+                    break;
+                case CLASS:
+                    expandClass(input, output, sharedStrings);
+                    break;
+                case FILE:
+                    readChunks(input, output, buffer);
+                    break;
+                default:
+                    throw new IOException("Corrupt class archive (unknown record " + kind + ")");
+            }
+
+            output.closeEntry();
+        }
+
+        output.finish();
+        output.close();
+    }
+
+    private static
+    void writeEntryHeader(final DataOutputStream output, final int kind, final ZipEntry entry) throws IOException {
+        output.writeByte(kind);
+        output.writeUTF(entry.getName());
+        output.writeLong(entry.getTime());
+    }
+
+    /**
+     * @return the compacted class, or null if it's not a class file that can be compacted
+     */
+    private static
+    byte[] compactClass(final byte[] bytes, final Map<String, Integer> sharedStrings) throws IOException {
+        // the shared strings are only changed once the whole class was read (a broken class must not leave anything behind)
+        Map<String, Integer> newStrings = new HashMap<String, Integer>();
+
+        Columns columns = new Columns();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        int minorVersion;
+        int majorVersion;
+        int count;
+
+        try {
+            if (input.readInt() != CLASS_MAGIC) {
+                return null;
+            }
+
+            minorVersion = input.readUnsignedShort();
+            majorVersion = input.readUnsignedShort();
+            count = input.readUnsignedShort();
+
+            for (int i = 1; i < count; i++) {
+                int tag = input.readUnsignedByte();
+                columns.tags.write(tag);
+
+                switch (tag) {
+                    case CONSTANT_Utf8: {
+                        byte[] value = new byte[input.readUnsignedShort()];
+                        input.readFully(value);
+
+                        String key = new String(value, ISO_8859_1);
+                        Integer index = sharedStrings.get(key);
+                        if (index == null) {
+                            index = newStrings.get(key);
+                        }
+
+                        if (index != null) {
+                            writeVarInt(columns.strings, index + 1);
+                        }
+                        else {
+                            newStrings.put(key, sharedStrings.size() + newStrings.size());
+
+                            // 0 means a new string (which is added to the shared strings)
+                            writeVarInt(columns.strings, 0);
+                            writeVarInt(columns.newStrings, value.length);
+                            columns.newStrings.write(value);
+                        }
+                        break;
+                    }
+                    case CONSTANT_Integer:
+                    case CONSTANT_Float:
+                        columns.numbersOutput.writeInt(input.readInt());
+                        break;
+                    case CONSTANT_Long:
+                    case CONSTANT_Double:
+                        columns.numbersOutput.writeLong(input.readLong());
+                        // these take two slots
+                        i++;
+                        break;
+                    case CONSTANT_Class:
+                    case CONSTANT_String:
+                    case CONSTANT_MethodType:
+                    case CONSTANT_Module:
+                    case CONSTANT_Package:
+                        columns.indexesOutput.writeShort(input.readUnsignedShort());
+                        break;
+                    case CONSTANT_Fieldref:
+                    case CONSTANT_Methodref:
+                    case CONSTANT_InterfaceMethodref:
+                    case CONSTANT_NameAndType:
+                    case CONSTANT_Dynamic:
+                    case CONSTANT_InvokeDynamic:
+                        columns.indexesOutput.writeShort(input.readUnsignedShort());
+                        columns.indexesOutput.writeShort(input.readUnsignedShort());
+                        break;
+                    case CONSTANT_MethodHandle:
+                        columns.indexesOutput.writeByte(input.readUnsignedByte());
+                        columns.indexesOutput.writeShort(input.readUnsignedShort());
+                        break;
+                    default:
+                        // a newer class file format than we know about
+                        return null;
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+
+        sharedStrings.putAll(newStrings);
+
+        int constantPoolEnd = bytes.length - input.available();
+
+        ByteArrayOutputStream compacted = new ByteArrayOutputStream(bytes.length);
+        DataOutputStream output = new DataOutputStream(compacted);
+
+        output.writeShort(minorVersion);
+        output.writeShort(majorVersion);
+        output.writeShort(count);
+
+        columns.tags.writeTo(output);
+        columns.strings.writeTo(output);
+        columns.newStrings.writeTo(output);
+        columns.numbers.writeTo(output);
+        columns.indexes.writeTo(output);
+
+        // the rest of the class (fields, methods, attributes) only refers to the constant pool, so it stays as it is
+        writeVarInt(output, bytes.length - constantPoolEnd);
+        output.write(bytes, constantPoolEnd, bytes.length - constantPoolEnd);
+
+        output.flush();
+        return compacted.toByteArray();
+    }
+
+    private static
+    void expandClass(final DataInputStream input, final OutputStream outputStream, final List<byte[]> sharedStrings)
+                    throws IOException {
+        int minorVersion = input.readUnsignedShort();
+        int majorVersion = input.readUnsignedShort();
+        int count = input.readUnsignedShort();
+
+        // the tags, without the empty slot after a long/double
+        ByteArrayOutputStream tagBytes = new ByteArrayOutputStream(count);
+        int stringCount = 0;
+        for (int i = 1; i < count; i++) {
+            int tag = input.readUnsignedByte();
+            tagBytes.write(tag);
+
+            if (tag == CONSTANT_Utf8) {
+                stringCount++;
+            }
+            else if (tag == CONSTANT_Long || tag == CONSTANT_Double) {
+                i++;
+            }
+        }
+        byte[] tags = tagBytes.toByteArray();
+
+        // which shared string each UTF-8 constant is. New strings (-1) are after these.
+        int[] stringIndexes = new int[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            stringIndexes[i] = readVarInt(input) - 1;
+        }
+
+        for (int i = 0; i < stringCount; i++) {
+            if (stringIndexes[i] == -1) {
+                byte[] value = new byte[readVarInt(input)];
+                input.readFully(value);
+
+                stringIndexes[i] = sharedStrings.size();
+                sharedStrings.add(value);
+            }
+            else if (stringIndexes[i] >= sharedStrings.size()) {
+                throw new IOException("Corrupt class archive (unknown string " + stringIndexes[i] + ")");
+            }
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream(8192);
+        DataOutputStream output = new DataOutputStream(classBytes);
+
+        output.writeInt(CLASS_MAGIC);
+        output.writeShort(minorVersion);
+        output.writeShort(majorVersion);
+        output.writeShort(count);
+
+        // the numbers and indexes are read in the same order (column by column) as they were written
+        List<Integer> pending = new ArrayList<Integer>();
+        int string = 0;
+        for (byte b : tags) {
+            int tag = b & 0xFF;
+            if (tag == CONSTANT_Utf8) {
+                byte[] value = sharedStrings.get(stringIndexes[string++]);
+                output.writeByte(tag);
+                output.writeShort(value.length);
+                output.write(value);
+            }
+            else {
+                pending.add(classBytes.size());
+                output.writeByte(tag);
+                // placeholder, filled in once the numbers are read
+                output.write(new byte[dataSize(tag)]);
+            }
+        }
+
+        byte[] bytes = classBytes.toByteArray();
+
+        // the numbers column, then the indexes column
+        int next = 0;
+        for (byte b : tags) {
+            int tag = b & 0xFF;
+            if (tag == CONSTANT_Utf8) {
+                continue;
+            }
+
+            int offset = pending.get(next++) + 1;
+            if (isNumber(tag)) {
+                input.readFully(bytes, offset, dataSize(tag));
+            }
+        }
+
+        next = 0;
+        for (byte b : tags) {
+            int tag = b & 0xFF;
+            if (tag == CONSTANT_Utf8) {
+                continue;
+            }
+
+            int offset = pending.get(next++) + 1;
+            if (!isNumber(tag)) {
+                input.readFully(bytes, offset, dataSize(tag));
+            }
+        }
+
+        outputStream.write(bytes);
+
+        byte[] rest = new byte[readVarInt(input)];
+        input.readFully(rest);
+        outputStream.write(rest);
+    }
+
+    private static
+    boolean isNumber(final int tag) {
+        return tag == CONSTANT_Integer || tag == CONSTANT_Float || tag == CONSTANT_Long || tag == CONSTANT_Double;
+    }
+
+    /**
+     * @return the size of the constant (without the tag). UTF-8 constants are not handled here.
+     */
+    private static
+    int dataSize(final int tag) throws IOException {
+        switch (tag) {
+            case CONSTANT_Class:
+            case CONSTANT_String:
+            case CONSTANT_MethodType:
+            case CONSTANT_Module:
+            case CONSTANT_Package:
+                return 2;
+            case CONSTANT_MethodHandle:
+                return 3;
+            case CONSTANT_Integer:
+            case CONSTANT_Float:
+            case CONSTANT_Fieldref:
+            case CONSTANT_Methodref:
+            case CONSTANT_InterfaceMethodref:
+            case CONSTANT_NameAndType:
+            case CONSTANT_Dynamic:
+            case CONSTANT_InvokeDynamic:
+                return 4;
+            case CONSTANT_Long:
+            case CONSTANT_Double:
+                return 8;
+            default:
+                throw new IOException("Corrupt class archive (unknown constant tag " + tag + ")");
+        }
+    }
+
+    /**
+     * Files are written in chunks, because their size is not always known up front (and they may be large).
+     */
+    private static
+    void writeChunks(final InputStream input, final DataOutputStream output, final byte[] buffer) throws IOException {
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            if (read > 0) {
+                writeVarInt(output, read);
+                output.write(buffer, 0, read);
+            }
+        }
+        writeVarInt(output, 0);
+    }
+
+    private static
+    void readChunks(final DataInputStream input, final OutputStream output, final byte[] buffer) throws IOException {
+        int length;
+        while ((length = readVarInt(input)) > 0) {
+            if (length > buffer.length) {
+                throw new IOException("Corrupt class archive (chunk is " + length + " bytes)");
+            }
+
+            input.readFully(buffer, 0, length);
+            output.write(buffer, 0, length);
+        }
+    }
+
+    private static
+    byte[] readAll(final InputStream input, final byte[] buffer) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(8192);
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static
+    void writeVarInt(final OutputStream output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    private static
+    int readVarInt(final DataInputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt class archive (bad number)");
+    }
+}
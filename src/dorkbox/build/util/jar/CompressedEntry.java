@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The (already compressed) data of a zip entry, as it is written into the zip file, together with the CRC and sizes for the headers.
+ * <p/>
+ * These can be created on any thread, and then written (in order) by a {@link ZipWriter}.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public final
+class CompressedEntry {
+    static final CompressedEntry EMPTY = new CompressedEntry(ZipWriter.STORED, 0L, 0L, new byte[0], 0);
+
+    // every thread has it's own deflater, since creating them is expensive (they allocate native memory)
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected
+        Deflater initialValue() {
+            // raw deflate data (no zlib header/checksum), which is what goes into a zip file
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    /**
+     * Compresses the data (raw deflate) on the calling thread.
+     *
+     * @param level the deflate compression level (0-9)
+     */
+    public static
+    CompressedEntry deflate(final byte[] data, final int offset, final int length, final int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+
+        if (length == 0) {
+            // an empty deflate stream is still 2 bytes, so empty files are stored instead.
+            return new CompressedEntry(ZipWriter.STORED, crc.getValue(), 0L, new byte[0], 0);
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        byte[] buffer = new byte[Math.max(64, length / 2 + 64)];
+        int position = 0;
+        while (!deflater.finished()) {
+            if (position == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            position += deflater.deflate(buffer, position, buffer.length - position);
+        }
+
+        // don't keep the input alive (it's a thread local)
+        deflater.reset();
+
+        return new CompressedEntry(ZipWriter.DEFLATED, crc.getValue(), length, buffer, position);
+    }
+
+    /**
+     * The data is NOT compressed, and will be written as-is.
+     */
+    public static
+    CompressedEntry store(final byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        return new CompressedEntry(ZipWriter.STORED, crc.getValue(), data.length, data, data.length);
+    }
+
+
+    final int method;
+    final long crc;
+    final long size;
+    final long compressedSize;
+
+    final byte[] data;
+
+    // the (base64) digest of the uncompressed data, if it was digested when it was compressed (see ZipWriter#setDigest)
+    String digest;
+
+    CompressedEntry(final int method, final long crc, final long size, final byte[] data, final int dataLength) {
+        this.method = method;
+        this.crc = crc;
+        this.size = size;
+        this.data = data;
+        this.compressedSize = dataLength;
+    }
+
+    void writeTo(final OutputStream output) throws IOException {
+        output.write(data, 0, (int) compressedSize);
+    }
+
+    /**
+     * @return the data as it is in the zip file (still compressed, unless it is stored)
+     */
+    byte[] getBytes() {
+        if (data.length == compressedSize) {
+            return data;
+        }
+        return Arrays.copyOf(data, (int) compressedSize);
+    }
+
+    /**
+     * @return true if the data is stored (not compressed)
+     */
+    public
+    boolean isStored() {
+        return method == ZipWriter.STORED;
+    }
+
+    /**
+     * @return the uncompressed size
+     */
+    public
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the size of the data in the zip file
+     */
+    public
+    long getCompressedSize() {
+        return compressedSize;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import dorkbox.util.IO;
+
+/**
+ * A compression codec for packaged entries (see {@link PackAction#Compress}). The id of the codec is written into the extra data of the
+ * entry (via {@link PackTask#codecId}), so that the launcher knows how to decode it.
+ * <p/>
+ * Other codecs (for example, XZ/LZMA2 or LZ4) are found with a {@link ServiceLoader} (META-INF/services/dorkbox.build.util.jar
+ * .CompressionCodec), or can be registered with {@link #register(CompressionCodec)}. The id of a codec must never change, and must be
+ * unique (1-255).
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public abstract
+class CompressionCodec {
+    /**
+     * LZMA (the best compression, but slow). This is what {@link PackAction#Lzma} uses.
+     */
+    public static final CompressionCodec LZMA = new CompressionCodec(1, "lzma") {
+        @Override
+        public
+        void encode(final long length, final InputStream input, final OutputStream output) throws IOException {
+            dorkbox.util.LZMA.encode(length, input, output);
+        }
+
+        @Override
+        public
+        void decode(final InputStream input, final OutputStream output) throws IOException {
+            dorkbox.util.LZMA.decode(input, output);
+        }
+    };
+
+    /**
+     * Deflate with the fastest level. Much faster than LZMA (for debug builds), for a bit more size.
+     */
+    public static final CompressionCodec DEFLATE_FAST = new CompressionCodec(2, "deflate") {
+        @Override
+        public
+        void encode(final long length, final InputStream input, final OutputStream output) throws IOException {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater, 65536);
+                IO.copyStream(input, deflaterOutput);
+                deflaterOutput.finish();
+                deflaterOutput.flush();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public
+        void decode(final InputStream input, final OutputStream output) throws IOException {
+            // the stream is not closed (that would close the input), so the inflater is ended here
+            Inflater inflater = new Inflater();
+            try {
+                IO.copyStream(new InflaterInputStream(input, inflater, 65536), output);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private static final Map<Integer, CompressionCodec> codecsById = new ConcurrentHashMap<Integer, CompressionCodec>();
+    private static final Map<String, CompressionCodec> codecsByName = new ConcurrentHashMap<String, CompressionCodec>();
+
+    static {
+        register(LZMA);
+        register(DEFLATE_FAST);
+
+        for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class, CompressionCodec.class.getClassLoader())) {
+            register(codec);
+        }
+    }
+
+    /**
+     * Makes the codec available by it's id and name. The id and the name must not be used by another codec, and the id of the
+     * {@link DictionaryCodec} is reserved.
+     */
+    public static synchronized
+    void register(final CompressionCodec codec) {
+        if (codec.id == DictionaryCodec.ID) {
+            throw new IllegalArgumentException("Codec id " + codec.id + " is reserved for the dictionary codec");
+        }
+
+        CompressionCodec existing = codecsById.get(codec.id);
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("Codec id " + codec.id + " is already used by '" + existing.name + "'");
+        }
+
+        existing = codecsByName.get(codec.name);
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("Codec name '" + codec.name + "' is already used by codec id " + existing.id);
+        }
+
+        codecsById.put(codec.id, codec);
+        codecsByName.put(codec.name, codec);
+    }
+
+    /**
+     * @return the codec with the id (as it was written in the extra data)
+     */
+    public static
+    CompressionCodec get(final int id) {
+        CompressionCodec codec = codecsById.get(id);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown compression codec id: " + id);
+        }
+        return codec;
+    }
+
+    /**
+     * @return the codec with the name (for example, "lzma" or "deflate")
+     */
+    public static
+    CompressionCodec get(final String name) {
+        CompressionCodec codec = codecsByName.get(name.toLowerCase(Locale.US));
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown compression codec: " + name);
+        }
+        return codec;
+    }
+
+
+    private final int id;
+    private final String name;
+
+    /**
+     * @param id the id that is written in the extra data (1-255). It must never change.
+     * @param name the name (lower-case) that is used in the build options
+     */
+    protected
+    CompressionCodec(final int id, final String name) {
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("Codec id must be between 1 and 255");
+        }
+
+        this.id = id;
+        this.name = name.toLowerCase(Locale.US);
+    }
+
+    public final
+    int getId() {
+        return id;
+    }
+
+    public final
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return what identifies the output of this codec (for the {@link PackCache}). Codecs with settings (like a dictionary) must add them.
+     */
+    public
+    String getCacheKey() {
+        return name;
+    }
+
+    /**
+     * Compresses all of the input to the output. Neither stream is closed.
+     *
+     * @param length the length of the input
+     */
+    public abstract
+    void encode(long length, InputStream input, OutputStream output) throws IOException;
+
+    /**
+     * Decompresses all of the input to the output. Neither stream is closed.
+     */
+    public abstract
+    void decode(InputStream input, OutputStream output) throws IOException;
+
+    @Override
+    public
+    String toString() {
+        return name;
+    }
+}
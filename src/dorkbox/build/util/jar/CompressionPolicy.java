@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how each entry of a zip/jar is compressed.
+ * <p/>
+ * By default, every entry is deflated with {@link JarUtil#JAR_COMPRESSION_LEVEL} (so the jar is the same as it always was). With
+ * {@link #storeCompressed()}, files that are already compressed (nested jars, images, gz/lzma payloads, etc) are STORED instead, since
+ * deflating them again only burns CPU, and often makes them bigger. The compression level can be changed per extension, and in
+ * "adaptive" mode, a sample of each entry is compressed (quickly) first, and the entry is stored if it doesn't compress well enough.
+ * <p/>
+ * With {@link #storeIfLarger()}, an entry is stored if compressing it doesn't make it smaller (except large entries, which are
+ * compressed while they are streamed into the zip).
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class CompressionPolicy {
+    /**
+     * Entries with this "level" are not compressed. This is not the same as level 0, which still deflates the entry (without
+     * compressing it).
+     */
+    public static final int STORED = -2;
+
+    /**
+     * Entries with this "level" use {@link JarUtil#JAR_COMPRESSION_LEVEL}
+     */
+    public static final int DEFAULT = -1;
+
+    /**
+     * Extensions of file types that are already compressed
+     */
+    public static final String[] COMPRESSED_EXTENSIONS = new String[] {"jar", "war", "ear", "zip", "gz", "tgz", "bz2", "xz", "lzma",
+                                                                       "7z", "pack", "png", "jpg", "jpeg", "gif", "webp", "ico", "mp3",
+                                                                       "ogg", "mp4", "woff", "woff2"};
+
+    /**
+     * @return the default policy. Everything is compressed with {@link JarUtil#JAR_COMPRESSION_LEVEL}.
+     */
+    public static
+    CompressionPolicy defaults() {
+        return new CompressionPolicy();
+    }
+
+    /**
+     * Changes the bytes of jars that contain already compressed files (so also their checksums), compared to {@link #defaults()}.
+     *
+     * @return a policy where already compressed files are stored, and entries that don't get smaller are stored. Everything else uses
+     * {@link JarUtil#JAR_COMPRESSION_LEVEL}.
+     */
+    public static
+    CompressionPolicy storeCompressed() {
+        return new CompressionPolicy().store(COMPRESSED_EXTENSIONS).storeIfLarger();
+    }
+
+    /**
+     * @return a policy where everything is compressed with the same level (no matter what it is)
+     */
+    public static
+    CompressionPolicy deflateAll(final int level) {
+        return new CompressionPolicy().level(level);
+    }
+
+
+    // lower-case extension -> level
+    private final Map<String, Integer> levels = new HashMap<String, Integer>();
+    private int defaultLevel = DEFAULT;
+
+    private boolean storeIfLarger = false;
+    private boolean adaptive = false;
+    private int sampleSize = 64 * 1024;
+    private double minimumGain = 0.05D;
+
+    public
+    CompressionPolicy() {
+    }
+
+    /**
+     * Sets the compression level of the entries that don't have a specific level for their extension.
+     *
+     * @param level 0-9, {@link #STORED} or {@link #DEFAULT}
+     */
+    public
+    CompressionPolicy level(final int level) {
+        checkLevel(level);
+        this.defaultLevel = level;
+        return this;
+    }
+
+    /**
+     * Sets the compression level of the entries with the specified extension.
+     *
+     * @param extension the extension (without the '.'), for example "png"
+     * @param level 0-9, {@link #STORED} or {@link #DEFAULT}
+     */
+    public
+    CompressionPolicy level(final String extension, final int level) {
+        checkLevel(level);
+        this.levels.put(normalize(extension), level);
+        return this;
+    }
+
+    /**
+     * The entries with the specified extensions are not compressed.
+     */
+    public
+    CompressionPolicy store(final String... extensions) {
+        for (String extension : extensions) {
+            level(extension, STORED);
+        }
+        return this;
+    }
+
+    /**
+     * Entries are stored if compressing them doesn't make them smaller.
+     */
+    public
+    CompressionPolicy storeIfLarger() {
+        this.storeIfLarger = true;
+        return this;
+    }
+
+    /**
+     * Tries to compress (quickly) the first part of every entry, and stores the entry if it doesn't get at least 'minimumGain' smaller.
+     *
+     * @param minimumGain the fraction the sample must shrink, for example 0.05 for 5%
+     */
+    public
+    CompressionPolicy adaptive(final double minimumGain) {
+        if (minimumGain < 0.0D || minimumGain >= 1.0D) {
+            throw new IllegalArgumentException("minimumGain must be between 0 and 1");
+        }
+
+        this.adaptive = true;
+        this.minimumGain = minimumGain;
+        return this;
+    }
+
+    /**
+     * How much of each entry is compressed to decide if it should be stored (in adaptive mode).
+     */
+    public
+    CompressionPolicy sampleSize(final int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("sampleSize must be > 0");
+        }
+
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    /**
+     * @return the compression level for the entry, from 0 to 9, or {@link #STORED}
+     */
+    public
+    int levelFor(final String entryName) {
+        int level = this.defaultLevel;
+
+        int index = entryName.lastIndexOf('.');
+        if (index > entryName.lastIndexOf('/')) {
+            Integer extensionLevel = this.levels.get(entryName.substring(index + 1).toLowerCase(Locale.US));
+            if (extensionLevel != null) {
+                level = extensionLevel;
+            }
+        }
+
+        if (level == DEFAULT) {
+            return JarUtil.JAR_COMPRESSION_LEVEL;
+        }
+        return level;
+    }
+
+    /**
+     * Compresses the entry data (on the calling thread) according to this policy.
+     */
+    public
+    CompressedEntry compress(final String entryName, final byte[] data) {
+        int level = levelFor(entryName);
+
+        if (level == STORED || data.length == 0) {
+            return CompressedEntry.store(data);
+        }
+
+        if (this.adaptive && !compressesWell(data)) {
+            return CompressedEntry.store(data);
+        }
+
+        CompressedEntry entry = CompressedEntry.deflate(data, 0, data.length, level);
+        if (this.storeIfLarger && entry.getCompressedSize() >= data.length) {
+            return CompressedEntry.store(data);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Decides how a large entry (that is streamed, so it cannot be compressed first to see if it gets smaller) is compressed.
+     *
+     * @param sample the beginning of the entry (only read in adaptive mode)
+     *
+     * @return the compression level for the entry, or {@link #STORED}
+     */
+    int streamingLevel(final String entryName, final InputStream sample) throws IOException {
+        int level = levelFor(entryName);
+        if (level == STORED || !this.adaptive) {
+            return level;
+        }
+
+        byte[] bytes = new byte[this.sampleSize];
+        int length = 0;
+        int read;
+        while (length < bytes.length && (read = sample.read(bytes, length, bytes.length - length)) > 0) {
+            length += read;
+        }
+
+        if (length == 0 || !compressesWell(Arrays.copyOf(bytes, length))) {
+            return STORED;
+        }
+        return level;
+    }
+
+    private
+    boolean compressesWell(final byte[] data) {
+        int length = Math.min(data.length, this.sampleSize);
+
+        CompressedEntry sample = CompressedEntry.deflate(data, 0, length, Deflater.BEST_SPEED);
+        double gain = 1.0D - (double) sample.getCompressedSize() / length;
+
+        return gain >= this.minimumGain;
+    }
+
+    private static
+    String normalize(String extension) {
+        if (extension.startsWith(".")) {
+            extension = extension.substring(1);
+        }
+        return extension.toLowerCase(Locale.US);
+    }
+
+    private static
+    void checkLevel(final int level) {
+        if (level != DEFAULT && level != STORED && (level < 0 || level > 9)) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+    }
+}
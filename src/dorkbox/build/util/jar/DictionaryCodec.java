@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import dorkbox.util.IO;
+
+/**
+ * Deflate with a dictionary that was trained from the entries of the package (see {@link #train(List, int)}). Small entries (like
+ * class files) have too little data to compress well on their own, but most of their content (package names, descriptors, etc.) is in
+ * the dictionary. Inflating is also much faster than LZMA.
+ * <p/>
+ * The dictionary is stored once, in the {@link #ENTRY_NAME} entry of the jar. The launcher reads it first, and decodes the entries that
+ * have this codec id with it. Because the dictionary belongs to the jar, this codec is not in the {@link CompressionCodec} registry,
+ * and it's id is reserved.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class DictionaryCodec extends CompressionCodec {
+    public static final int ID = 3;
+    public static final String ENTRY_NAME = "META-INF/compression.dict";
+
+    // deflate can only look back 32k, so a larger dictionary is not used
+    public static final int MAX_SIZE = 32768;
+
+    // the length of the byte sequences that are counted, and the size of the pieces that the dictionary is made of
+    private static final int DMER_SIZE = 8;
+    private static final int SEGMENT_SIZE = 64;
+
+    private static final int HASH_BITS = 22;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * A piece of a sample, that can be added to the dictionary
+     */
+    private static final
+    class Segment {
+        final byte[] sample;
+        final int start;
+        final int end;
+        long score;
+
+        Segment(final byte[] sample, final int start, final int end) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+
+    private final byte[] dictionary;
+    private final String cacheKey;
+
+    public
+    DictionaryCodec(final byte[] dictionary) {
+        super(ID, "deflate-dictionary");
+
+        if (dictionary.length == 0 || dictionary.length > MAX_SIZE) {
+            throw new IllegalArgumentException("The dictionary must be 1 - " + MAX_SIZE + " bytes");
+        }
+
+        this.dictionary = dictionary;
+        this.cacheKey = getName() + ':' + sha256(dictionary);
+    }
+
+    /**
+     * @return the dictionary, as it is stored in the jar
+     */
+    public
+    byte[] getDictionary() {
+        return dictionary.clone();
+    }
+
+    @Override
+    public
+    String getCacheKey() {
+        return cacheKey;
+    }
+
+    @Override
+    public
+    void encode(final long length, final InputStream input, final OutputStream output) throws IOException {
+        // raw deflate (no header), so the dictionary can be set up front on both sides
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(dictionary);
+
+            DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater, 65536);
+            IO.copyStream(input, deflaterOutput);
+            deflaterOutput.finish();
+            deflaterOutput.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public
+    void decode(final InputStream input, final OutputStream output) throws IOException {
+        // the stream is not closed (that would close the input), so the inflater is ended here
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            IO.copyStream(new InflaterInputStream(input, inflater, 65536), output);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Builds a dictionary from the samples. The pieces of the samples that have the most byte sequences in common with the other samples
+     * are picked (a sequence that is already in the dictionary doesn't count again). The best pieces are at the end, because deflate
+     * is better at close matches.
+     *
+     * @param samples the content of some of the entries. The more, the better (about 100x the dictionary size is good).
+     * @param size the maximum size of the dictionary ({@link #MAX_SIZE} at most)
+     *
+     * @return the dictionary, or null if the samples have nothing in common
+     */
+    public static
+    byte[] train(final List<byte[]> samples, final int size) {
+        final int maxSize = Math.min(size, MAX_SIZE);
+
+        // how many samples each byte sequence is in (hashed, so some share a count)
+        final int[] counts = new int[1 << HASH_BITS];
+        final int[] lastSample = new int[1 << HASH_BITS];
+
+        for (int i = 0; i < samples.size(); i++) {
+            byte[] sample = samples.get(i);
+
+            for (int position = 0; position + DMER_SIZE <= sample.length; position++) {
+                int hash = hash(sample, position);
+                if (lastSample[hash] != i + 1) {
+                    lastSample[hash] = i + 1;
+                    counts[hash]++;
+                }
+            }
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>(1024, new Comparator<Segment>() {
+            @Override
+            public
+            int compare(final Segment segment1, final Segment segment2) {
+                return segment1.score < segment2.score ? 1 : (segment1.score > segment2.score ? -1 : 0);
+            }
+        });
+
+        for (byte[] sample : samples) {
+            for (int start = 0; start + DMER_SIZE <= sample.length; start += SEGMENT_SIZE) {
+                Segment segment = new Segment(sample, start, Math.min(start + SEGMENT_SIZE, sample.length));
+                segment.score = score(segment, counts);
+                if (segment.score > 0) {
+                    queue.add(segment);
+                }
+            }
+        }
+
+        // the scores only go down when a segment is picked, so a segment is only re-scored when it is at the top
+        List<Segment> picked = new ArrayList<Segment>();
+        int dictionarySize = 0;
+
+        Segment segment;
+        while (dictionarySize < maxSize && (segment = queue.poll()) != null) {
+            long score = score(segment, counts);
+            if (score == 0) {
+                continue;
+            }
+
+            Segment next = queue.peek();
+            if (next != null && score < next.score) {
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+
+            picked.add(segment);
+            dictionarySize += segment.end - segment.start;
+
+            // everything in this segment is now in the dictionary
+            for (int position = segment.start; position + DMER_SIZE <= segment.end; position++) {
+                counts[hash(segment.sample, position)] = 0;
+            }
+        }
+
+        if (picked.isEmpty()) {
+            return null;
+        }
+
+        // the best segment is at the end
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(dictionarySize);
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            Segment piece = picked.get(i);
+            dictionary.write(piece.sample, piece.start, piece.end - piece.start);
+        }
+
+        byte[] bytes = dictionary.toByteArray();
+        if (bytes.length <= maxSize) {
+            return bytes;
+        }
+
+        // the first (worst) segment may not fit all the way
+        byte[] trimmed = new byte[maxSize];
+        System.arraycopy(bytes, bytes.length - maxSize, trimmed, 0, maxSize);
+        return trimmed;
+    }
+
+    /**
+     * @return the sum of the counts of the sequences (that are in more than one sample) of the segment
+     */
+    private static
+    long score(final Segment segment, final int[] counts) {
+        long score = 0L;
+        for (int position = segment.start; position + DMER_SIZE <= segment.end; position++) {
+            int count = counts[hash(segment.sample, position)];
+            if (count > 1) {
+                score += count;
+            }
+        }
+        return score;
+    }
+
+    private static
+    int hash(final byte[] bytes, final int position) {
+        long value = 0L;
+        for (int i = 0; i < DMER_SIZE; i++) {
+            value = (value << 8) | (bytes[position + i] & 0xFF);
+        }
+
+        // fibonacci hashing
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+    }
+
+    private static
+    String sha256(final byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unable to create the digest for the dictionary", e);
+        }
+
+        byte[] hash = digest.digest(bytes);
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >>> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
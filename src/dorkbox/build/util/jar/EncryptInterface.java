@@ -15,10 +15,39 @@
  */
 package dorkbox.build.util.jar;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public interface EncryptInterface {
     /** Specify how data is to be encrypted, if specified */
     ByteArrayOutputStream encrypt(InputStream inputStream, int length);
+
+    /**
+     * Encrypts everything that is written to the returned stream, while it is written (see {@link AesGcmStreamEncryption}). Closing
+     * the returned stream finishes the encryption, but does not close the output stream.
+     * <p/>
+     * By default, this keeps all of the data in memory and then uses {@link #encrypt(InputStream, int)}, so that implementations that
+     * only have that still work.
+     */
+    default OutputStream encrypt(final OutputStream outputStream) throws IOException {
+        return new ByteArrayOutputStream(8192) {
+            private boolean closed = false;
+
+            @Override
+            public
+            void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+
+                ByteArrayOutputStream encrypted = EncryptInterface.this.encrypt(new ByteArrayInputStream(buf, 0, count), count);
+                encrypted.writeTo(outputStream);
+                outputStream.flush();
+            }
+        };
+    }
 }
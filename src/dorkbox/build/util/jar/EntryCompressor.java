@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import dorkbox.util.Base64Fast;
+
+/**
+ * Compresses files for a {@link ZipWriter} (according to the {@link CompressionPolicy}), either on the calling thread or (in parallel) on
+ * worker threads, where every worker has it's own deflater.
+ * <p/>
+ * Either way, the entries are written to the zip in the order they were added, so the zip is byte-for-byte the same.
+ * <p/>
+ * If there is a previous version of the zip, the entries that did not change (same name, size and CRC) are copied from it as-is,
+ * without compressing them again.
+ * <p/>
+ * Large files (see {@link ZipWriter#LARGE_ENTRY_SIZE}) are never read into memory. They are streamed into the zip on the calling thread.
+ * <p/>
+ * If the writer digests the entries (for signing), they are digested here as well, while the file is still in memory.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+class EntryCompressor {
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public
+        Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "Jar compression-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static
+    class Pending {
+        final String name;
+        final long time;
+        final long size;
+        final Future<CompressedEntry> future;
+
+        Pending(final String name, final long time, final long size, final Future<CompressedEntry> future) {
+            this.name = name;
+            this.time = time;
+            this.size = size;
+            this.future = future;
+        }
+    }
+
+
+    private final ZipWriter writer;
+    private final CompressionPolicy policy;
+    private final boolean parallel;
+
+    // the previous version of the zip file (or null)
+    private final ZipReader previous;
+    private final AtomicInteger reused = new AtomicInteger(0);
+
+    // how many entries (and how much uncompressed data) can be compressed ahead of the writer. Entries can be up to
+    // LARGE_ENTRY_SIZE, so the number of entries alone does not bound the memory used by the worker threads.
+    private static final int WINDOW = THREADS * 4;
+    private static final long MAX_PENDING_SIZE = 64L * 1024L * 1024L;
+
+    private final LinkedList<Pending> pending = new LinkedList<Pending>();
+    private long pendingSize = 0L;
+
+    /**
+     * @param parallel true to compress the entries on worker threads
+     */
+    EntryCompressor(final ZipWriter writer, final CompressionPolicy policy, final boolean parallel) {
+        this(writer, policy, parallel, null);
+    }
+
+    /**
+     * @param parallel true to compress the entries on worker threads
+     * @param previous the previous version of the zip file, to copy the unchanged entries from. Can be null.
+     */
+    EntryCompressor(final ZipWriter writer, final CompressionPolicy policy, final boolean parallel, final ZipReader previous) {
+        this.writer = writer;
+        this.policy = policy;
+        this.parallel = parallel;
+        this.previous = previous;
+    }
+
+    /**
+     * @return how many entries were copied from the previous version of the zip file
+     */
+    int getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Compresses the file, and writes it into the zip after the entries that were added before it.
+     */
+    void add(final String name, final long time, final File file) throws IOException {
+        long size = file.length();
+        if (size > ZipWriter.LARGE_ENTRY_SIZE) {
+            // everything before it has to be written first
+            flush();
+            addLarge(name, ZipWriter.javaToDosTime(time), file);
+            return;
+        }
+
+        if (!parallel) {
+            writer.writeEntry(name, time, compress(name, file));
+            return;
+        }
+
+        Future<CompressedEntry> future = executor.submit(new Callable<CompressedEntry>() {
+            @Override
+            public
+            CompressedEntry call() throws Exception {
+                return compress(name, file);
+            }
+        });
+
+        pending.add(new Pending(name, time, size, future));
+        pendingSize += size;
+
+        while (pending.size() >= WINDOW || pendingSize > MAX_PENDING_SIZE) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Writes all of the entries that are still being compressed. This must be called before anything else is written into the zip.
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Stops compressing the entries that were not written yet. Used when there was a problem.
+     */
+    void cancel() {
+        for (Pending entry : pending) {
+            entry.future.cancel(true);
+        }
+        pending.clear();
+        pendingSize = 0L;
+    }
+
+    private
+    void addLarge(final String name, final int dosTime, final File file) throws IOException {
+        final long size = file.length();
+        int level = streamingLevel(policy, name, file);
+
+        // the previous entry must have been written the same way: stored entries have their CRC and sizes in the local header, deflated
+        // entries are streamed (with a data descriptor). Otherwise the zip would be different from a zip that was built from scratch.
+        ZipReader.Entry entry = previous != null ? previous.getEntry(name) : null;
+        if (entry != null && (entry.getSize() != size || entry.isStored() != (level == CompressionPolicy.STORED) ||
+                              entry.hasDataDescriptor() == entry.isStored())) {
+            entry = null;
+        }
+
+        // stored entries need the CRC before the data is written
+        long crc = 0L;
+        if (level == CompressionPolicy.STORED || entry != null) {
+            crc = crc(file);
+        }
+
+        if (entry != null && entry.getCrc() == crc) {
+            reused.incrementAndGet();
+            writer.copyEntry(name, dosTime, previous, entry);
+            return;
+        }
+
+        InputStream input = new FileInputStream(file);
+        try {
+            writer.streamEntry(name, dosTime, level, crc, size, input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return how a large file is compressed while it is streamed into the zip (see {@link ZipWriter#streamEntry}), or {@link
+     * CompressionPolicy#STORED}
+     */
+    static
+    int streamingLevel(final CompressionPolicy policy, final String name, final File file) throws IOException {
+        if (!ZipWriter.canDeflateStreamed(file.length())) {
+            return CompressionPolicy.STORED;
+        }
+
+        InputStream sample = new FileInputStream(file);
+        try {
+            return policy.streamingLevel(name, sample);
+        } finally {
+            sample.close();
+        }
+    }
+
+    static
+    long crc(final File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[65536];
+
+        InputStream input = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+
+        return crc.getValue();
+    }
+
+    private
+    CompressedEntry compress(final String name, final File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        CompressedEntry compressed = null;
+        if (previous != null) {
+            ZipReader.Entry entry = previous.getEntry(name);
+
+            if (entry != null && entry.getSize() == bytes.length && isSameCompression(name, entry)) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+
+                if (crc.getValue() == entry.getCrc()) {
+                    reused.incrementAndGet();
+                    compressed = previous.readCompressed(entry);
+                }
+            }
+        }
+
+        if (compressed == null) {
+            compressed = policy.compress(name, bytes);
+        }
+
+        String algorithm = writer.getDigestAlgorithm();
+        if (algorithm != null && ZipWriter.isDigested(name)) {
+            try {
+                compressed.digest = Base64Fast.encodeToString(MessageDigest.getInstance(algorithm).digest(bytes), false);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Unable to create the digest " + algorithm, e);
+            }
+        }
+
+        return compressed;
+    }
+
+    /**
+     * The previous entry can only be copied if it was compressed the same way the policy would compress it, otherwise the zip would be
+     * different from a zip that was built from scratch.
+     */
+    private
+    boolean isSameCompression(final String name, final ZipReader.Entry entry) {
+        if (policy.levelFor(name) == CompressionPolicy.STORED) {
+            return entry.isStored();
+        }
+
+        // a stored entry might have been stored because it didn't compress well, which we only know after compressing it again.
+        return !entry.isStored();
+    }
+
+    private
+    void writeNext() throws IOException {
+        Pending entry = pending.removeFirst();
+        pendingSize -= entry.size;
+
+        CompressedEntry compressed;
+        try {
+            compressed = entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + entry.name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to compress " + entry.name, cause);
+        }
+
+        writer.writeEntry(entry.name, entry.time, compressed);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import dorkbox.build.BuildSession;
+import dorkbox.build.util.BuildLog;
+import dorkbox.util.FileUtil;
+import dorkbox.util.IO;
+
+/**
+ * Merges zip/jar files into a single file, by copying the (still compressed) data of the entries from the input files. Nothing is
+ * extracted to disk, and nothing is inflated or deflated again (unless a merge strategy needs the content).
+ * <p/>
+ * - The manifest comes from the primary file, the manifests (and signature files) of the other files are skipped.
+ * <p/>
+ * - If the same entry is in more than one file, and they are identical (same CRC and size), it is only written once. If they are
+ * different, the {@link MergeStrategy} for that path decides. By default, service files (META-INF/services/*) are concatenated, and
+ * for everything else the last one wins (the same as when everything was extracted to the same directory).
+ * <p/>
+ * - The entries are written in a fixed order (see {@link ZipNormalizer#ENTRY_ORDER}), and the parent directories of every entry exist.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class JarMerger {
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    private static
+    class Rule {
+        final Pattern pattern;
+        final MergeStrategy strategy;
+
+        Rule(final Pattern pattern, final MergeStrategy strategy) {
+            this.pattern = pattern;
+            this.strategy = strategy;
+        }
+    }
+
+    /**
+     * @return true if the entry is the signature of a signed jar (IE: META-INF/*.SF, *.DSA, *.RSA, *.EC, SIG-*)
+     */
+    static
+    boolean isSignatureFile(final String name) {
+        String upperCase = name.toUpperCase(Locale.US);
+        if (!upperCase.startsWith(JarUtil.metaInfName) || upperCase.indexOf('/', JarUtil.metaInfName.length()) != -1) {
+            return false;
+        }
+
+        return upperCase.endsWith(".SF") || upperCase.endsWith(".DSA") || upperCase.endsWith(".RSA") || upperCase.endsWith(".EC") ||
+               upperCase.startsWith(JarUtil.metaInfName + "SIG-");
+    }
+
+    /**
+     * Converts a path pattern to a regex. '**' matches anything, '*' and '?' do not match across directories.
+     */
+    private static
+    Pattern toRegex(final String pathPattern) {
+        StringBuilder regex = new StringBuilder(pathPattern.length() * 2);
+
+        for (int i = 0; i < pathPattern.length(); i++) {
+            char c = pathPattern.charAt(i);
+
+            if (c == '*') {
+                if (i + 1 < pathPattern.length() && pathPattern.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                }
+                else {
+                    regex.append("[^/]*");
+                }
+            }
+            else if (c == '?') {
+                regex.append("[^/]");
+            }
+            else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+
+    // checked from last to first, so that rules that are added later override the ones before them
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private MergeStrategy defaultStrategy = MergeStrategy.LAST_WINS;
+
+    private CompressionPolicy compressionPolicy = CompressionPolicy.defaults();
+
+    public
+    JarMerger() {
+        strategy("META-INF/services/**", MergeStrategy.CONCATENATE);
+    }
+
+    /**
+     * Sets the strategy for the entries that match the path pattern. If more than one pattern matches, the last one that was added
+     * is used.
+     *
+     * @param pathPattern the path of the entries, where '**' matches anything, and '*' or '?' match inside a directory. For example,
+     *                    "META-INF/services/**" or "**.properties"
+     */
+    public
+    JarMerger strategy(final String pathPattern, final MergeStrategy strategy) {
+        rules.add(new Rule(toRegex(pathPattern), strategy));
+        return this;
+    }
+
+    /**
+     * Sets the strategy for the entries that don't match any path pattern. By default, the last one wins.
+     */
+    public
+    JarMerger defaultStrategy(final MergeStrategy strategy) {
+        this.defaultStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * How new content (files that are not in a zip, or entries that a strategy created) is compressed.
+     */
+    public
+    JarMerger compressionPolicy(final CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+
+    /**
+     * @return the strategy for the entry
+     */
+    public
+    MergeStrategy getStrategy(final String name) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            Rule rule = rules.get(i);
+            if (rule.pattern.matcher(name).matches()) {
+                return rule.strategy;
+            }
+        }
+
+        return defaultStrategy;
+    }
+
+    /**
+     * Merges the files into the primary file.
+     *
+     * @param primaryFile the file that will contain all of the other files. It's manifest is kept.
+     * @param files the files to add. Zip/jar files have their entries added, other files are added relative to their "src" directory.
+     */
+    public
+    void merge(final File primaryFile, final List<File> files) throws IOException {
+        List<ZipReader> readers = new ArrayList<ZipReader>(files.size() + 1);
+        File tempFile = JarUtil.createTempFile(primaryFile);
+        ZipWriter output = null;
+
+        boolean success = false;
+        try {
+            // entry name -> all of the versions of that entry (in the order of the files)
+            Map<String, List<MergeInput>> entries = new HashMap<String, List<MergeInput>>();
+
+            ZipReader primary = new ZipReader(primaryFile);
+            readers.add(primary);
+            add(primary, true, entries);
+
+            for (File file : files) {
+                if (FileUtil.isZipFile(file)) {
+                    ZipReader reader = new ZipReader(file);
+                    readers.add(reader);
+                    add(reader, false, entries);
+                }
+                else {
+                    // just copy it over
+                    String relativeToDir = FileUtil.getChildRelativeToDir(file, "src").replace('\\', '/');
+                    add(relativeToDir, new MergeInput(file), entries);
+                }
+            }
+
+            addParentDirectories(entries);
+
+            List<String> names = new ArrayList<String>(entries.keySet());
+            Collections.sort(names, ZipNormalizer.ENTRY_ORDER);
+
+            output = new ZipWriter(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.setLevel(JarUtil.JAR_COMPRESSION_LEVEL);
+
+            final long buildDate = BuildSession.current().getBuildDate();
+            int duplicates = 0;
+            int conflicts = 0;
+
+            for (String name : names) {
+                List<MergeInput> inputs = entries.get(name);
+
+                if (inputs == null) {
+                    // a parent directory that didn't exist in any of the files
+                    output.writeDirectory(name, buildDate);
+                    continue;
+                }
+
+                if (inputs.size() > 1) {
+                    duplicates += inputs.size() - 1;
+
+                    List<MergeInput> different = removeIdentical(inputs);
+                    if (different.size() > 1 && !name.endsWith("/")) {
+                        conflicts++;
+                        MergeInput merged = getStrategy(name).merge(name, different);
+                        merged.writeTo(output, name, compressionPolicy);
+                        continue;
+                    }
+
+                    // the last one, like the last file wins
+                    different.get(different.size() - 1).writeTo(output, name, compressionPolicy);
+                    continue;
+                }
+
+                inputs.get(0).writeTo(output, name, compressionPolicy);
+            }
+
+            output.finish();
+            IO.close(output);
+
+            BuildLog.println("\t" + names.size() + " entries from " + (files.size() + 1) + " files (" + duplicates + " duplicates, " +
+                             conflicts + " conflicts)");
+
+            // the primary file is one of the inputs, so it has to be closed before it's replaced
+            for (ZipReader reader : readers) {
+                IO.close(reader);
+            }
+            readers.clear();
+
+            JarUtil.moveAtomically(tempFile, primaryFile);
+            success = true;
+        } finally {
+            for (ZipReader reader : readers) {
+                IO.close(reader);
+            }
+
+            if (!success) {
+                IO.close(output);
+                if (tempFile.exists() && !tempFile.delete()) {
+                    tempFile.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the inputs, without the ones that are identical (CRC and size) to one that comes after them.
+     */
+    private static
+    List<MergeInput> removeIdentical(final List<MergeInput> inputs) throws IOException {
+        List<MergeInput> different = new ArrayList<MergeInput>(inputs.size());
+
+        for (int i = 0; i < inputs.size(); i++) {
+            MergeInput input = inputs.get(i);
+
+            boolean hasIdentical = false;
+            for (int j = i + 1; j < inputs.size(); j++) {
+                if (input.isIdentical(inputs.get(j))) {
+                    hasIdentical = true;
+                    break;
+                }
+            }
+
+            if (!hasIdentical) {
+                different.add(input);
+            }
+        }
+
+        return different;
+    }
+
+    private static
+    void add(final ZipReader reader, final boolean isPrimary, final Map<String, List<MergeInput>> entries) {
+        for (ZipReader.Entry entry : reader.getEntries()) {
+            String name = entry.getName();
+
+            if (!isPrimary && (name.equalsIgnoreCase(MANIFEST_NAME) || isSignatureFile(name))) {
+                // only the primary file has a manifest. The signatures of the other files are no longer valid.
+                continue;
+            }
+
+            add(name, new MergeInput(reader, entry), entries);
+        }
+    }
+
+    private static
+    void add(final String name, final MergeInput input, final Map<String, List<MergeInput>> entries) {
+        List<MergeInput> inputs = entries.get(name);
+        if (inputs == null) {
+            inputs = new ArrayList<MergeInput>(1);
+            entries.put(name, inputs);
+        }
+        inputs.add(input);
+    }
+
+    /**
+     * Every parent directory of an entry must also be an entry (with no inputs if it's not in any of the files)
+     */
+    private static
+    void addParentDirectories(final Map<String, List<MergeInput>> entries) {
+        List<String> names = new ArrayList<String>(entries.keySet());
+
+        for (String name : names) {
+            int index = name.indexOf('/');
+            while (index != -1 && index < name.length() - 1) {
+                String parent = name.substring(0, index + 1);
+                if (!entries.containsKey(parent)) {
+                    entries.put(parent, null);
+                }
+                index = name.indexOf('/', index + 1);
+            }
+        }
+    }
+}
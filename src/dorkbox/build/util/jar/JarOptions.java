@@ -45,4 +45,36 @@ public class JarOptions {
      * Specify that all of the dates in the file should be overridden to the specified one.
      */
     public long overrideDate = -1;
+
+    /**
+     * Compress the entries on several threads. The entries are still written in the same order, so the file is exactly the same.
+     */
+    public boolean parallelCompression = false;
+
+    /**
+     * How the entries are compressed. By default, everything is compressed with {@link JarUtil#JAR_COMPRESSION_LEVEL}.
+     */
+    public CompressionPolicy compressionPolicy = CompressionPolicy.defaults();
+
+    /**
+     * Also normalize the jar with pack200 (pack + unpack), which is a second pass over the jar. This is only necessary if the jar will
+     * be pack200'd later on, and has to be exactly the same after it is unpacked again. (pack200 does not exist on newer JDKs)
+     */
+    public boolean repackWithPack200 = false;
+
+    /**
+     * Only compress the entries that changed since the output file was last created. The unchanged entries (same name, size and CRC)
+     * are copied from the previous output file without inflating and deflating them again.
+     * <p/>
+     * The result is the same as building from scratch, as long as the compression policy doesn't change between builds.
+     */
+    public boolean incremental = false;
+
+    /**
+     * Sign the jar (with a self-signed certificate) with this name. The entries are digested while they are written, and the signed
+     * manifest and signature files are put in front of them when the jar is done, so the jar is not read again for signing.
+     * <p/>
+     * null if the jar is not signed. Only used for jars.
+     */
+    public String signatureName = null;
 }
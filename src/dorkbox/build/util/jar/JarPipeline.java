@@ -0,0 +1,802 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import dorkbox.BuildOptions;
+import dorkbox.build.BuildSession;
+import dorkbox.build.util.BuildLog;
+import dorkbox.util.FileUtil;
+import dorkbox.util.IO;
+
+/**
+ * Applies several changes to a jar (after it was built) in a single pass. The jar is read once, and written once (to a temp file, which
+ * replaces the jar when everything is done), instead of reading and rewriting the whole jar for every change.
+ * <p/>
+ * The entries are written in the same order as the original jar (with their comments). Only the manifest is moved to the front, if it
+ * isn't already first. The archive comment is never written.
+ * <p/>
+ * The steps see every entry in the order they were added to the pipeline. Because {@link #packageEntries} handles every entry, it should
+ * be the last step. Entries that are added by a step (at the end of the jar) are not seen by the other steps.
+ * <p/>
+ * Steps can do the expensive part of their work on worker threads (see {@link BuildOptions.Compiler#parallelPackaging}). The results are
+ * always written in order, so the jar is the same either way.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class JarPipeline {
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // how much (uncompressed) data can be waiting to be written. This bounds the memory used by the worker threads.
+    private static final int WINDOW = THREADS * 2;
+    private static final long MAX_PENDING_SIZE = 64L * 1024L * 1024L;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public
+        Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "Jar packaging-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The result of work that was done on a worker thread, which is written into the jar (in order) by the thread that runs the pipeline
+     */
+    abstract static
+    class Write {
+        abstract
+        void writeTo(JarOutputStream output) throws IOException;
+    }
+
+    private static
+    class Pending {
+        final String name;
+        final long size;
+        final Future<Write> future;
+
+        Pending(final String name, final long size, final Future<Write> future) {
+            this.name = name;
+            this.size = size;
+            this.future = future;
+        }
+    }
+
+    /**
+     * What the steps of the pipeline have access to
+     */
+    public static final
+    class Context {
+        private final JarFile jarFile;
+        private final JarOutputStream output;
+
+        private final LinkedList<Pending> pending = new LinkedList<Pending>();
+        private long pendingSize = 0L;
+
+        Context(final JarFile jarFile, final JarOutputStream output) {
+            this.jarFile = jarFile;
+            this.output = output;
+        }
+
+        /**
+         * @return the original jar
+         */
+        public
+        JarFile getJarFile() {
+            return jarFile;
+        }
+
+        /**
+         * @return where the new jar is written. Everything that is still being worked on (by worker threads) is written first.
+         */
+        public
+        JarOutputStream getOutput() throws IOException {
+            flush();
+            return output;
+        }
+
+        /**
+         * @return the (uncompressed) content of an entry of the original jar
+         */
+        public
+        InputStream getInputStream(final JarEntry entry) throws IOException {
+            return jarFile.getInputStream(entry);
+        }
+
+        /**
+         * Copies the entry from the original jar to the new jar (including it's extra data)
+         */
+        public
+        void copy(final JarEntry entry) throws IOException {
+            flush();
+            JarUtil.writeZipEntry(entry, jarFile, output);
+        }
+
+        /**
+         * Runs the work on a worker thread. It's result is written after everything that was written (or submitted) before it.
+         *
+         * @param size how much memory the work holds on to, until it is written
+         */
+        void submit(final String name, final long size, final Callable<Write> work) throws IOException {
+            pending.add(new Pending(name, size, executor.submit(work)));
+            pendingSize += size;
+
+            while (pending.size() >= WINDOW || pendingSize > MAX_PENDING_SIZE) {
+                writeNext();
+            }
+        }
+
+        /**
+         * Writes everything that is still being worked on
+         */
+        void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        void cancel() {
+            for (Pending write : pending) {
+                write.future.cancel(true);
+            }
+            pending.clear();
+        }
+
+        private
+        void writeNext() throws IOException {
+            Pending write = pending.removeFirst();
+            pendingSize -= write.size;
+
+            Write result;
+            try {
+                result = write.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while packaging " + write.name, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Unable to package " + write.name, cause);
+            }
+
+            result.writeTo(output);
+        }
+    }
+
+
+    private final String jarName;
+    private final List<JarTransform> transforms = new ArrayList<JarTransform>();
+    private String signatureName;
+    private PackReport report;
+
+    public
+    JarPipeline(final String jarName) {
+        this.jarName = jarName;
+    }
+
+    /**
+     * Adds a custom step to the pipeline
+     */
+    public
+    JarPipeline add(final JarTransform transform) {
+        transforms.add(transform);
+        return this;
+    }
+
+    /**
+     * Adds the build date as a META-INF entry, and sets the time of all META-INF files to the build date.
+     * <p/>
+     * The timestamp is ALWAYS from the BUILD SYSTEM, not the LOCAL/REMOTE SYSTEM (which can exist with incorrect/different clocks)
+     */
+    public
+    JarPipeline addTimeStamp() {
+        return add(new JarTransform() {
+            @Override
+            public
+            boolean entry(final Context context, final JarEntry entry) throws IOException {
+                if (entry.getName().startsWith(JarUtil.metaInfName) && !entry.isDirectory()) {
+                    entry.setTime(BuildSession.current().getBuildDate());
+                    context.copy(entry);
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public
+            void afterMetaInf(final Context context) throws IOException {
+                JarEntry jarEntry = new JarEntry(JarUtil.metaInfName + "___" + Long.toString(BuildSession.current().getBuildDate()));
+                context.getOutput().putNextEntry(jarEntry);
+                context.getOutput().closeEntry();
+            }
+        });
+    }
+
+    /**
+     * Adds args (launcher or VM args) to the ini file. If there is no ini file, it is created.
+     */
+    public
+    JarPipeline addArgsToIni(final String... args) {
+        return add(new JarTransform() {
+            private boolean foundConfigFile = false;
+
+            @Override
+            public
+            boolean entry(final Context context, final JarEntry entry) throws IOException {
+                if (!entry.getName().equals(JarUtil.configFile)) {
+                    return false;
+                }
+
+                foundConfigFile = true;
+                JarUtil.addArgsToIniContents(entry, context.getInputStream(entry), context.getOutput(), args);
+                return true;
+            }
+
+            @Override
+            public
+            void finish(final Context context) throws IOException {
+                if (!foundConfigFile) {
+                    JarUtil.addArgsToIniContents(null, null, context.getOutput(), args);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the specified files AS REGULAR FILES to the jar. Entries with the same name are replaced.
+     */
+    public
+    JarPipeline addFiles(final BuildOptions properties, final EncryptInterface encryption, final ExtraDataInterface extraDataWriter,
+                         final Pack... filesToAdd) {
+        final PackCache cache = createCache(properties);
+        final PackReport report = createReport(properties);
+
+        return add(new JarTransform() {
+            @Override
+            public
+            boolean entry(final Context context, final JarEntry entry) throws IOException {
+                String name = entry.getName();
+
+                for (Pack pack : filesToAdd) {
+                    String destPath = pack.getDestPath();
+                    if (name.equals(destPath)) {
+                        BuildLog.println("  Replacing '" + destPath + "'");
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public
+            void finish(final Context context) throws IOException {
+                PackAction[] actionsToRemove = actionsToRemove(properties);
+                boolean release = properties.compiler.release;
+
+                for (Pack pack : filesToAdd) {
+                    CompressionCodec codec = null;
+                    if (!release) {
+                        codec = removeDebugActions(properties, pack, actionsToRemove);
+                    }
+
+                    String sourcePath = FileUtil.normalize(pack.getSourcePath()).getAbsolutePath();
+                    String destPath = pack.getDestPath();
+
+                    BuildLog.println("  ╭─ " + sourcePath, "╰───> " + destPath);
+
+                    InputStream inputStream;
+                    long length = 0L;
+                    long time = 0L;
+                    JarEntry entry = new JarEntry(destPath);
+                    if (sourcePath != null) {
+                        File fileToAdd = new File(sourcePath);
+                        time = fileToAdd.lastModified();
+                        entry.setTime(time);
+                        inputStream = new FileInputStream(fileToAdd);
+                        length = fileToAdd.length();
+                    }
+                    else {
+                        inputStream = new ByteArrayInputStream(new byte[0]);
+                    }
+
+                    PackTask task = new PackTask(pack, inputStream);
+                    task.codec = codec;
+                    task.time = time;
+                    task.debug = properties.compiler.debugEnabled;
+                    task.classArchive = properties.compiler.useClassArchive;
+                    task.report = report;
+                    task.length = length; // have to do this, because of how FileInputStream works.
+                    task.encryption = encryption;
+
+                    if (pack.canDo(PackAction.Extract)) {
+                        // we do this here, so that the unpack will copy over/duplicate our custom extra data field
+                        if (extraDataWriter != null) {
+                            extraDataWriter.write(entry, null);
+                        }
+
+                        JarUtil.unpackEntry(task, extraDataWriter, context.getOutput());
+                    }
+                    else {
+                        packEntry(cache, task);
+                        writePacked(context.getOutput(), entry, task, extraDataWriter);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Repackages the entries of the jar (that match one of the extensions), compressing/etc based on specific rules.
+     * <p/>
+     * Also makes sure to have our custom header (in 'extra data') written for each entry. This handles EVERY entry, so it should be the
+     * last step.
+     */
+    public
+    JarPipeline packageEntries(final BuildOptions properties, final EncryptInterface encryption, final ExtraDataInterface extraDataWriter,
+                               final List<String> fileExtensionToHandle, final Repack... specialActions) {
+        final PackCache cache = createCache(properties);
+        final PackReport report = createReport(properties);
+
+        return add(new JarTransform() {
+            private final PackAction[] actionsToRemove = actionsToRemove(properties);
+            private final int dictionarySize = properties.compiler.compressionDictionarySize;
+            private DictionaryCodec dictionary;
+
+            @Override
+            public
+            void afterMetaInf(final Context context) throws IOException {
+                if (dictionarySize <= 0) {
+                    return;
+                }
+
+                train(context);
+
+                if (dictionary != null) {
+                    JarEntry entry = new JarEntry(DictionaryCodec.ENTRY_NAME);
+                    entry.setTime(BuildSession.current().getBuildDate());
+
+                    if (extraDataWriter != null) {
+                        extraDataWriter.write(entry, null);
+                    }
+
+                    JarOutputStream output = context.getOutput();
+                    output.putNextEntry(entry);
+                    output.write(dictionary.getDictionary());
+                    output.closeEntry();
+                }
+            }
+
+            @Override
+            public
+            boolean entry(final Context context, final JarEntry entry) throws IOException {
+                String name = entry.getName();
+
+                // the dictionary is trained again (from the entries of this jar), so the old one is not kept
+                if (dictionarySize > 0 && DictionaryCodec.ENTRY_NAME.equals(name)) {
+                    return true;
+                }
+
+                // DO NOT handle manifest dir, subdirs or directories! Only handle if we match one of our extensions!
+                if (!isPackaged(entry, fileExtensionToHandle)) {
+
+                    // the extra data has to be written in the same order as the entries
+                    context.flush();
+
+                    // abusing the system -- but by doing this, we will have our extra data copied over
+                    if (extraDataWriter != null) {
+                        extraDataWriter.write(entry, null);
+                    }
+                    context.copy(entry);
+                    return true;
+                }
+
+                Repack repack = null;
+                for (Repack specialRepack : specialActions) {
+                    if (name.equals(specialRepack.getName())) {
+                        repack = specialRepack;
+                        break;
+                    }
+                }
+
+                // default is all actions.
+                if (repack == null) {
+                    repack = new Repack(name, PackAction.Package);
+                }
+
+                // undo PACK, LZMA, GZIP, and encrypt so debug/testing is faster
+                CompressionCodec codec = null;
+                if (!properties.compiler.release) {
+                    codec = removeDebugActions(properties, repack, actionsToRemove);
+                }
+
+                // every compressed entry uses the dictionary
+                if (dictionary != null && (repack.canDo(PackAction.Lzma) || repack.canDo(PackAction.Compress))) {
+                    repack.remove(PackAction.Lzma);
+                    repack.add(PackAction.Compress);
+                    codec = dictionary;
+                }
+
+                BuildLog.print(".");
+
+                // load the entry into memory
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+                InputStream is = context.getInputStream(entry);
+
+                IO.copyStream(is, baos);
+                IO.close(is);
+
+                final PackTask task = new PackTask(repack, baos.toByteArray());
+                task.codec = codec;
+                task.time = entry.getTime();
+                task.debug = properties.compiler.debugEnabled;
+                task.classArchive = properties.compiler.useClassArchive;
+                task.report = report;
+                task.encryption = encryption;
+
+                if (repack.canDo(PackAction.Extract)) {
+                    // this also writes out (and overrides) our custom extra data header
+                    JarUtil.unpackEntry(task, extraDataWriter, context.getOutput());
+                    return true;
+                }
+
+                final JarEntry destEntry = new JarEntry(name);
+                destEntry.setTime(entry.getTime());
+                destEntry.setComment(entry.getComment());
+
+                if (!properties.compiler.parallelPackaging) {
+                    packEntry(cache, task);
+                    writePacked(context.getOutput(), destEntry, task, extraDataWriter);
+                    return true;
+                }
+
+                // pack200/hash/LZMA/encrypt on a worker thread. The extra data is written (in order) with the entry.
+                context.submit(name, task.length, new Callable<Write>() {
+                    @Override
+                    public
+                    Write call() throws Exception {
+                        packEntry(cache, task);
+                        JarUtil.encryptEntry(task);
+
+                        return new Write() {
+                            @Override
+                            void writeTo(final JarOutputStream output) throws IOException {
+                                writePacked(output, destEntry, task, extraDataWriter);
+                            }
+                        };
+                    }
+                });
+                return true;
+            }
+
+            /**
+             * Trains the dictionary from an even spread of the entries that are packaged (about 100x the size of the dictionary)
+             */
+            private
+            void train(final Context context) throws IOException {
+                List<JarEntry> candidates = new ArrayList<JarEntry>();
+                long totalSize = 0L;
+
+                Enumeration<JarEntry> entries = context.getJarFile().entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (isPackaged(entry, fileExtensionToHandle)) {
+                        candidates.add(entry);
+                        totalSize += Math.max(0L, entry.getSize());
+                    }
+                }
+
+                if (candidates.isEmpty()) {
+                    return;
+                }
+
+                long budget = dictionarySize * 100L;
+                int maxSampleSize = dictionarySize * 4;
+                int step = (int) Math.max(1L, Math.min(candidates.size(), totalSize / budget));
+
+                List<byte[]> samples = new ArrayList<byte[]>();
+                long sampleSize = 0L;
+                for (int i = 0; i < candidates.size() && sampleSize < budget; i += step) {
+                    InputStream inputStream = context.getInputStream(candidates.get(i));
+                    try {
+                        // only the start of large entries
+                        byte[] sample = new byte[maxSampleSize];
+                        int length = 0;
+                        int read;
+                        while (length < sample.length && (read = inputStream.read(sample, length, sample.length - length)) != -1) {
+                            length += read;
+                        }
+
+                        byte[] bytes = new byte[length];
+                        System.arraycopy(sample, 0, bytes, 0, length);
+                        samples.add(bytes);
+                        sampleSize += length;
+                    } finally {
+                        IO.close(inputStream);
+                    }
+                }
+
+                byte[] bytes = DictionaryCodec.train(samples, dictionarySize);
+                if (bytes != null) {
+                    dictionary = new DictionaryCodec(bytes);
+                    BuildLog.println("Trained a " + bytes.length + " byte compression dictionary from " + samples.size() + " entries");
+                }
+            }
+
+            @Override
+            public
+            void finish(final Context context) {
+                BuildLog.println(".");
+
+                if (cache != null && cache.getHits() > 0) {
+                    BuildLog.println("Reused " + cache.getHits() + " packaged entries from the cache");
+                }
+            }
+        });
+    }
+
+    /**
+     * Signs the jar (with a self-signed certificate) when the other steps are done. Signing has to see the final content of the jar,
+     * so this is always the last step.
+     *
+     * @param signatureName what name will be used for signing the jar
+     */
+    public
+    JarPipeline sign(final String signatureName) {
+        this.signatureName = signatureName;
+        return this;
+    }
+
+    /**
+     * Reads the jar once, applies all of the steps, and replaces the jar with the result.
+     */
+    public
+    void run() throws IOException {
+        File jarFile = new File(jarName);
+        File tempFile = JarUtil.createTempFile(jarFile);
+
+        JarFile input = new JarFile(jarFile);
+        JarOutputStream output = null;
+        Context context = null;
+
+        boolean success = false;
+        try {
+            output = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.setLevel(JarUtil.JAR_COMPRESSION_LEVEL);
+
+            context = new Context(input, output);
+
+            // DOES NOT MESS WITH THE ORDER. The manifest is moved to the front only if it isn't already first (it can only be after the
+            // META-INF directory), because JarInputStream only finds it there.
+            List<JarEntry> entries = new ArrayList<JarEntry>();
+            int manifestIndex = -1;
+
+            Enumeration<JarEntry> enumeration = input.entries();
+            while (enumeration.hasMoreElements()) {
+                JarEntry entry = enumeration.nextElement();
+                if (entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    manifestIndex = entries.size();
+                }
+                entries.add(entry);
+            }
+
+            if (manifestIndex > 0 && !(manifestIndex == 1 && entries.get(0).getName().equals(JarUtil.metaInfName))) {
+                entries.add(0, entries.remove(manifestIndex));
+            }
+
+            boolean metaInf = true;
+            for (JarEntry entry : entries) {
+                if (metaInf && !entry.getName().startsWith(JarUtil.metaInfName)) {
+                    metaInf = false;
+                    afterMetaInf(context);
+                }
+
+                process(context, entry);
+            }
+
+            if (metaInf) {
+                afterMetaInf(context);
+            }
+
+            for (JarTransform transform : transforms) {
+                context.flush();
+                transform.finish(context);
+            }
+
+            context.flush();
+            output.finish();
+            IO.close(output);
+            input.close();
+
+            JarUtil.moveAtomically(tempFile, jarFile);
+            success = true;
+
+            if (report != null) {
+                report.write(jarFile);
+                BuildLog.println("Wrote the packaging report to " + jarFile.getPath() + ".pack-report.csv/json");
+            }
+        } finally {
+            if (!success) {
+                if (context != null) {
+                    context.cancel();
+                }
+                IO.close(output);
+                input.close();
+
+                if (tempFile.exists() && !tempFile.delete()) {
+                    tempFile.deleteOnExit();
+                }
+            }
+        }
+
+        if (signatureName != null) {
+            JarSigner.sign(jarName, signatureName);
+        }
+    }
+
+    /**
+     * Called after the META-INF entries at the start of the jar
+     */
+    private
+    void afterMetaInf(final Context context) throws IOException {
+        for (JarTransform transform : transforms) {
+            context.flush();
+            transform.afterMetaInf(context);
+        }
+    }
+
+    private
+    void process(final Context context, final JarEntry entry) throws IOException {
+        for (JarTransform transform : transforms) {
+            if (transform.entry(context, entry)) {
+                return;
+            }
+        }
+
+        context.copy(entry);
+    }
+
+    /**
+     * @return the report of this pipeline (shared by all of it's steps), or null if there is no report
+     */
+    private
+    PackReport createReport(final BuildOptions properties) {
+        if (!properties.compiler.packReport) {
+            return null;
+        }
+
+        if (report == null) {
+            report = new PackReport();
+        }
+        return report;
+    }
+
+    private static
+    PackCache createCache(final BuildOptions properties) {
+        if (properties.compiler.packCacheDir == null) {
+            return null;
+        }
+        PackCache cache = new PackCache(properties.compiler.packCacheDir, properties.compiler.packCacheMaxSize);
+        cache.prune();
+        return cache;
+    }
+
+    private static
+    void packEntry(final PackCache cache, final PackTask task) throws IOException {
+        if (cache == null) {
+            JarUtil.packEntry(task);
+        }
+        else {
+            cache.packEntry(task);
+        }
+    }
+
+    private static
+    PackAction[] actionsToRemove(final BuildOptions properties) {
+        if (properties.compiler.enableDebugSpeedImprovement) {
+            return new PackAction[] {PackAction.Pack, PackAction.Lzma, PackAction.Encrypt};
+        }
+        else {
+            return new PackAction[] {PackAction.Encrypt};
+        }
+    }
+
+    /**
+     * Removes the actions that are not done for debug builds. If there is a debug compression codec, entries that would be LZMA
+     * compressed are compressed with that codec instead.
+     *
+     * @return the codec to use for {@link PackAction#Compress}, or null
+     */
+    private static
+    CompressionCodec removeDebugActions(final BuildOptions properties, final Repack repack, final PackAction[] actionsToRemove) {
+        boolean lzma = repack.canDo(PackAction.Lzma);
+        repack.remove(actionsToRemove);
+
+        String codecName = properties.compiler.debugCompressionCodec;
+        if (!lzma || codecName == null) {
+            return null;
+        }
+
+        repack.remove(PackAction.Lzma);
+        repack.add(PackAction.Compress);
+        return CompressionCodec.get(codecName);
+    }
+
+    /**
+     * @return true if the entry is packaged by {@link #packageEntries}. Only files in the root of the jar, with one of the extensions.
+     */
+    private static
+    boolean isPackaged(final JarEntry entry, final List<String> fileExtensions) {
+        String name = entry.getName();
+        return !JarFile.MANIFEST_NAME.equals(name) && !entry.isDirectory() && name.indexOf('/') == -1 && endsWith(name, fileExtensions);
+    }
+
+    private static
+    boolean endsWith(final String name, final List<String> fileExtensions) {
+        for (String fileExtension : fileExtensions) {
+            if (name.endsWith(fileExtension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the (already packed) task into the jar, and encrypts it while it is written (if it should be)
+     */
+    private static
+    void writePacked(final JarOutputStream output, final JarEntry entry, final PackTask task, final ExtraDataInterface extraDataWriter)
+                    throws IOException {
+        if (extraDataWriter != null) {
+            extraDataWriter.write(entry, task);
+        }
+
+        if (task.report != null) {
+            // so the report only has the time of the encryption (and not of writing the jar)
+            JarUtil.encryptEntry(task);
+        }
+
+        output.putNextEntry(entry);
+        JarUtil.writePacked(task, output);
+        output.closeEntry();
+    }
+}
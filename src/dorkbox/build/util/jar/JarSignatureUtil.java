@@ -26,10 +26,16 @@ import java.security.MessageDigest;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -48,6 +54,9 @@ import dorkbox.util.IO;
 import dorkbox.util.OS;
 
 public class JarSignatureUtil {
+    // jars with less (uncompressed) data than this are digested on one thread
+    private static final long PARALLEL_DIGEST_SIZE = 4L * 1024L * 1024L;
+
     /**
      * a small helper function that will convert a manifest into an array of
      * bytes
@@ -95,6 +104,98 @@ public class JarSignatureUtil {
         return entries;
     }
 
+    /**
+     * the same as {@link #updateManifestHashes(Manifest, JarFile, MessageDigest)}, but the entries of a large jar are digested on the
+     * executor (in batches of about the same size, each with it's own message digest). The entries are in the same order either way.
+     */
+    @SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+    public static Map<String, Attributes> updateManifestHashes(Manifest manifest, final JarFile jarFile, MessageDigest messageDigest,
+                                                               ExecutorService executor) throws IOException {
+        if (executor == null) {
+            return updateManifestHashes(manifest, jarFile, messageDigest);
+        }
+
+        final List<JarEntry> jarEntries = new ArrayList<JarEntry>();
+        long totalSize = 0L;
+
+        Enumeration<JarEntry> jarElements = jarFile.entries();
+        while (jarElements.hasMoreElements()) {
+            JarEntry jarEntry = jarElements.nextElement();
+
+            if (!jarEntry.isDirectory() && !jarEntry.getName().startsWith(JarUtil.metaInfName)) {
+                jarEntries.add(jarEntry);
+                totalSize += Math.max(0L, jarEntry.getSize());
+            }
+        }
+
+        // small jars are faster on one thread
+        if (totalSize < PARALLEL_DIGEST_SIZE || jarEntries.size() < 2) {
+            return updateManifestHashes(manifest, jarFile, messageDigest);
+        }
+
+        final String algorithm = messageDigest.getAlgorithm();
+        final String[] digests = new String[jarEntries.size()];
+        long batchSize = Math.max(PARALLEL_DIGEST_SIZE / 4, totalSize / (Runtime.getRuntime().availableProcessors() * 4));
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        int start = 0;
+        while (start < jarEntries.size()) {
+            int end = start;
+            long size = 0L;
+            while (end < jarEntries.size() && (end == start || size < batchSize)) {
+                size += Math.max(0L, jarEntries.get(end).getSize());
+                end++;
+            }
+
+            final int batchStart = start;
+            final int batchEnd = end;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    MessageDigest digest = MessageDigest.getInstance(algorithm);
+
+                    for (int i = batchStart; i < batchEnd; i++) {
+                        InputStream inputStream = jarFile.getInputStream(jarEntries.get(i));
+                        digests[i] = JarUtil.updateDigest(inputStream, digest);
+                    }
+                    return null;
+                }
+            }));
+
+            start = end;
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting " + jarFile.getName(), e);
+        } catch (ExecutionException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to digest " + jarFile.getName(), cause);
+        }
+
+        Map<String, Attributes> entries = manifest.getEntries();
+        String digestName = algorithm + "-Digest";
+
+        for (int i = 0; i < digests.length; i++) {
+            Attributes attributes = new Attributes();
+            attributes.putValue(digestName, digests[i]);
+            entries.put(jarEntries.get(i).getName(), attributes);
+        }
+
+        return entries;
+    }
+
     /**
      * @return null if there is a problem with the certificate loading process.
      */
@@ -31,6 +31,7 @@ import java.security.Security;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -60,18 +61,57 @@ import dorkbox.util.crypto.CryptoX509;
 
 public final
 class JarSigner {
+    /**
+     * What a jar is signed with (the self-signed certificate, and it's key)
+     */
+    public static final
+    class SigningKey {
+        final String name;
+        final DSAPrivateKeyParameters privateKey;
+        final X509CertificateHolder certificate;
+        final String digestName;
+
+        SigningKey(final String name, final DSAPrivateKeyParameters privateKey, final X509CertificateHolder certificate,
+                   final String digestName) {
+            this.name = name;
+            this.privateKey = privateKey;
+            this.certificate = certificate;
+            this.digestName = digestName;
+        }
+
+        /**
+         * @return the digest that the entries of the jar must be digested with
+         */
+        public
+        String getDigestName() {
+            return digestName;
+        }
+    }
 
     static {
         BouncyCastleProvider provider = new BouncyCastleProvider();
         Security.addProvider(provider);
     }
 
+    // The keys are loaded (and the certificate is created) once, and shared by every jar that is signed, by every build session. This is
+    // on purpose: the key file is in the working directory of the process (which is the same for every session), the key is never
+    // changed after it is loaded, and the certificate takes a long time to create.
+    private static SigningKey sharedKey = null;
+
     private
     JarSigner() {
     }
 
     public static
     File sign(String jarName, String name) {
+        return sign(jarName, name, null);
+    }
+
+    /**
+     * @param digestExecutor if not null, the entries of large jars are digested with it (on several threads)
+     */
+    static
+    File sign(String jarName, String name, ExecutorService digestExecutor) {
 
         BuildLog.println();
         BuildLog.title("Signing JAR")
@@ -81,35 +121,52 @@ class JarSigner {
             throw new IllegalArgumentException("jarName cannot be null.");
         }
 
+        File tempFile = null;
         try {
             File jarFile = new File(jarName);
-            ByteArrayOutputStream signJarFile;
 
-            if (jarFile.isFile() && jarFile.canRead()) {
-                signJarFile = signJar(jarFile, name);
-            }
-            else {
+            if (!jarFile.isFile() || !jarFile.canRead()) {
                 throw new RuntimeException("Unable to read file: " + jarFile.getCanonicalPath());
             }
 
-            // write out the file
-            OutputStream outputStream = new FileOutputStream(jarFile);
-            signJarFile.writeTo(outputStream);
-            IO.close(outputStream);
+            // the signed jar is written to a temp file, then moved over the original. The jar is never held in memory.
+            tempFile = JarUtil.createTempFile(jarFile);
+            signJar(jarFile, createSigningKey(name), digestExecutor, new FileOutputStream(tempFile));
+            JarUtil.moveAtomically(tempFile, jarFile);
 
             return new File(jarName);
         } catch (Throwable ex) {
+            if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+
             throw new RuntimeException("Unable to sign jar file! " + ex.getMessage());
         }
     }
 
     /**
-     * the actual JAR signing method
+     * Creates the key (and certificate) that a jar is signed with. Use this with {@link ZipWriter#setDigest(String)}, so the jar can be
+     * signed while it is written.
+     * <p/>
+     * The key material is only loaded the first time, after that every jar is signed with the same key and certificate.
+     *
+     * @param name what name will be used for signing the jar
      */
-    private static
-    ByteArrayOutputStream signJar(File jarFile, String name)
-                    throws IOException, IllegalAccessException, InvocationTargetException, NoSuchMethodException, GeneralSecurityException {
+    public static
+    SigningKey createSigningKey(String name) throws IOException, GeneralSecurityException {
+        SigningKey key;
+        synchronized (JarSigner.class) {
+            if (sharedKey == null) {
+                sharedKey = loadSigningKey();
+            }
+            key = sharedKey;
+        }
+
+        return new SigningKey(name.toUpperCase(), key.privateKey, key.certificate, key.digestName);
+    }
 
+    private static
+    SigningKey loadSigningKey() throws IOException, GeneralSecurityException {
         // proper "jar signing" does not allow for ECC signatures to be used. RSA/DSA and that's it.
         // so this "self signed" cert is just that. wimpy.
         // the magic is in the uber-strong ECC key that is used internally, and also has AES keys mixed in.
@@ -136,17 +193,62 @@ class JarSigner {
                                                                                            wimpyPrivateKey,
                                                                                            wimpyPublicKey);
 
-        JarFile jar = new JarFile(jarFile.getCanonicalPath());
-
         // UNFORTUNATELY, with java6, we CANNOT do anything higher. As such, a CUSTOM signing tool will be developed,
         // which the launcher will verify on it's own.
         // FORTUNATELY, this is will produce the exact same output as if using the command line.
         String digestName = CryptoX509.Util.getDigestNameFromCert(wimpyX509CertificateHolder);
-        MessageDigest messageDigest = MessageDigest.getInstance(digestName);
 
-        // get the manifest out of the jar.
-        Manifest manifest = JarUtil.getManifestFile(jar);
+        return new SigningKey(null, wimpyPrivateKey, wimpyX509CertificateHolder, digestName);
+    }
 
+    /**
+     * Creates the signed manifest and the signature files of a jar, from the digests of it's entries (that were computed while the jar
+     * was written, see {@link ZipWriter#getDigests()}). The entries are not read again.
+     *
+     * @param manifest the manifest of the jar, or null if it doesn't have one
+     *
+     * @return the manifest, the signature file (.SF) and the signature block (.DSA). They must be the first entries of the jar.
+     */
+    static
+    byte[][] createSignatureFiles(SigningKey key, Manifest manifest, Map<String, String> digests) throws IOException {
+        BuildLog.println();
+        BuildLog.title("Signing JAR")
+                .println(key.name);
+
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance(key.digestName);
+
+            manifest = createManifest(manifest);
+
+            Map<String, Attributes> entries = manifest.getEntries();
+            String digestName = messageDigest.getAlgorithm() + "-Digest";
+            for (Map.Entry<String, String> entry : digests.entrySet()) {
+                Attributes attributes = new Attributes();
+                attributes.putValue(digestName, entry.getValue());
+                entries.put(entry.getKey(), attributes);
+            }
+
+            byte[] manifestBytes = JarSignatureUtil.serialiseManifest(manifest);
+
+            // create a NEW signature file manifest based on the supplied message digest and manifest.
+            Manifest signatureFileManifest = JarSignatureUtil.createSignatureFileManifest(messageDigest, manifest, manifestBytes);
+            byte[] signatureFileManifestBytes = JarSignatureUtil.serialiseManifest(signatureFileManifest);
+
+            byte[] signatureBlockBytes = CryptoX509.createSignature(signatureFileManifestBytes, key.certificate, key.privateKey);
+
+            return new byte[][] {manifestBytes, signatureFileManifestBytes, signatureBlockBytes};
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to sign jar file! " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the manifest, without any per-entry sections (or a new one, if there is none)
+     */
+    private static
+    Manifest createManifest(Manifest manifest) {
         // it ONLY exists if it's an "executable" jar
         if (manifest == null) {
             manifest = new Manifest();
@@ -163,10 +265,25 @@ class JarSigner {
             }
         }
 
+        return manifest;
+    }
+
+    /**
+     * the actual JAR signing method
+     */
+    private static
+    void signJar(File jarFile, SigningKey key, ExecutorService digestExecutor, OutputStream outputStream)
+                    throws IOException, IllegalAccessException, InvocationTargetException, NoSuchMethodException, GeneralSecurityException {
+
+        JarFile jar = new JarFile(jarFile.getCanonicalPath());
+        MessageDigest messageDigest = MessageDigest.getInstance(key.digestName);
+
+        // get the manifest out of the jar.
+        Manifest manifest = createManifest(JarUtil.getManifestFile(jar));
 
         // create the message digest and start updating the
         // the attributes in the manifest to contain the SHA digests
-        JarSignatureUtil.updateManifestHashes(manifest, jar, messageDigest);
+        JarSignatureUtil.updateManifestHashes(manifest, jar, messageDigest, digestExecutor);
 
         byte[] manifestBytes = JarSignatureUtil.serialiseManifest(manifest);
 
@@ -176,17 +293,12 @@ class JarSigner {
         byte[] signatureFileManifestBytes = JarSignatureUtil.serialiseManifest(signatureFileManifest);
 
 
-        byte[] signatureBlockBytes = CryptoX509.createSignature(signatureFileManifestBytes, wimpyX509CertificateHolder, wimpyPrivateKey);
+        byte[] signatureBlockBytes = CryptoX509.createSignature(signatureFileManifestBytes, key.certificate, key.privateKey);
 
-        ByteArrayOutputStream byteArrayOutputStream = JarUtil.createNewJar(jar,
-                                                                           name,
-                                                                           manifestBytes,
-                                                                           signatureFileManifestBytes,
-                                                                           signatureBlockBytes);
+        JarUtil.createNewJar(jar, key.name, manifestBytes, signatureFileManifestBytes, signatureBlockBytes, outputStream);
 
         // close the JAR file that we have been using
         jar.close();
-        return byteArrayOutputStream;
     }
 
 
@@ -216,7 +328,7 @@ class JarSigner {
 
             // check file size.
             if (fileSize > Integer.MAX_VALUE - 1) {
-                System.err.println("Corrupt wimpyKeyFile! " + wimpyKeyRawFile.getAbsolutePath() + " Creating a new one.");
+                BuildLog.getOutput().println("Corrupt wimpyKeyFile! " + wimpyKeyRawFile.getAbsolutePath() + " Creating a new one.");
 
                 // using DSA, since that is compatible with ALL java versions
                 @SuppressWarnings("deprecation")
@@ -318,12 +430,12 @@ class JarSigner {
 
             String origDigestHash = "9f5LkG90ITAMR37xxbXGXAGyaGkZL1dP7FzU8y/CL8gskIxegZTRbOn0g3ks/eCJ5jSKTX4eVZCPmA0TKj7zlw==";
             if (!digestString.equals(origDigestHash)) {
-                System.err.println("Wimpy public key bytes. Need to modify " + JarSigner.class.getSimpleName() + " and in the Launcher");
-                System.err.println(digestString);
+                BuildLog.getOutput().println("Wimpy public key bytes. Need to modify " + JarSigner.class.getSimpleName() + " and in the Launcher");
+                BuildLog.getOutput().println(digestString);
             }
 
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         }
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dorkbox.build.BuildSession;
+
+/**
+ * Signs jars on background threads, so that signing many jars does not hold up the build. Independent jars are signed at the same time,
+ * the entries of large jars are digested on several threads, and every jar is signed with the same (shared) key and certificate.
+ * <p/>
+ * The jars that are being signed belong to the build session that submitted them (see {@link BuildSession#getPendingJars()}). Anything
+ * that needs a signed jar must wait for it, with {@link #await(File)} or with {@link #awaitAll()}, which only wait for the jars of the
+ * current session.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public final
+class JarSigningService {
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // signing waits for the digests, so they cannot share the same threads
+    private static final ExecutorService signingExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public
+        Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "Jar signing-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final ExecutorService digestExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public
+        Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "Jar digesting-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private
+    JarSigningService() {
+    }
+
+    /**
+     * Creates the jar in the background (with the build session of the caller), and signs it while it is written (see {@link
+     * JarOptions#signatureName}).
+     *
+     * @return the signed jar, when it's done
+     */
+    public static
+    Future<File> submit(final JarOptions options) {
+        if (options.outputFile == null) {
+            throw new IllegalArgumentException("jarFile cannot be null.");
+        }
+        if (options.signatureName == null) {
+            throw new IllegalArgumentException("signatureName cannot be null.");
+        }
+
+        return submit(options.outputFile, new Callable<File>() {
+            @Override
+            public
+            File call() throws Exception {
+                JarUtil.jar(options);
+                return options.outputFile;
+            }
+        });
+    }
+
+    /**
+     * Signs the (already created) jar in the background (with the build session of the caller).
+     *
+     * @param jarName the jar to sign (it is replaced with the signed jar)
+     * @param name what name will be used for signing the jar
+     *
+     * @return the signed jar, when it's done
+     */
+    public static
+    Future<File> submit(final String jarName, final String name) {
+        if (jarName == null) {
+            throw new IllegalArgumentException("jarName cannot be null.");
+        }
+
+        return submit(new File(jarName), new Callable<File>() {
+            @Override
+            public
+            File call() throws Exception {
+                return JarSigner.sign(jarName, name, digestExecutor);
+            }
+        });
+    }
+
+    private static
+    Future<File> submit(final File jarFile, final Callable<File> signing) {
+        BuildSession session = BuildSession.current();
+        Future<File> future = signingExecutor.submit(session.wrap(signing));
+
+        Map<String, Future<File>> pending = session.getPendingJars();
+        synchronized (pending) {
+            pending.put(jarFile.getAbsolutePath(), future);
+        }
+
+        return future;
+    }
+
+    /**
+     * Signs the jar on the calling thread. The entries of a large jar are still digested on several threads.
+     *
+     * @param jarName the jar to sign (it is replaced with the signed jar)
+     * @param name what name will be used for signing the jar
+     */
+    public static
+    File sign(final String jarName, final String name) {
+        return JarSigner.sign(jarName, name, digestExecutor);
+    }
+
+    /**
+     * Waits for the jar to be signed, if it was submitted (by the current build session).
+     *
+     * @throws IOException if the jar could not be signed
+     */
+    public static
+    void await(final File jarFile) throws IOException {
+        Map<String, Future<File>> pending = BuildSession.current().getPendingJars();
+
+        Future<File> future;
+        synchronized (pending) {
+            future = pending.remove(jarFile.getAbsolutePath());
+        }
+
+        if (future != null) {
+            waitFor(jarFile.getAbsolutePath(), future);
+        }
+    }
+
+    /**
+     * Waits for all of the jars that were submitted (by the current build session) to be signed.
+     *
+     * @throws IOException if one of the jars could not be signed (the first failure is thrown, after everything has finished)
+     */
+    public static
+    void awaitAll() throws IOException {
+        Map<String, Future<File>> pending = BuildSession.current().getPendingJars();
+
+        List<Map.Entry<String, Future<File>>> futures;
+        synchronized (pending) {
+            futures = new ArrayList<Map.Entry<String, Future<File>>>(pending.entrySet());
+            pending.clear();
+        }
+
+        IOException exception = null;
+        for (Map.Entry<String, Future<File>> signing : futures) {
+            try {
+                waitFor(signing.getKey(), signing.getValue());
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static
+    void waitFor(final String jarName, final Future<File> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for '" + jarName + "' to be signed", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IOException("Unable to sign '" + jarName + "'", cause);
+        }
+    }
+}
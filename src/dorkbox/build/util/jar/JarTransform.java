@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.IOException;
+import java.util.jar.JarEntry;
+
+/**
+ * One step of a {@link JarPipeline}. Every step sees the entries of the jar (in order) while the jar is read and written once.
+ */
+public abstract
+class JarTransform {
+    /**
+     * Called after the META-INF entries at the start of the jar were written, before all other entries. Entries can be added here that
+     * must be at the beginning of the jar.
+     */
+    public
+    void afterMetaInf(JarPipeline.Context context) throws IOException {
+    }
+
+    /**
+     * Called for every entry of the original jar. If the entry is handled (written differently, replaced or removed), the later steps
+     * don't see it.
+     *
+     * @return true if the entry was handled by this step, false if it should be given to the next step (or copied as-is)
+     */
+    public
+    boolean entry(JarPipeline.Context context, JarEntry entry) throws IOException {
+        return false;
+    }
+
+    /**
+     * Called after all of the entries of the original jar were written. New entries can be added here.
+     */
+    public
+    void finish(JarPipeline.Context context) throws IOException {
+    }
+}
@@ -31,8 +31,12 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
@@ -59,7 +63,8 @@ import com.ice.tar.TarEntry;
 import com.ice.tar.TarInputStream;
 
 import dorkbox.BuildOptions;
-import dorkbox.Builder;
+import dorkbox.build.BuildPipeline;
+import dorkbox.build.BuildSession;
 import dorkbox.build.Project;
 import dorkbox.build.util.BuildLog;
 import dorkbox.build.util.wildcard.Paths;
@@ -67,7 +72,6 @@ import dorkbox.license.License;
 import dorkbox.util.Base64Fast;
 import dorkbox.util.FileUtil;
 import dorkbox.util.IO;
-import dorkbox.util.LZMA;
 import dorkbox.util.OS;
 
 @SuppressWarnings("unused")
@@ -106,7 +110,7 @@ class JarUtil {
                 try {
                     raf.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    e.printStackTrace(BuildLog.getOutput());
                 }
             }
         }
@@ -256,10 +260,21 @@ class JarUtil {
     ByteArrayOutputStream createNewJar(JarFile jar, String name, byte[] manifestBytes, byte[] signatureFileManifestBytes,
                                        byte[] signatureBlockBytes) throws IOException {
 
-        name = name.toUpperCase();
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        createNewJar(jar, name, manifestBytes, signatureFileManifestBytes, signatureBlockBytes, byteArrayOutputStream);
+        return byteArrayOutputStream;
+    }
+
+    /**
+     * Writes the signed jar to the output stream (which is closed when done), so that the jar does not have to fit in memory.
+     */
+    public static
+    void createNewJar(JarFile jar, String name, byte[] manifestBytes, byte[] signatureFileManifestBytes,
+                      byte[] signatureBlockBytes, OutputStream outputStream) throws IOException {
 
-        JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(byteArrayOutputStream));
+        name = name.toUpperCase();
+
+        JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(outputStream));
         jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
 
         // cannot use the jarInputStream technique here, since i'm reordering
@@ -320,8 +335,6 @@ class JarUtil {
         IO.close(jarOutputStream);
 
         jar.close();
-
-        return byteArrayOutputStream;
     }
 
     /**
@@ -421,7 +434,8 @@ class JarUtil {
 
 
     /**
-     * This will also install the specified licenses, and for JARs, this will ALSO normalize (pack+unpack) the jar
+     * This will also install the specified licenses. The entries are written normalized (fixed dates if specified, no extra fields or
+     * comments, compressed according to the {@link CompressionPolicy}) in a single pass, so the jar does not have to be normalized again.
      * <p/>
      * Note about JarOutputStream:
      * The JAR_MAGIC "0xCAFE" in the extra field data of the first JAR entry from our JarOutputStream implementation is
@@ -446,7 +460,8 @@ class JarUtil {
 
 
     /**
-     * This will also install the specified licenses, and for JARs, this will ALSO normalize (pack+unpack) the jar
+     * This will also install the specified licenses. The entries are written normalized (fixed dates if specified, no extra fields or
+     * comments, compressed according to the {@link CompressionPolicy}) in a single pass, so the jar does not have to be normalized again.
      * <p/>
      * Note about JarOutputStream:
      * The JAR_MAGIC "0xCAFE" in the extra field data of the first JAR entry from our JarOutputStream implementation is
@@ -454,7 +469,10 @@ class JarUtil {
      * platform. see#4138619. It would be incorrect to reject a JAR file that does not have this extra field data, from
      * specification point of view.
      * <p/>
-     * (basically, if you use a JarOutputStream, it adds in extra crap we don't want)
+     * (basically, if you use a JarOutputStream, it adds in extra crap we don't want, which is why we use a ZipWriter)
+     * <p/>
+     * If {@link JarOptions#parallelCompression} is set, the files are compressed on several threads. They are still written in the
+     * same (sorted) order, so the output is exactly the same as when they are compressed one at a time.
      */
     private static
     void zip(JarOptions options, boolean makeJar) throws IOException {
@@ -475,7 +493,7 @@ class JarUtil {
             relativePaths = options.inputPaths.getRelativePaths();
 
             if (makeJar && fullPaths.isEmpty()) {
-                System.err.println("No files to JAR!");
+                BuildLog.getOutput().println("No files to JAR!");
                 return;
             }
         }
@@ -526,20 +544,41 @@ class JarUtil {
 
 
         // NOW WE ACTUALLY MAKE THE JAR
+        // the entries are written straight to a temp file (next to the output file), which is moved into place when everything is
+        // done. This way, the size of the jar does not matter, and the output file is never left half written.
         FileUtil.mkdir(options.outputFile.getParentFile());
-        ByteArrayOutputStream zipOutputStream = new ByteArrayOutputStream();
-        ZipOutputStream output;
+        File tempFile = createTempFile(options.outputFile);
+        ZipWriter output = new ZipWriter(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        output.setLevel(JAR_COMPRESSION_LEVEL);
 
-        if (makeJar) {
-            output = new JarOutputStream(zipOutputStream);
-        }
-        else {
-            output = new ZipOutputStream(zipOutputStream);
+        // compresses the files (maybe in parallel), and writes them in the order they were added
+        // for incremental builds, the unchanged entries are copied (still compressed) from the previous version of the file
+        ZipReader previous = null;
+        if (options.incremental && options.outputFile.isFile()) {
+            try {
+                previous = new ZipReader(options.outputFile);
+            } catch (IOException e) {
+                BuildLog.println("\tUnable to read the previous file, everything will be compressed. " + e.getMessage());
+            }
         }
 
-        output.setLevel(JAR_COMPRESSION_LEVEL);
+        EntryCompressor compressor = new EntryCompressor(output, options.compressionPolicy, options.parallelCompression, previous);
 
+        boolean success = false;
         try {
+            // signed jars have their entries digested while they are written. The manifest (which has the digests) and the signature
+            // files are put in front of the entries at the end. pack200 changes the entries, so those jars are signed afterwards.
+            JarSigner.SigningKey signingKey = null;
+            if (makeJar && options.signatureName != null && !options.repackWithPack200) {
+                try {
+                    signingKey = JarSigner.createSigningKey(options.signatureName);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Unable to create the key to sign the jar with", e);
+                }
+
+                output.setDigest(signingKey.getDigestName());
+            }
+
             // quirks & zip standards.
             // - Directory names must end with a slash '/'
             // - All paths must use '/' style slashes, not '\'
@@ -552,14 +591,14 @@ class JarUtil {
             ///////////////////////////////////////////////
             if (manifest != null) {
                 Attributes attributes = manifest.getMainAttributes();
-                attributes.putValue("Build-Date", new Date(Builder.buildDateUTC).toString() + " (" + Long.toString(Builder.buildDateUTC) + ")");
-
-                JarEntry jarEntry = new JarEntry(JarFile.MANIFEST_NAME);
-                jarEntry.setTime(Builder.buildDateUTC);
-                output.putNextEntry(jarEntry);
+                final long buildDate = BuildSession.current().getBuildDate();
+                attributes.putValue("Build-Date", new Date(buildDate).toString() + " (" + Long.toString(buildDate) + ")");
 
-                manifest.write(output);
-                output.closeEntry();
+                if (signingKey == null) {
+                    ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+                    manifest.write(manifestBytes);
+                    output.writeEntry(JarFile.MANIFEST_NAME, fixedTime(options), manifestBytes.toByteArray());
+                }
             }
             // there won't be any OTHER manifest files, since we haven't signed
             // the jar yet...
@@ -623,10 +662,8 @@ class JarUtil {
                 Collections.sort(strings);
 
                 for (String dirName : strings) {
-                    JarEntry jarEntry = new JarEntry(dirName);
-                    jarEntry.setTime(Builder.buildDateUTC); // hidden when view a jar, but it's always there
-                    output.putNextEntry(jarEntry);
-                    output.closeEntry();
+                    // the date is hidden when view a jar, but it's always there
+                    output.writeDirectory(dirName, fixedTime(options));
                 }
             }
 
@@ -660,11 +697,9 @@ class JarUtil {
                     }
                 }
 
-                InputStream input;
-
                 //sort them
                 Collections.sort(sortedClassFiles);
-                addFilesToJar(options, makeJar, output, sortedClassFiles);
+                addFilesToJar(options, compressor, sortedClassFiles);
 
                 // sort them
                 Collections.sort(sortedOtherFiles);
@@ -675,52 +710,28 @@ class JarUtil {
                     }
 
                     //System.err.println('\t' + fullPaths.get(i));
-                    ZipEntry jarEntry;
-                    if (makeJar) {
-                        jarEntry = new JarEntry(cf.fileName);
-                    }
-                    else {
-                        jarEntry = new ZipEntry(cf.fileName);
-                    }
-
-                    if (options.overrideDate > -1) {
-                        jarEntry.setTime(options.overrideDate);
-                    }
-                    else {
-                        jarEntry.setTime(file.lastModified());
-                    }
-                    output.putNextEntry(jarEntry);
-
-                    // else just copy the file over
-                    input = new BufferedInputStream(new FileInputStream(file));
-
-                    if (JarUtil.isZipFile(cf.file)) {
-                        //noinspection NumericCastThatLosesPrecision
-                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
-                        IO.copyStream(input, outputStream);
-                        IO.close(input);
+                    long time = entryTime(options, file);
 
+                    if (makeJar && JarUtil.isZipFile(cf.file)) {
                         // will not do anything if there was a manifest in the target jar
-                        if (makeJar) {
-                            input = new ByteArrayInputStream(outputStream.toByteArray());
+                        JarInputStream jarInputStream = new JarInputStream(new BufferedInputStream(new FileInputStream(file)), false);
 
-                            JarInputStream jarInputStream = new JarInputStream(input, false);
-                            Manifest targetManifest = jarInputStream.getManifest();
+                        // DON'T touch if there is a manifest!
+                        if (jarInputStream.getManifest() == null) {
+                            // the nested jar is already compressed, so it's (usually) stored, which means we have to know the CRC
+                            // before it's written
+                            byte[] bytes = JarUtil.removeLicenseInfo(jarInputStream).toByteArray();
 
-                            // DON'T touch if there is a manifest!
-                            if (targetManifest == null) {
-                                outputStream = JarUtil.removeLicenseInfo(jarInputStream);
-                                input = new ByteArrayInputStream(outputStream.toByteArray());
-                            }
-                            else {
-                                input.reset();
-                            }
+                            compressor.flush();
+                            output.writeEntry(cf.fileName, time, options.compressionPolicy.compress(cf.fileName, bytes));
+                            continue;
                         }
+
+                        IO.close(jarInputStream);
                     }
 
-                    IO.copyStream(input, output);
-                    IO.close(input);
-                    output.closeEntry();
+                    // else just copy the file over
+                    compressor.add(cf.fileName, time, file);
                 }
             }
 
@@ -754,7 +765,7 @@ class JarUtil {
 
                     // sort them
                     Collections.sort(sortList);
-                    addFilesToJar(options, makeJar, output, sortList);
+                    addFilesToJar(options, compressor, sortList);
                 }
             }
 
@@ -781,70 +792,143 @@ class JarUtil {
 
                 // sort them
                 Collections.sort(sortList);
-                addFilesToJar(options, makeJar, output, sortList);
+                addFilesToJar(options, compressor, sortList);
             }
 
 
             ///////////////////////////////////////////////
             // now include the license, if possible
             ///////////////////////////////////////////////
+            compressor.flush();
+
+            if (previous != null) {
+                BuildLog.println("\tCopied " + compressor.getReusedCount() + " unchanged entries from the previous file");
+                IO.close(previous);
+            }
+
             if (options.licenses != null) {
                 BuildLog.println("\tAdding license");
                 License.install(output, options.licenses, options.overrideDate);
             }
+
+            if (signingKey != null) {
+                byte[][] signatureFiles = JarSigner.createSignatureFiles(signingKey, manifest, output.getDigests());
+                String signatureAlias = metaInfName + signingKey.name;
+
+                File signedFile = createTempFile(options.outputFile);
+                try {
+                    output.finish(tempFile,
+                                  new BufferedOutputStream(new FileOutputStream(signedFile)),
+                                  Arrays.asList(JarFile.MANIFEST_NAME, signatureAlias + ".SF", signatureAlias + ".DSA"),
+                                  Arrays.asList(signatureFiles),
+                                  fixedTime(options));
+                    IO.close(output);
+                } catch (IOException e) {
+                    IO.close(output);
+                    delete(signedFile);
+                    throw e;
+                }
+
+                delete(tempFile);
+                tempFile = signedFile;
+            }
+            else {
+                output.finish();
+                IO.close(output);
+            }
+
+            if (makeJar && options.repackWithPack200) {
+                // pack200 has to change the class files (so they are the same after a later pack + unpack), which is a second pass.
+                // This is also file -> file, so it doesn't matter how big the jar is.
+                File repackedFile = createTempFile(options.outputFile);
+                try {
+                    Pack200Util.Java.repackJar(tempFile, repackedFile);
+                } catch (IOException e) {
+                    delete(repackedFile);
+                    throw e;
+                }
+
+                delete(tempFile);
+                tempFile = repackedFile;
+            }
+
+            moveAtomically(tempFile, options.outputFile);
+            success = true;
+
+            if (makeJar && options.signatureName != null && options.repackWithPack200) {
+                JarSigner.sign(options.outputFile.getAbsolutePath(), options.signatureName);
+            }
         } finally {
-            output.finish();
-            IO.close(output);
+            if (!success) {
+                compressor.cancel();
+                IO.close(previous);
+                IO.close(output);
+                delete(tempFile);
+            }
         }
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(zipOutputStream.toByteArray());
+    }
 
-        if (makeJar) {
-            // now we normalize the JAR.
-            ByteArrayOutputStream repacked = Pack200Util.Java.repackJar(byteArrayInputStream);
-            byteArrayInputStream = new ByteArrayInputStream(repacked.toByteArray());
-        }
+    /**
+     * @return a new (empty) temp file in the same directory as the target file, so that it can be atomically moved over the target.
+     */
+    public static
+    File createTempFile(File targetFile) throws IOException {
+        File dir = targetFile.getAbsoluteFile().getParentFile();
+        FileUtil.mkdir(dir);
 
-        FileOutputStream fileOutputStream = new FileOutputStream(options.outputFile);
+        // the prefix must be at least 3 characters long
+        return File.createTempFile(targetFile.getName() + "-", ".tmp", dir);
+    }
+
+    /**
+     * Moves the source file over the target file. When the file system supports it, this is done atomically, so the target file is
+     * always either the old or the new file (never a partially written one).
+     */
+    public static
+    void moveAtomically(File source, File target) throws IOException {
+        try {
+            java.nio.file.Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-        IO.copyStream(byteArrayInputStream, fileOutputStream);
-        IO.close(fileOutputStream);
+    private static
+    void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
     }
 
     private static
-    void addFilesToJar(final JarOptions options,
-                       final boolean makeJar,
-                       final ZipOutputStream output,
-                       final List<SortedFiles> sortList) throws IOException {
-        InputStream input;
+    void addFilesToJar(final JarOptions options, final EntryCompressor compressor, final List<SortedFiles> sortList) throws IOException {
         for (SortedFiles cf : sortList) {
             File file = cf.file;
             if (file.isDirectory()) {
                 continue;
             }
 
-            ZipEntry jarEntry;
-            if (makeJar) {
-                jarEntry = new JarEntry(cf.fileName);
-            }
-            else {
-                jarEntry = new ZipEntry(cf.fileName);
-            }
-
-            if (options.overrideDate > -1) {
-                jarEntry.setTime(options.overrideDate);
-            }
-            else {
-                jarEntry.setTime(file.lastModified());
-            }
+            compressor.add(cf.fileName, entryTime(options, file), file);
+        }
+    }
 
-            output.putNextEntry(jarEntry);
+    private static
+    long entryTime(final JarOptions options, final File file) {
+        if (options.overrideDate > -1) {
+            return options.overrideDate;
+        }
+        return file.lastModified();
+    }
 
-            // else just copy the file over
-            input = new BufferedInputStream(new FileInputStream(file));
-            IO.copyStream(input, output);
-            IO.close(input);
-            output.closeEntry();
+    /**
+     * @return the time of the entries that are not files (the manifest and directories)
+     */
+    private static
+    long fixedTime(final JarOptions options) {
+        if (options.overrideDate > -1) {
+            return options.overrideDate;
         }
+        return BuildSession.current().getBuildDate();
     }
 
     /**
@@ -854,11 +938,23 @@ class JarUtil {
      */
     public static
     ByteArrayOutputStream removeLicenseInfo(JarInputStream jarInputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        removeLicenseInfo(jarInputStream, byteArrayOutputStream);
+        return byteArrayOutputStream;
+    }
+
+    /**
+     * Removes the license information in a jar input stream (IE: LICENSE, LICENSE.MIT, license.md, etc), and writes the jar to the
+     * output stream. The output stream is NOT closed, so this can write a jar into an entry of another jar.
+     * <p/>
+     * Be CAREFUL if there is a manifest present, as THIS DOES NOT COPY IT OVER.
+     */
+    public static
+    void removeLicenseInfo(JarInputStream jarInputStream, OutputStream outputStream) throws IOException {
         // by default, this will not have access to the manifest! (CHECK BEFORE CALLING THIS, if you want to remove the manifest!)
         // we will ALSO lose entry comments!
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        JarOutputStream jarOutputStream = new JarOutputStream(byteArrayOutputStream);
+        JarOutputStream jarOutputStream = new JarOutputStream(new NonClosingOutputStream(outputStream));
         jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
 
         JarEntry entry;
@@ -880,8 +976,6 @@ class JarUtil {
         jarOutputStream.finish();
         IO.close(jarOutputStream);
         IO.close(jarInputStream);
-
-        return byteArrayOutputStream;
     }
 
     /**
@@ -984,61 +1078,13 @@ class JarUtil {
         }
     }
 
+    /**
+     * Rewrites the jar without the archive comment (and with the META-INF files and directories first)
+     */
     public static
     void removeArchiveCommentFromJar(String jarName) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-        jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
-
-        // cannot use the jarInputStream technique here, since i'm reordering
-        // the contents of the jar.
-        JarFile jarFile = new JarFile(jarName);
-
-        // MANIFEST ENTRIES MUST BE FIRST
-        Enumeration<JarEntry> metaEntries = jarFile.entries();
-
-        while (metaEntries.hasMoreElements()) {
-            JarEntry metaEntry = metaEntries.nextElement();
-            String name = metaEntry.getName();
-            if (name.startsWith(metaInfName) && !metaEntry.isDirectory()) {
-                JarUtil.writeZipEntry(metaEntry, jarFile, jarOutputStream);
-            }
-            else {
-                // since this is already a valid jar, the META-INF data is
-                // already first.
-                break;
-            }
-        }
-
-        // now guarantee that directories are NEXT
-        Enumeration<JarEntry> directoryEntries = jarFile.entries();
-        while (directoryEntries.hasMoreElements()) {
-            JarEntry entry = directoryEntries.nextElement();
-            if (entry.isDirectory()) {
-                JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-            }
-        }
-
-        // now write out the rest of the files to the stream
-        Enumeration<JarEntry> allEntries = jarFile.entries();
-        while (allEntries.hasMoreElements()) {
-            JarEntry entry = allEntries.nextElement();
-            if (!entry.isDirectory() && !entry.getName().startsWith(metaInfName)) {
-                JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-            }
-        }
-
-        // don't add the archive comment
-
-        // finish the stream that we have been writing to
-        jarOutputStream.finish();
-        IO.close(jarOutputStream);
-
-        jarFile.close();
-
-        OutputStream outputStream = new FileOutputStream(jarName, false);
-        byteArrayOutputStream.writeTo(outputStream);
-        IO.close(outputStream);
+        // the pipeline never writes the archive comment
+        new JarPipeline(jarName).run();
     }
 
     /**
@@ -1046,79 +1092,10 @@ class JarUtil {
      */
     public static
     long addTimeStampToJar(String jarName) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-        jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
-
-        // cannot use the jarInputStream technique here, since i'm reordering
-        // the contents of the jar.
-        JarFile jarFile = new JarFile(jarName);
-
-        // MANIFEST MUST BE FIRST
-        Manifest manifest = jarFile.getManifest();
-        JarEntry jarEntry = new JarEntry(JarFile.MANIFEST_NAME);
-        jarEntry.setTime(Builder.buildDateUTC);
-        jarOutputStream.putNextEntry(jarEntry);
-        manifest.write(jarOutputStream);
-        jarOutputStream.closeEntry();
+        new JarPipeline(jarName).addTimeStamp()
+                                .run();
 
-
-        // META-INF FILES ARE NEXT
-        Enumeration<JarEntry> metaEntries = jarFile.entries();
-        while (metaEntries.hasMoreElements()) {
-            JarEntry metaEntry = metaEntries.nextElement();
-            String name = metaEntry.getName();
-            if (name.equals(JarFile.MANIFEST_NAME)) {
-                continue;
-            }
-
-            if (name.startsWith(metaInfName) && !metaEntry.isDirectory()) {
-                metaEntry.setTime(Builder.buildDateUTC);
-                JarUtil.writeZipEntry(metaEntry, jarFile, jarOutputStream);
-            }
-            else {
-                // since this is already a valid jar, the META-INF data is
-                // already first.
-                break;
-            }
-        }
-
-        // now add our TIMESTAMP.
-        // It will ALWAYS calculate the timestamp from the BUILD SYSTEM, not the
-        // LOCAL/REMOTE SYSTEM (which can exist with incorrect/different clocks)
-        jarEntry = new JarEntry(metaInfName + "___" + Long.toString(Builder.buildDateUTC));
-        jarOutputStream.putNextEntry(jarEntry);
-        jarOutputStream.closeEntry();
-
-        // now guarantee that directories are NEXT
-        Enumeration<JarEntry> directoryEntries = jarFile.entries();
-        while (directoryEntries.hasMoreElements()) {
-            JarEntry entry = directoryEntries.nextElement();
-            if (entry.isDirectory()) {
-                JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-            }
-        }
-
-        // now write out the rest of the files to the stream
-        Enumeration<JarEntry> allEntries = jarFile.entries();
-        while (allEntries.hasMoreElements()) {
-            JarEntry entry = allEntries.nextElement();
-            if (!entry.isDirectory() && !entry.getName().startsWith(metaInfName)) {
-                JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-            }
-        }
-
-        // finish the stream that we have been writing to
-        jarOutputStream.finish();
-        IO.close(jarOutputStream);
-
-        jarFile.close();
-
-        OutputStream outputStream = new FileOutputStream(jarName, false);
-        byteArrayOutputStream.writeTo(outputStream);
-        IO.close(outputStream);
-
-        return Builder.buildDateUTC;
+        return BuildSession.current().getBuildDate();
     }
 
     /**
@@ -1134,48 +1111,8 @@ class JarUtil {
             BuildLog.println("\t" + arg);
         }
 
-        // we have to use a JarFile, so we preserve the comments that might already be in the file.
-        JarFile origJarFile = new JarFile(jarName);
-        JarEntry entry;
-
-
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-        jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
-
-        boolean foundConfigFile = false;
-        // now write out the rest of the files to the stream
-
-        // THIS DOES NOT MESS WITH THE ORDER OF THE FILES IN THE JAR!
-        Enumeration<JarEntry> metaEntries = origJarFile.entries();
-        while (metaEntries.hasMoreElements()) {
-            entry = metaEntries.nextElement();
-            String name = entry.getName();
-
-            if (!name.equals(configFile)) {
-                JarUtil.writeZipEntry(entry, origJarFile, jarOutputStream);
-            }
-            else {
-                foundConfigFile = true;
-                addArgsToIniContents(entry, origJarFile.getInputStream(entry), jarOutputStream, args);
-            }
-        }
-
-
-        if (!foundConfigFile) {
-            addArgsToIniContents(null, jarOutputStream, args);
-        }
-
-        origJarFile.close();
-
-
-        // finish the stream that we have been writing to
-        jarOutputStream.finish();
-        IO.close(jarOutputStream);
-
-        OutputStream outputStream = new FileOutputStream(jarName, false);
-        byteArrayOutputStream.writeTo(outputStream);
-        IO.close(outputStream);
+        new JarPipeline(jarName).addArgsToIni(args)
+                                .run();
     }
 
 
@@ -1202,7 +1139,7 @@ class JarUtil {
     /**
      * Fixes up the ini file inside the jar.
      */
-    private static
+    static
     void addArgsToIniContents(JarEntry entry, InputStream inputStream, OutputStream outputStream, String... args) throws IOException {
 
         ByteArrayOutputStream outputStreamCopy = new ByteArrayOutputStream();
@@ -1228,7 +1165,7 @@ class JarUtil {
                 iniFileArgs.add(line);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         } finally {
             IO.close(input);
         }
@@ -1255,7 +1192,7 @@ class JarUtil {
             // make sure there is a new line at the end of the argument (so it's easier to read)
             output.write(OS.LINE_SEPARATOR);
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(BuildLog.getOutput());
         } finally {
             IO.close(output);
         }
@@ -1266,8 +1203,10 @@ class JarUtil {
             JarOutputStream jarOutputStream = (JarOutputStream) outputStream;
 
             JarEntry entry2 = new JarEntry(configFile);
-            entry2.setComment(entry.getComment());
-            entry2.setExtra(entry.getExtra());
+            if (entry != null) {
+                entry2.setComment(entry.getComment());
+                entry2.setExtra(entry.getExtra());
+            }
             jarOutputStream.putNextEntry(entry2);
 
             IO.copyStream(inputStreamCopy, outputStream);
@@ -1302,117 +1241,10 @@ class JarUtil {
     public static
     void addFilesToJar(String jarName, BuildOptions properties, EncryptInterface encryption, ExtraDataInterface extraDataWriter,
                        Pack... filesToAdd) throws IOException {
-        PackAction[] actionsToRemove;
-        if (properties.compiler.enableDebugSpeedImprovement) {
-            actionsToRemove = new PackAction[] {PackAction.Pack, PackAction.Lzma, PackAction.Encrypt};
-        }
-        else {
-            actionsToRemove = new PackAction[] {PackAction.Encrypt};
-        }
-
-        boolean addDebug = properties.compiler.debugEnabled;
-        boolean release = properties.compiler.release;
-
         BuildLog.println("Adding files to jar: '" + jarName + "'");
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-        jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
-
-        // we have to use a JarFile, so we preserve the comments that might already be in the file.
-        JarFile jarFile = new JarFile(jarName);
-        JarEntry entry;
-
-        // THIS DOES NOT MESS WITH THE ORDER OF THE FILES IN THE JAR!
-        // This will also let us replace a jar with a different pack-action (ie, change something to LGPL, LoadAction, etc)
-        Enumeration<JarEntry> metaEntries = jarFile.entries();
-        while (metaEntries.hasMoreElements()) {
-            entry = metaEntries.nextElement();
-            String name = entry.getName();
-
-            boolean canAdd = true;
-            for (Pack pack : filesToAdd) {
-                String destPath = pack.getDestPath();
-                if (name.equals(destPath)) {
-                    BuildLog.println("  Replacing '" + destPath + "'");
-                    canAdd = false;
-                    break;
-                }
-            }
-            if (canAdd) {
-                JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-            }
-        }
-
-        // now add the files that we want to add.
-        for (Pack pack : filesToAdd) {
-            if (!release) {
-                pack.remove(actionsToRemove);
-            }
-
-            String sourcePath = FileUtil.normalize(pack.getSourcePath()).getAbsolutePath();
-            String destPath = pack.getDestPath();
-
-
-            BuildLog.println("  ╭─ " + sourcePath, "╰───> " + destPath);
-
-            InputStream inputStream;
-            int length = 0;
-            long time = 0L;
-            entry = new JarEntry(destPath);
-            if (sourcePath != null) {
-                File fileToAdd = new File(sourcePath);
-                time = fileToAdd.lastModified();
-                entry.setTime(time);
-                inputStream = new FileInputStream(fileToAdd);
-                //noinspection NumericCastThatLosesPrecision
-                length = (int) fileToAdd.length(); // yea, yea, yea, the length truncates...
-            }
-            else {
-                inputStream = new ByteArrayInputStream(new byte[0]);
-            }
-
-            /////////////
-            // now load the entry to the jar
-            /////////////
-
-            PackTask task = new PackTask(pack, inputStream);
-            task.time = time;
-            task.debug = addDebug;
-            task.length = length; // have to do this, because of how FileInputStream works.
-            task.encryption = encryption;
-
-
-            if (pack.canDo(PackAction.Extract)) {
-                // we do this here, so that the unpack will copy over/duplicate our custom extra data field
-                if (extraDataWriter != null) {
-                    extraDataWriter.write(entry, null);
-                }
-
-                unpackEntry(task, extraDataWriter, jarOutputStream);
-            }
-            else {
-                packEntry(task);
-
-                if (extraDataWriter != null) {
-                    extraDataWriter.write(entry, task);
-                }
-
-                jarOutputStream.putNextEntry(entry);
-                IO.copyStream(task.inputStream, jarOutputStream);
-                jarOutputStream.closeEntry();
-                IO.close(task.inputStream);
-            }
-        }
-
-        // finish the stream that we have been writing to
-        jarOutputStream.finish();
-        IO.close(jarOutputStream);
-
-        OutputStream outputStream = new FileOutputStream(jarName, false);
-        byteArrayOutputStream.writeTo(outputStream);
-        IO.close(outputStream);
-        jarFile.close();
+        new JarPipeline(jarName).addFiles(properties, encryption, extraDataWriter, filesToAdd)
+                                .run();
     }
 
     /**
@@ -1426,126 +1258,12 @@ class JarUtil {
     void packageJar(String jarName, BuildOptions properties, EncryptInterface encryption, ExtraDataInterface extraDataWriter,
                     List<String> fileExtensionToHandle, Repack... specialActions) throws IOException {
 
-        PackAction[] actionsToRemove;
-        if (properties.compiler.enableDebugSpeedImprovement) {
-            actionsToRemove = new PackAction[] {PackAction.Pack, PackAction.Lzma, PackAction.Encrypt};
-        }
-        else {
-            actionsToRemove = new PackAction[] {PackAction.Encrypt};
-        }
-
-        boolean release = properties.compiler.release;
-
-        String tempJarName = jarName + ".tmp";
-        JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(tempJarName, false));
-        jarOutputStream.setLevel(JAR_COMPRESSION_LEVEL);
-
-        JarFile jarFile = new JarFile(jarName);
-        Enumeration<JarEntry> entries = jarFile.entries();
-        while (entries.hasMoreElements()) {
-            JarEntry entry = entries.nextElement();
-            String name = entry.getName();
-            long time = entry.getTime();
-
-            // DO NOT handle manifest dir, subdirs or directories!
-            if (JarFile.MANIFEST_NAME.equals(name) || entry.isDirectory() || name.indexOf('/') > -1) {
-                // abusing the system -- but by doing this, we will have our extra data copied over
-                if (extraDataWriter != null) {
-                    extraDataWriter.write(entry, null);
-                }
-                JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-            }
-            else {
-                // only handle if we match one of our extensions!
-                boolean handle = false;
-                for (String fileExtension : fileExtensionToHandle) {
-                    if (name.endsWith(fileExtension)) {
-                        handle = true;
-                        break;
-                    }
-                }
-
-                if (!handle) {
-                    // abusing the system -- but by doing this, we will have our extra data copied over
-                    if (extraDataWriter != null) {
-                        extraDataWriter.write(entry, null);
-                    }
-                    JarUtil.writeZipEntry(entry, jarFile, jarOutputStream);
-                }
-                else {
-                    Repack repack = null;
-
-                    for (Repack specialRepack : specialActions) {
-                        if (name.equals(specialRepack.getName())) {
-                            repack = specialRepack;
-                            break;
-                        }
-                    }
-
-                    // default is all actions.
-                    if (repack == null) {
-                        repack = new Repack(name, PackAction.Package);
-                    }
-
-                    // undo PACK, LZMA, GZIP, and encrypt so debug/testing is faster
-                    if (!release) {
-                        repack.remove(actionsToRemove);
-                    }
-
-                    BuildLog.print(".");
-
-                    // load the entry into memory
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
-                    InputStream is = jarFile.getInputStream(entry);
-
-                    IO.copyStream(is, baos);
-                    IO.close(is);
-
-                    // read the bytes into a buffer.
-                    byte[] entryAsBytes = baos.toByteArray();
-
-                    PackTask task = new PackTask(repack, entryAsBytes);
-                    task.time = time;
-                    task.debug = properties.compiler.debugEnabled;
-                    task.encryption = encryption;
-
-                    if (repack.canDo(PackAction.Extract)) {
-                        // this also writes out (and overrides) our custom extra data header
-                        unpackEntry(task, extraDataWriter, jarOutputStream);
-                    }
-                    else {
-                        packEntry(task);
-
-                        // now write (single entry) to the outputStream
-                        // figure out the ACTION file name extension
-                        JarEntry destEntry = new JarEntry(name);
-                        destEntry.setTime(entry.getTime());
-                        if (extraDataWriter != null) {
-                            extraDataWriter.write(destEntry, task);
-                        }
-
-                        jarOutputStream.putNextEntry(destEntry);
-
-                        IO.copyStream(task.inputStream, jarOutputStream);
-                        jarOutputStream.flush();
-                        jarOutputStream.closeEntry();
-                    }
-                }
-            }
-        }
-
-        jarOutputStream.finish();
-        IO.close(jarOutputStream);
-
-        jarFile.close();
-
-        BuildLog.println(".");
-
-        Builder.moveFile(tempJarName, jarName);
+        new JarPipeline(jarName).packageEntries(properties, encryption, extraDataWriter, fileExtensionToHandle, specialActions)
+                                .run();
     }
 
     @SuppressWarnings("Duplicates")
-    private static
+    static
     void unpackEntry(PackTask task, ExtraDataInterface extraDataWriter, JarOutputStream jarOutputStream) {
         InputStream inputStream = task.inputStream;
         Repack repack = task.pack;
@@ -1582,7 +1300,7 @@ class JarUtil {
                     jarOutputStream.closeEntry();
                 }
             } catch (Exception e) {
-                System.err.println("Unable to extract contents of tar file!");
+                BuildLog.getOutput().println("Unable to extract contents of tar file!");
             }
         }
         else {
@@ -1640,7 +1358,7 @@ class JarUtil {
                         jarOutputStream.closeEntry();
                     }
                 } catch (Exception e) {
-                    System.err.println("Unable to extract contents of compressed file!");
+                    BuildLog.getOutput().println("Unable to extract contents of compressed file!");
                 }
                 IO.close(newInputStream);
                 IO.close(gzipInputStream);
@@ -1674,27 +1392,42 @@ class JarUtil {
                             writeZipEntry(entry, zipInputStream, jarOutputStream);
                         }
                     } catch (Exception e) {
-                        System.err.println("Unable to extract contents of compressed file!");
+                        BuildLog.getOutput().println("Unable to extract contents of compressed file!");
                     }
                     IO.close(zipInputStream);
                 }
                 else {
-                    System.err.println("Unable to extract contents of compressed file!");
+                    BuildLog.getOutput().println("Unable to extract contents of compressed file!");
                 }
             }
         }
     }
 
-    private static
+    static
     void packEntry(PackTask task) throws IOException {
         InputStream inputStream = task.inputStream;
-        int length = task.length;
+        long length = task.length;
         Repack repack = task.pack;
+        PackReport report = task.report;
 
         // now handle pack/compress/encrypt
         if (Pack200Util.canPack200(repack, task.inputStream)) {
-            // Create the Packer object
-            ByteArrayOutputStream outputPackStream = Pack200Util.Java.pack200(inputStream, task.debug);
+            long startTime = report != null ? PackReport.cpuTime() : 0L;
+
+            ByteArrayOutputStream outputPackStream;
+            if (task.classArchive) {
+                outputPackStream = new ByteArrayOutputStream((int) Math.min(length, 1024 * 1024));
+                ClassArchive.compact(inputStream, outputPackStream);
+                IO.close(inputStream);
+            }
+            else {
+                // Create the Packer object
+                outputPackStream = Pack200Util.Java.pack200(inputStream, task.debug);
+            }
+
+            if (report != null) {
+                report.add(repack, PackAction.Pack.name(), length, outputPackStream.size(), startTime);
+            }
 
             // convert the output stream to an input stream
             inputStream = new ByteArrayInputStream(outputPackStream.toByteArray());
@@ -1704,6 +1437,8 @@ class JarUtil {
         // we RELY on the the jar ALREADY being NORMALIZED (PACK+UNPACK). pack200 -repack DOES NOT WORK! You must EXPLICITY
         // use the programmatic safePack200 and safeUnpack200 so the jar will be consistent between pack/unpack cycles.
         if (repack.canDo(PackAction.LoadLibray)) {
+            long startTime = report != null ? PackReport.cpuTime() : 0L;
+
             ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
             IO.copyStream(inputStream, baos);
 
@@ -1720,38 +1455,123 @@ class JarUtil {
 
             task.extraData = hashBytes;
 
+            if (report != null) {
+                report.add(repack, PackAction.LoadLibray.name(), unpackLength, unpackLength, startTime);
+            }
+
             // since we can only read the input stream once, make sure to make it again.
             inputStream = new ByteArrayInputStream(unpackBuffer);
         }
 
-        if (repack.canDo(PackAction.Lzma)) {
-            ByteArrayOutputStream packedOutputStream = new ByteArrayOutputStream(length); // will be size or smaller.
-            LZMA.encode(length, inputStream, packedOutputStream);
+        // encrypting happens while the entry is written, so it never has to be in memory
+        task.encrypt = isEncrypted(repack);
+
+        CompressionCodec codec = null;
+        if (repack.canDo(PackAction.Compress)) {
+            codec = task.codec != null ? task.codec : CompressionCodec.LZMA;
+        }
+        else if (repack.canDo(PackAction.Lzma)) {
+            codec = CompressionCodec.LZMA;
+        }
+
+        if (codec != null) {
+            // the launcher needs to know how to decode it
+            task.codecId = codec.getId();
+
+            String action = repack.canDo(PackAction.Compress) ? PackAction.Compress.name() + " (" + codec + ")" : PackAction.Lzma.name();
+
+            if (length > ZipWriter.LARGE_ENTRY_SIZE) {
+                // large entries are compressed (on another thread) while they are written into the jar, instead of in memory
+                StreamStage stage = StreamStage.encode(codec, length);
+                if (report != null) {
+                    stage = report.measure(stage, repack, action);
+                }
+
+                task.inputStream = new StreamPipeline(stage).open(inputStream);
+                return;
+            }
+
+            long startTime = report != null ? PackReport.cpuTime() : 0L;
+
+            // will be size or smaller. Large files start small, instead of allocating everything up front
+            ByteArrayOutputStream packedOutputStream = new ByteArrayOutputStream((int) Math.min(length, 1024 * 1024));
+            codec.encode(length, inputStream, packedOutputStream);
             IO.close(inputStream);
 
+            if (report != null) {
+                report.add(repack, action, length, packedOutputStream.size(), startTime);
+            }
+
             // convert the output stream to an input stream
             inputStream = new ByteArrayInputStream(packedOutputStream.toByteArray());
-            length = inputStream.available();
         }
 
-        // we cannot do BOTH encrypt + LGPL. They are mutually exclusive.
-        // LGPL will also not be hashed in the signature generation
-        if (repack.canDo(PackAction.Encrypt) && !repack.canDo(PackAction.LGPL)) {
-            if (task.encryption != null) {
-                ByteArrayOutputStream encryptedOutputStream = task.encryption.encrypt(inputStream, length);
-
-                // convert the output stream to an input stream
-                inputStream = new ByteArrayInputStream(encryptedOutputStream.toByteArray());
-                // not used because it's the last statement. Keeping just for sanity in case more statements are added
-                //noinspection UnusedAssignment
-                length = inputStream.available();
+        task.inputStream = inputStream;
+    }
+
+    /**
+     * We cannot do BOTH encrypt + LGPL. They are mutually exclusive. LGPL will also not be hashed in the signature generation
+     */
+    static
+    boolean isEncrypted(final Repack repack) {
+        return repack.canDo(PackAction.Encrypt) && !repack.canDo(PackAction.LGPL);
+    }
+
+    /**
+     * Encrypts the (already packed) entry into memory, so that it is not encrypted while it's written. This is for worker threads, so the
+     * encryption happens there.
+     * <p/>
+     * Only entries that are already in memory are encrypted here. Large entries (that are streamed, see {@link StreamPipeline}) are
+     * encrypted while they are written, so they are never in memory.
+     */
+    static
+    void encryptEntry(final PackTask task) throws IOException {
+        if (!task.encrypt || !(task.inputStream instanceof ByteArrayInputStream)) {
+            return;
+        }
+
+        ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream(task.inputStream.available() + 64);
+        writePacked(task, encryptedOutputStream);
+
+        task.inputStream = new ByteArrayInputStream(encryptedOutputStream.toByteArray());
+        task.encrypt = false;
+    }
+
+    /**
+     * Writes the (already packed) entry to the output, and encrypts it while it's written (if it should be). The input stream of the
+     * task is closed, but the output is not.
+     */
+    static
+    void writePacked(final PackTask task, final OutputStream outputStream) throws IOException {
+        try {
+            if (!task.encrypt) {
+                IO.copyStream(task.inputStream, outputStream);
+                return;
             }
-            else {
+
+            if (task.encryption == null) {
                 throw new RuntimeException("** Unable to encrypt data when AES information is null!!");
             }
-        }
 
-        task.inputStream = inputStream;
+            StreamStage encrypt = new StreamStage() {
+                @Override
+                public
+                void process(final InputStream input, final OutputStream output) throws IOException {
+                    OutputStream encryptedOutputStream = task.encryption.encrypt(output);
+                    IO.copyStream(input, encryptedOutputStream);
+                    encryptedOutputStream.close();
+                }
+            };
+
+            if (task.report != null) {
+                // the sizes are counted while it's encrypted, since the size of a streamed entry is not known before
+                encrypt = task.report.measure(encrypt, task.pack, PackAction.Encrypt.name());
+            }
+
+            encrypt.process(task.inputStream, outputStream);
+        } finally {
+            IO.close(task.inputStream);
+        }
     }
 
     /**
@@ -1761,6 +1581,17 @@ class JarUtil {
      */
     public static
     void mergeDependencies(final Project project) throws IOException {
+        mergeDependencies(project, new JarMerger());
+    }
+
+    /**
+     * Merge the projects' dependencies output files into the project's outputFile
+     *
+     * @param project This is primary project who's output file will contain all of the other files.
+     * @param merger  Decides what happens to entries that are in more than one file
+     */
+    public static
+    void mergeDependencies(final Project project, final JarMerger merger) throws IOException {
         File primaryFile = project.outputFile.get();
         //noinspection unchecked
         List<Project> otherProjects = project.getFullDependencyList();
@@ -1771,7 +1602,7 @@ class JarUtil {
             files[i] = otherProjects.get(i).outputFile.get();
         }
 
-        merge(primaryFile, files);
+        merge(merger, primaryFile, files);
     }
 
     /**
@@ -1801,13 +1632,25 @@ class JarUtil {
      */
     public static
     void merge(File primaryFile, File... files) throws IOException {
+        merge(new JarMerger(), primaryFile, files);
+    }
+
+    /**
+     * Merge the specified files into the primaryFile
+     *
+     * @param merger      Decides what happens to entries that are in more than one file
+     * @param primaryFile This is the file that will contain all of the other files.
+     * @param files       Array of files (zips/jars) to be added into the primary file
+     */
+    public static
+    void merge(JarMerger merger, File primaryFile, File... files) throws IOException {
         String[] fileNames = new String[files.length];
 
         for (int i = 0; i < files.length; i++) {
             fileNames[i] = files[i].getAbsolutePath();
         }
 
-        merge(primaryFile.getAbsoluteFile(), fileNames);
+        merge(merger, primaryFile.getAbsoluteFile(), fileNames);
     }
 
     /**
@@ -1818,38 +1661,29 @@ class JarUtil {
      */
     public static
     void merge(File primaryFile, String... files) throws IOException {
-        BuildLog.println("Merging files into single jar/zip: '" + primaryFile + "'");
+        merge(new JarMerger(), primaryFile, files);
+    }
 
-        // write everything to staging dir, then jar it up.
-        String tempDirectory = FileUtil.tempDirectory("mergeTemp");
-        File mergeLocation = new File(tempDirectory);
+    /**
+     * Merge the specified files into the primaryFile
+     *
+     * @param merger      Decides what happens to entries that are in more than one file
+     * @param primaryFile This is the file that will contain all of the other files.
+     * @param files       Array of files (zips/jars) to be added into the primary file
+     */
+    public static
+    void merge(JarMerger merger, File primaryFile, String... files) throws IOException {
+        // the files might still be created in the background
+        BuildPipeline.awaitAll();
 
-        FileUtil.unzipJar(primaryFile, mergeLocation.getAbsoluteFile(), true);
+        BuildLog.println("Merging files into single jar/zip: '" + primaryFile + "'");
 
+        // the entries are copied directly (still compressed) from all of the files into the primary file
+        List<File> fileList = new ArrayList<File>(files.length);
         for (String fileName : files) {
-            File file = new File(fileName);
-            // is this a zip?
-            if (FileUtil.isZipFile(file)) {
-                FileUtil.unzipJar(file, mergeLocation, false);
-            }
-            else {
-                // just copy it over
-                String relativeToDir = FileUtil.getChildRelativeToDir(file, "src");
-                FileUtil.copyFile(file, new File(mergeLocation, relativeToDir));
-            }
+            fileList.add(new File(fileName));
         }
 
-        JarOptions options = new JarOptions();
-        options.outputFile = primaryFile;
-        options.inputPaths = new Paths(tempDirectory);
-        options.mainClass = null;
-        options.otherManifestAttributes = null;
-        options.classpath = null;
-
-        JarUtil.jar(options);
-
-
-        // cleanup
-        FileUtil.delete(mergeLocation);
+        merger.merge(primaryFile, fileList);
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import dorkbox.util.IO;
+
+/**
+ * One version of an entry that is being merged (see {@link JarMerger}). It is either an entry of a zip file (which is copied without
+ * inflating it, unless the content is needed), a file, or content that was created by a {@link MergeStrategy}.
+ */
+public final
+class MergeInput {
+    /**
+     * @return content that was created by a merge strategy (for example, several service files that were concatenated)
+     */
+    public static
+    MergeInput of(final String sourceName, final byte[] bytes, final long time) {
+        return new MergeInput(sourceName, null, null, null, bytes, ZipWriter.javaToDosTime(time));
+    }
+
+
+    private final String sourceName;
+
+    // one of these is set
+    private final ZipReader reader;
+    private final ZipReader.Entry entry;
+    private final File file;
+    private byte[] bytes;
+
+    private final int dosTime;
+    private long crc = -1L;
+
+    private
+    MergeInput(final String sourceName, final ZipReader reader, final ZipReader.Entry entry, final File file, final byte[] bytes,
+               final int dosTime) {
+        this.sourceName = sourceName;
+        this.reader = reader;
+        this.entry = entry;
+        this.file = file;
+        this.bytes = bytes;
+        this.dosTime = dosTime;
+    }
+
+    MergeInput(final ZipReader reader, final ZipReader.Entry entry) {
+        this(reader.getFile().getName(), reader, entry, null, null, entry.dosTime);
+    }
+
+    MergeInput(final File file) {
+        this(file.getName(), null, null, file, null, ZipWriter.javaToDosTime(file.lastModified()));
+    }
+
+    /**
+     * @return the name of the file this comes from
+     */
+    public
+    String getSourceName() {
+        return sourceName;
+    }
+
+    public
+    boolean isDirectory() {
+        return entry != null && entry.isDirectory();
+    }
+
+    /**
+     * @return the time of the entry
+     */
+    public
+    long getTime() {
+        return ZipReader.dosToJavaTime(dosTime);
+    }
+
+    /**
+     * @return the uncompressed size. For zip entries and files, this does not read anything.
+     */
+    public
+    long getSize() throws IOException {
+        if (entry != null) {
+            return entry.getSize();
+        }
+        if (file != null) {
+            return file.length();
+        }
+        return bytes.length;
+    }
+
+    /**
+     * @return the CRC-32 of the (uncompressed) content. For zip entries, this does not read anything, files are streamed.
+     */
+    public
+    long getCrc() throws IOException {
+        if (entry != null) {
+            return entry.getCrc();
+        }
+
+        if (crc == -1L) {
+            if (file != null) {
+                crc = EntryCompressor.crc(file);
+            }
+            else {
+                CRC32 crc32 = new CRC32();
+                crc32.update(bytes, 0, bytes.length);
+                crc = crc32.getValue();
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * @return true if the content is the same as the other. This is checked with the CRC and size, so zip entries are not inflated.
+     */
+    public
+    boolean isIdentical(final MergeInput other) throws IOException {
+        return getSize() == other.getSize() && getCrc() == other.getCrc();
+    }
+
+    /**
+     * @return the (uncompressed) content. Files and zip entries are read every time (they are not kept in memory).
+     */
+    public
+    byte[] getBytes() throws IOException {
+        if (bytes != null) {
+            return bytes;
+        }
+
+        if (file != null) {
+            return Files.readAllBytes(file.toPath());
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.min(entry.getSize(), Integer.MAX_VALUE - 8));
+        InputStream input = reader.getInputStream(entry);
+        try {
+            IO.copyStream(input, output);
+        } finally {
+            IO.close(input);
+        }
+
+        // zip entries are not kept in memory
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes this into the zip. Zip entries are copied as-is, everything else is compressed with the policy. Large files (see {@link
+     * ZipWriter#LARGE_ENTRY_SIZE}) are streamed, they are never read into memory.
+     */
+    void writeTo(final ZipWriter output, final String name, final CompressionPolicy policy) throws IOException {
+        if (entry != null) {
+            output.copyEntry(name, dosTime, reader, entry);
+            return;
+        }
+
+        if (file != null && file.length() > ZipWriter.LARGE_ENTRY_SIZE) {
+            int level = EntryCompressor.streamingLevel(policy, name, file);
+
+            // stored entries need the CRC before the data is written
+            long crc = level == CompressionPolicy.STORED ? getCrc() : 0L;
+
+            InputStream input = new FileInputStream(file);
+            try {
+                output.streamEntry(name, dosTime, level, crc, file.length(), input);
+            } finally {
+                input.close();
+            }
+            return;
+        }
+
+        output.copyEntry(name, dosTime, policy.compress(name, getBytes()));
+    }
+
+    @Override
+    public
+    String toString() {
+        return sourceName;
+    }
+}
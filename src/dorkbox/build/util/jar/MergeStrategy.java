@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides what happens when the same entry is in more than one of the files that are merged (see {@link JarMerger}).
+ * <p/>
+ * Entries that are identical (same CRC and size) are never passed to a strategy, since it doesn't matter which one is used. The
+ * strategy only gets the versions that are actually different, in the order of the files they come from.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public abstract
+class MergeStrategy {
+    /**
+     * The entry from the last file is used. (This is what happened when everything was extracted to the same directory)
+     */
+    public static final MergeStrategy LAST_WINS = new MergeStrategy() {
+        @Override
+        public
+        MergeInput merge(final String name, final List<MergeInput> inputs) {
+            return inputs.get(inputs.size() - 1);
+        }
+    };
+
+    /**
+     * The entry from the first file is used.
+     */
+    public static final MergeStrategy FIRST_WINS = new MergeStrategy() {
+        @Override
+        public
+        MergeInput merge(final String name, final List<MergeInput> inputs) {
+            return inputs.get(0);
+        }
+    };
+
+    /**
+     * The merge fails if the entries are different.
+     */
+    public static final MergeStrategy FAIL = new MergeStrategy() {
+        @Override
+        public
+        MergeInput merge(final String name, final List<MergeInput> inputs) throws IOException {
+            throw new IOException("Conflicting entry '" + name + "' in: " + inputs);
+        }
+    };
+
+    /**
+     * The entries are concatenated (one after another, each ending with a new line). This is what service files
+     * (META-INF/services/*) need, since each file lists the implementations it provides.
+     */
+    public static final MergeStrategy CONCATENATE = new MergeStrategy() {
+        @Override
+        public
+        MergeInput merge(final String name, final List<MergeInput> inputs) throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            List<String> sources = new ArrayList<String>(inputs.size());
+
+            for (MergeInput input : inputs) {
+                byte[] bytes = input.getBytes();
+                output.write(bytes, 0, bytes.length);
+
+                if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+                    output.write('\n');
+                }
+
+                sources.add(input.getSourceName());
+            }
+
+            return MergeInput.of(sources.toString(), output.toByteArray(), inputs.get(0).getTime());
+        }
+    };
+
+
+    /**
+     * @param name the name of the entry
+     * @param inputs the different versions of the entry (at least 2), in the order of the files they come from
+     *
+     * @return the version of the entry to use, which can also be new content (see {@link MergeInput#of(String, byte[], long)})
+     */
+    public abstract
+    MergeInput merge(String name, List<MergeInput> inputs) throws IOException;
+}
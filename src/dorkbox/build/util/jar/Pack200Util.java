@@ -15,6 +15,8 @@
  */
 package dorkbox.build.util.jar;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -33,6 +35,7 @@ import java.util.jar.Pack200;
 import java.util.jar.Pack200.Packer;
 import java.util.jar.Pack200.Unpacker;
 
+import dorkbox.build.util.BuildLog;
 import dorkbox.util.IO;
 import dorkbox.util.OS;
 import dorkbox.util.Sys;
@@ -73,6 +76,18 @@ public class Pack200Util {
     }
 
 
+    /**
+     * @return true if this java has pack200 (it was removed in java 14). If not, {@link ClassArchive} is used instead.
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("java.util.jar.Pack200");
+            return true;
+        } catch (Throwable ignored) {
+            return false;
+        }
+    }
+
     /**
      * @return true if the file is a pack200 file
      */
@@ -97,7 +112,7 @@ public class Pack200Util {
                 try {
                     raf.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    e.printStackTrace(BuildLog.getOutput());
                 }
             }
         }
@@ -236,7 +251,7 @@ public class Pack200Util {
                     }
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                e.printStackTrace(BuildLog.getOutput());
             }
         }
     }
@@ -337,6 +352,17 @@ public class Pack200Util {
 
             JarInputStream jarInputStream = SafeJarInputStream.create((ByteArrayInputStream)inputStream);
 
+            // we want to pack to a byte stream, which we will THEN compress, THEN encrypt!
+            ByteArrayOutputStream outputPackStream = new ByteArrayOutputStream(8096); // approx guess.
+            pack200_Default(jarInputStream, outputPackStream);
+
+            return outputPackStream;
+        }
+
+        /**
+         * Same as {@link #pack200_Default(InputStream)}, but writes the packed data to the output stream. Both streams are closed.
+         */
+        private static void pack200_Default(JarInputStream jarInputStream, OutputStream outputPackStream) throws IOException {
             // Create the Packer object
             Packer packer = Pack200.newPacker();
 
@@ -356,9 +382,6 @@ public class Pack200Util {
             p.put(Packer.EFFORT, "1");
 
 
-            // we want to pack to a byte stream, which we will THEN compress, THEN encrypt!
-            ByteArrayOutputStream outputPackStream = new ByteArrayOutputStream(8096); // approx guess.
-
             // stupid Pack200 warnings. This should do the trick...
             PrintStream error = System.err;
             System.setErr(new PrintStream(new OutputStream() {
@@ -369,14 +392,15 @@ public class Pack200Util {
             }));
 
             // Call the packer
-            packer.pack(jarInputStream, outputPackStream);
-            System.setErr(error);
-            IO.close(jarInputStream);
+            try {
+                packer.pack(jarInputStream, outputPackStream);
+            } finally {
+                System.setErr(error);
+                IO.close(jarInputStream);
+            }
 
             outputPackStream.flush();
             IO.close(outputPackStream);
-
-            return outputPackStream;
         }
 
         /**
@@ -403,8 +427,15 @@ public class Pack200Util {
             }
 
             ByteArrayOutputStream unpackOutputStream = new ByteArrayOutputStream(8192);
-            JarOutputStream unpackJarOutputStream = new JarOutputStream(unpackOutputStream);
+            unpack200(inputStream, new JarOutputStream(unpackOutputStream));
 
+            return unpackOutputStream;
+        }
+
+        /**
+         * Same as {@link #unpack200(ByteArrayInputStream)}, but for a stream that is known to be pack200. Both streams are closed.
+         */
+        static void unpack200(InputStream inputStream, JarOutputStream unpackJarOutputStream) throws IOException {
             // stupid Pack200 warnings. This should do the trick...
             PrintStream error = System.err;
             System.setErr(new PrintStream(new OutputStream() {
@@ -425,19 +456,18 @@ public class Pack200Util {
             p.put(Packer.SEGMENT_LIMIT, "-1");
 
 
-            unpacker.unpack(inputStream, unpackJarOutputStream); // auto-closes the INPUT stream!
-
-            System.setErr(error);
-            IO.close(inputStream); // Must explicitly close the input.
+            try {
+                unpacker.unpack(inputStream, unpackJarOutputStream); // auto-closes the INPUT stream!
+            } finally {
+                System.setErr(error);
+                IO.close(inputStream); // Must explicitly close the input.
+            }
 
             unpackJarOutputStream.flush();
             unpackJarOutputStream.finish();
             IO.close(unpackJarOutputStream); // closing the stream ALSO adds meta-data to the output!
-
-            return unpackOutputStream;
         }
 
-
         /**
          * Repack (or NORMALIZE) a jar with pack200.  The file size will increase SLIGHTLY, however, it will be consistent with
          * future pack200 operations.
@@ -460,6 +490,28 @@ public class Pack200Util {
             return repackJar(inputStream);
         }
 
+        /**
+         * Repack (or NORMALIZE) a jar file with pack200, and write the result to the output file. Neither jar is read into memory (the
+         * packed data is written to a temp file), however pack200 still keeps the class data of the jar in memory while packing.
+         * <p>
+         * The file will be left in an UNPACKED state.
+         */
+        public static void repackJar(File inputJar, File outputJar) throws IOException {
+            // the packed data goes to a temp file, so that neither the jar nor the packed data has to fit in memory
+            File packFile = File.createTempFile(outputJar.getName() + "-", ".pack", outputJar.getAbsoluteFile().getParentFile());
+
+            try {
+                pack200_Default(SafeJarInputStream.create(inputJar), new BufferedOutputStream(new FileOutputStream(packFile)));
+
+                unpack200(new BufferedInputStream(new FileInputStream(packFile)),
+                          new JarOutputStream(new BufferedOutputStream(new FileOutputStream(outputJar))));
+            } finally {
+                if (!packFile.delete()) {
+                    packFile.deleteOnExit();
+                }
+            }
+        }
+
         /**
          * Repack (or NORMALIZE) a jar with pack200.  The filesize will increase SLIGHTLY, however, it will be consistent with
          * future pack200 operations.
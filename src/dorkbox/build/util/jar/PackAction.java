@@ -29,7 +29,7 @@ public enum PackAction {
 
     // The following affect the file load action
     Pack      (1 << 0), // 1  pack200  - everything (jar, etc) that can be pack200, IS pack200.
-    Lzma      (1 << 1), // 2  we only use LZMA, since it offers better compression than gzip
+    Lzma      (1 << 1), // 2  LZMA offers better compression than gzip (see Compress for other codecs)
     Encrypt   (1 << 2), // 4  aes encryption
 
     /**
@@ -73,6 +73,13 @@ public enum PackAction {
      * This means that files will be loaded by the bootstrap launcher. IF THIS ISN'T THERE, THEY WILL NOT BE LOADED!!
      */
     Package(1 << 7, Pack.getValue() | Lzma.getValue() | Encrypt.getValue()), // 128
+
+    /**
+     * Compresses with a {@link CompressionCodec} (instead of LZMA). The id of the codec is in the extra data (PackTask.codecId), so
+     * the launcher knows how to decode it. This is used instead of Lzma when a build picks a different codec (for example, a faster one
+     * for debug builds).
+     */
+    Compress(1 << 8), // 256
     ;
 
 
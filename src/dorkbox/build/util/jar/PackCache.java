@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dorkbox.build.util.BuildLog;
+import dorkbox.util.IO;
+
+/**
+ * An on-disk cache of packaged entries (the result of pack200, hashing and compression), so that entries that did not change (for
+ * example, the same third-party jar in every release) are not packaged again.
+ * <p/>
+ * The cache is content addressed. The key is the SHA-256 of the entry content, the pack actions, the compression codec, the debug flag
+ * and which class packer is used. Encryption happens while the entry is written (after the cache), so the key is never part of it.
+ * <p/>
+ * The files are written atomically, so this is safe to use from several threads (and builds). The cache directory can be deleted at
+ * any time.
+ * <p/>
+ * Large entries (see {@link ZipWriter#LARGE_ENTRY_SIZE}) are streamed into the jar, so they are never cached. The size of the cache is
+ * limited by {@link #prune()}, which deletes the least recently used files (a file is "used" when it's loaded), and is called before
+ * the cache is used by a build. While a build is running, the cache can grow beyond the limit by what that build adds.
+ */
+public
+class PackCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // the first value of every cache file. Changing how the entries are packaged must change this, so old files are ignored.
+    private static final int VERSION = 3;
+
+    private final File directory;
+    private final long maxSize;
+
+    private final AtomicInteger hits = new AtomicInteger(0);
+    private final AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * @param maxSize the (approximate) maximum size of the cache directory, in bytes. See {@link #prune()}
+     */
+    public
+    PackCache(final File directory, final long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Deletes the least recently used files, until the cache is not larger than it's maximum size.
+     */
+    public
+    void prune() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0L;
+        for (File file : files) {
+            size += file.length();
+        }
+
+        if (size <= maxSize) {
+            return;
+        }
+
+        // the lastModified time is read once, it can change (in another build) while sorting
+        final long[] times = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            times[i] = files[i].lastModified();
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public
+            int compare(final Integer o1, final Integer o2) {
+                return Long.compare(times[o1], times[o2]);
+            }
+        });
+
+        int deleted = 0;
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+
+            if (file.delete()) {
+                size -= length;
+                deleted++;
+            }
+        }
+
+        BuildLog.println("\tDeleted " + deleted + " old entries from the pack cache");
+    }
+
+    /**
+     * @return how many entries were loaded from the cache
+     */
+    public
+    int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many entries were packaged (and saved in the cache)
+     */
+    public
+    int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Packages the entry the same as {@link JarUtil#packEntry(PackTask)}, but uses the cached result if there is one.
+     * <p/>
+     * Only entries that are already in memory (and not large), and have something expensive to do (pack200 or compression) are cached.
+     */
+    void packEntry(final PackTask task) throws IOException {
+        Repack repack = task.pack;
+
+        boolean expensive = repack.canDo(PackAction.Pack) || repack.canDo(PackAction.Lzma) || repack.canDo(PackAction.Compress);
+        if (!expensive || !(task.inputStream instanceof ByteArrayInputStream) || task.length > ZipWriter.LARGE_ENTRY_SIZE) {
+            JarUtil.packEntry(task);
+            return;
+        }
+
+        long startTime = task.report != null ? PackReport.cpuTime() : 0L;
+
+        byte[] input = readAll(task.inputStream);
+        String codecKey = task.codec == null ? null : task.codec.getCacheKey();
+        File file = new File(directory, key(input, repack.getAction(), codecKey, task.debug, task.classArchive));
+
+        if (file.isFile() && load(file, task)) {
+            task.encrypt = JarUtil.isEncrypted(repack);
+            hits.incrementAndGet();
+
+            // so it's not pruned (it was used recently)
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                BuildLog.println("Unable to update the time of cached entry '" + repack.getName() + "'");
+            }
+
+            if (task.report != null) {
+                task.report.add(repack, "Cached", input.length, task.length, startTime);
+            }
+            return;
+        }
+
+        misses.incrementAndGet();
+
+        task.inputStream = new ByteArrayInputStream(input);
+        task.length = input.length;
+        JarUtil.packEntry(task);
+
+        if (!(task.inputStream instanceof ByteArrayInputStream)) {
+            // it got larger, and is streamed into the jar (it's not read into memory to cache it)
+            return;
+        }
+
+        byte[] output = readAll(task.inputStream);
+        task.inputStream = new ByteArrayInputStream(output);
+
+        try {
+            save(file, task.codecId, task.extraData, output);
+        } catch (IOException e) {
+            // the cache is only an optimization
+            BuildLog.println("Unable to save packaged entry '" + repack.getName() + "' in the cache: " + e.getMessage());
+        }
+    }
+
+    private static
+    boolean load(final File file, final PackTask task) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            if (input.readInt() != VERSION) {
+                return false;
+            }
+
+            int codecId = input.readInt();
+
+            byte[] extraData = null;
+            int extraDataLength = input.readInt();
+            if (extraDataLength > -1) {
+                extraData = new byte[extraDataLength];
+                input.readFully(extraData);
+            }
+
+            byte[] output = new byte[input.readInt()];
+            input.readFully(output);
+
+            task.codecId = codecId;
+            task.extraData = extraData;
+            task.inputStream = new ByteArrayInputStream(output);
+            task.length = output.length;
+            return true;
+        } catch (IOException e) {
+            // a broken file is the same as no file. It will be written again.
+            return false;
+        } finally {
+            IO.close(input);
+        }
+    }
+
+    private
+    void save(final File file, final int codecId, final byte[] extraData, final byte[] output) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        File tempFile = JarUtil.createTempFile(file);
+
+        DataOutputStream stream = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            stream.writeInt(VERSION);
+            stream.writeInt(codecId);
+            if (extraData == null) {
+                stream.writeInt(-1);
+            }
+            else {
+                stream.writeInt(extraData.length);
+                stream.write(extraData);
+            }
+            stream.writeInt(output.length);
+            stream.write(output);
+        } finally {
+            IO.close(stream);
+        }
+
+        JarUtil.moveAtomically(tempFile, file);
+    }
+
+    private static
+    String key(final byte[] input, final int action, final String codecKey, final boolean debug, final boolean classArchive)
+                    throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create the digest for the cache key", e);
+        }
+
+        digest.update(input);
+        digest.update(new byte[] {(byte) (action >>> 24), (byte) (action >>> 16), (byte) (action >>> 8), (byte) action,
+                                  (byte) (debug ? 1 : 0), (byte) (classArchive ? 1 : 0)});
+        if (codecKey != null) {
+            digest.update(codecKey.getBytes(UTF_8));
+        }
+
+        byte[] hash = digest.digest();
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >>> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+
+        return new String(chars);
+    }
+
+    private static
+    byte[] readAll(final InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(32, inputStream.available()));
+        IO.copyStream(inputStream, output);
+        IO.close(inputStream);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import dorkbox.util.IO;
+
+/**
+ * What every packaging step (pack200, hashing, compression, encryption) of every entry took: the bytes that went in and came out, and
+ * the CPU time. This is written next to the jar (as CSV and JSON), with totals per extension, so that the pack actions can be chosen
+ * from measurements.
+ * <p/>
+ * The CPU time is of the thread that did the step, so it is correct for parallel packaging (and for streamed entries). This is safe to
+ * use from several threads.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class PackReport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * One step of one entry
+     */
+    public static final
+    class Step {
+        public final String entry;
+        public final String extension;
+        public final String action;
+        public final long inputBytes;
+        public final long outputBytes;
+        public final long cpuNanos;
+
+        Step(final String entry, final String extension, final String action, final long inputBytes, final long outputBytes,
+             final long cpuNanos) {
+            this.entry = entry;
+            this.extension = extension;
+            this.action = action;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.cpuNanos = cpuNanos;
+        }
+    }
+
+    /**
+     * The totals of one action, for all of the entries with the same extension
+     */
+    private static final
+    class Total {
+        int entries = 0;
+        long inputBytes = 0L;
+        long outputBytes = 0L;
+        long cpuNanos = 0L;
+    }
+
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    /**
+     * @return the CPU time of the current thread (or the wall time, if the JVM cannot measure it)
+     */
+    static
+    long cpuTime() {
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            return threadBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a step that started at the {@link #cpuTime()} of the current thread
+     */
+    void add(final Repack repack, final String action, final long inputBytes, final long outputBytes, final long startTime) {
+        Step step = new Step(repack.getName(), repack.getExtension(), action, inputBytes, outputBytes, cpuTime() - startTime);
+        synchronized (steps) {
+            steps.add(step);
+        }
+    }
+
+    /**
+     * @return the stage, which also records the step (when it's done, on the thread that runs it)
+     */
+    StreamStage measure(final StreamStage stage, final Repack repack, final String action) {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                long startTime = cpuTime();
+
+                CountingInputStream countingInput = new CountingInputStream(input);
+                CountingOutputStream countingOutput = new CountingOutputStream(output);
+                stage.process(countingInput, countingOutput);
+
+                add(repack, action, countingInput.count, countingOutput.count, startTime);
+            }
+        };
+    }
+
+    /**
+     * @return all of the steps so far, in the order they were done
+     */
+    public
+    List<Step> getSteps() {
+        synchronized (steps) {
+            return new ArrayList<Step>(steps);
+        }
+    }
+
+    /**
+     * Writes the report next to the jar, as 'name.jar.pack-report.csv' and 'name.jar.pack-report.json'
+     */
+    public
+    void write(final File jarFile) throws IOException {
+        List<Step> steps = getSteps();
+
+        // extension -> action -> total
+        Map<String, Map<String, Total>> totals = new TreeMap<String, Map<String, Total>>();
+        for (Step step : steps) {
+            Map<String, Total> actions = totals.get(step.extension);
+            if (actions == null) {
+                actions = new TreeMap<String, Total>();
+                totals.put(step.extension, actions);
+            }
+
+            Total total = actions.get(step.action);
+            if (total == null) {
+                total = new Total();
+                actions.put(step.action, total);
+            }
+
+            total.entries++;
+            total.inputBytes += step.inputBytes;
+            total.outputBytes += step.outputBytes;
+            total.cpuNanos += step.cpuNanos;
+        }
+
+        writeCsv(new File(jarFile.getPath() + ".pack-report.csv"), steps, totals);
+        writeJson(new File(jarFile.getPath() + ".pack-report.json"), jarFile, steps, totals);
+    }
+
+    private static
+    void writeCsv(final File file, final List<Step> steps, final Map<String, Map<String, Total>> totals) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            writer.write("entry,extension,action,entries,inputBytes,outputBytes,cpuMillis\n");
+
+            for (Step step : steps) {
+                writer.write(csv(step.entry) + ',' + csv(step.extension) + ',' + csv(step.action) + ",1," + step.inputBytes + ',' +
+                             step.outputBytes + ',' + millis(step.cpuNanos) + '\n');
+            }
+
+            // the totals have no entry name
+            for (Map.Entry<String, Map<String, Total>> extension : totals.entrySet()) {
+                for (Map.Entry<String, Total> action : extension.getValue().entrySet()) {
+                    Total total = action.getValue();
+                    writer.write("*," + csv(extension.getKey()) + ',' + csv(action.getKey()) + ',' + total.entries + ',' +
+                                 total.inputBytes + ',' + total.outputBytes + ',' + millis(total.cpuNanos) + '\n');
+                }
+            }
+        } finally {
+            IO.close(writer);
+        }
+    }
+
+    private static
+    void writeJson(final File file, final File jarFile, final List<Step> steps, final Map<String, Map<String, Total>> totals)
+                    throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            writer.write("{\n  \"jar\": " + json(jarFile.getName()) + ",\n  \"entries\": [");
+
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                writer.write((i == 0 ? "\n" : ",\n") + "    {\"entry\": " + json(step.entry) + ", \"extension\": " + json(step.extension) +
+                             ", \"action\": " + json(step.action) + ", \"inputBytes\": " + step.inputBytes + ", \"outputBytes\": " +
+                             step.outputBytes + ", \"cpuMillis\": " + millis(step.cpuNanos) + '}');
+            }
+
+            writer.write("\n  ],\n  \"extensions\": [");
+
+            boolean first = true;
+            for (Map.Entry<String, Map<String, Total>> extension : totals.entrySet()) {
+                for (Map.Entry<String, Total> action : extension.getValue().entrySet()) {
+                    Total total = action.getValue();
+                    double ratio = total.inputBytes == 0 ? 1.0 : (double) total.outputBytes / total.inputBytes;
+
+                    writer.write((first ? "\n" : ",\n") + "    {\"extension\": " + json(extension.getKey()) + ", \"action\": " +
+                                 json(action.getKey()) + ", \"entries\": " + total.entries + ", \"inputBytes\": " + total.inputBytes +
+                                 ", \"outputBytes\": " + total.outputBytes + ", \"ratio\": " +
+                                 String.format(Locale.US, "%.4f", ratio) + ", \"cpuMillis\": " + millis(total.cpuNanos) + '}');
+                    first = false;
+                }
+            }
+
+            writer.write("\n  ]\n}\n");
+        } finally {
+            IO.close(writer);
+        }
+    }
+
+    private static
+    String millis(final long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000000.0D);
+    }
+
+    private static
+    String csv(final String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static
+    String json(final String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        builder.append(c);
+                    }
+            }
+        }
+
+        return builder.append('"').toString();
+    }
+
+
+    private static
+    class CountingInputStream extends FilterInputStream {
+        long count = 0L;
+
+        CountingInputStream(final InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public
+        int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public
+        int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public
+        long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+
+    private static
+    class CountingOutputStream extends FilterOutputStream {
+        long count = 0L;
+
+        CountingOutputStream(final OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public
+        void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public
+        void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
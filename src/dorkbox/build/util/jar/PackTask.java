@@ -24,12 +24,25 @@ public class PackTask {
     public Repack pack;
     long time;
 
-    int length;
+    long length;
     boolean debug = false;
+    // use ClassArchive instead of pack200
+    boolean classArchive = false;
     public byte[] extraData;
 
+    // the codec for PackAction.Compress (null for the default)
+    CompressionCodec codec;
+
+    // the id of the codec that was used to compress the data (0 if it was not compressed). This must be written in the extra data.
+    public int codecId = 0;
+
     // info on signing the jar, if it's going to be encrypted.
     EncryptInterface encryption;
+    // the data is encrypted while it's written (see JarUtil.writePacked)
+    boolean encrypt = false;
+
+    // where the packaging steps are recorded (null if they are not)
+    PackReport report;
 
     public PackTask(Repack pack, byte[] entryAsBytes) {
         this.pack = pack;
@@ -33,6 +33,15 @@ public class Repack {
         }
     }
 
+    /**
+     * Add an action
+     */
+    public void add(PackAction... actions) {
+        for (PackAction action : actions) {
+            this.actionValue |= action.getValue();
+        }
+    }
+
     /**
      * Remove an action, if it exists.
      */
@@ -15,7 +15,10 @@
  */
 package dorkbox.build.util.jar;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.jar.JarFile;
@@ -34,6 +37,25 @@ public class SafeJarInputStream extends JarInputStream {
     private final byte[] manifestBytes;
 
     public static SafeJarInputStream create(ByteArrayInputStream inputStream) throws IOException {
+        final byte[] manifestBytes = readManifestBytes(inputStream);
+        inputStream.reset();
+
+        return new SafeJarInputStream(inputStream, true, manifestBytes);
+    }
+
+    /**
+     * Reads the jar from the file (instead of from memory). The file is read twice, once for the manifest and once for the entries.
+     */
+    public static SafeJarInputStream create(File file) throws IOException {
+        final byte[] manifestBytes = readManifestBytes(new BufferedInputStream(new FileInputStream(file)));
+
+        return new SafeJarInputStream(new BufferedInputStream(new FileInputStream(file)), true, manifestBytes);
+    }
+
+    /**
+     * @return the manifest bytes (exactly as they are in the jar), or null if there is no manifest. The input stream is closed.
+     */
+    private static byte[] readManifestBytes(InputStream inputStream) throws IOException {
         // we KNOW that the manifest is the FIRST zip entry!
         // This is stupid, but the only way i know how to get the first entry
         // ALSO.. might not have a manifest!
@@ -56,9 +78,8 @@ public class SafeJarInputStream extends JarInputStream {
         }
 
         IO.close(zipInputStream);
-        inputStream.reset();
 
-        return new SafeJarInputStream(inputStream, true, manifestBytes);
+        return manifestBytes;
     }
 
 
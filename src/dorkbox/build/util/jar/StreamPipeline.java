@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dorkbox.util.IO;
+
+/**
+ * Chains {@link StreamStage}s (for example, LZMA decode then unpack200), where every stage runs on it's own thread, and the stages are
+ * connected with fixed size ring buffers. The memory that is used does not depend on how large the stream is, and the stages work at
+ * the same time.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class StreamPipeline {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // stages wait on each other, so the number of threads cannot be limited (that could deadlock). Idle threads go away.
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public
+        Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "Stream stage-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A fixed size ring buffer between two threads. If the writer fails, the reader gets the error. If the reader closes it's end, the
+     * writer gets an error (so it stops).
+     */
+    static final
+    class Pipe {
+        private final byte[] buffer;
+        private int readPosition = 0;
+        private int count = 0;
+
+        private boolean writeClosed = false;
+        private boolean readClosed = false;
+        private Throwable failure;
+
+        final InputStream input = new InputStream() {
+            private final byte[] singleByte = new byte[1];
+
+            @Override
+            public
+            int read() throws IOException {
+                int read = read(singleByte, 0, 1);
+                return read < 0 ? -1 : singleByte[0] & 0xFF;
+            }
+
+            @Override
+            public
+            int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+
+                synchronized (Pipe.this) {
+                    while (count == 0) {
+                        if (failure != null) {
+                            throw new IOException("Stream stage failed: " + failure.getMessage(), failure);
+                        }
+                        if (writeClosed) {
+                            return -1;
+                        }
+                        if (readClosed) {
+                            throw new IOException("Pipe closed");
+                        }
+                        await();
+                    }
+
+                    int read = Math.min(length, Math.min(count, buffer.length - readPosition));
+                    System.arraycopy(buffer, readPosition, bytes, offset, read);
+
+                    readPosition = (readPosition + read) % buffer.length;
+                    count -= read;
+
+                    Pipe.this.notifyAll();
+                    return read;
+                }
+            }
+
+            @Override
+            public
+            int available() {
+                synchronized (Pipe.this) {
+                    return count;
+                }
+            }
+
+            @Override
+            public
+            void close() {
+                synchronized (Pipe.this) {
+                    readClosed = true;
+                    Pipe.this.notifyAll();
+                }
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            private final byte[] singleByte = new byte[1];
+
+            @Override
+            public
+            void write(final int b) throws IOException {
+                singleByte[0] = (byte) b;
+                write(singleByte, 0, 1);
+            }
+
+            @Override
+            public
+            void write(final byte[] bytes, int offset, int length) throws IOException {
+                synchronized (Pipe.this) {
+                    while (length > 0) {
+                        while (count == buffer.length && !readClosed) {
+                            await();
+                        }
+                        if (readClosed) {
+                            throw new IOException("Pipe closed by the reader");
+                        }
+                        if (writeClosed) {
+                            throw new IOException("Pipe closed");
+                        }
+
+                        int writePosition = (readPosition + count) % buffer.length;
+                        int write = Math.min(length, Math.min(buffer.length - count, buffer.length - writePosition));
+                        System.arraycopy(bytes, offset, buffer, writePosition, write);
+
+                        count += write;
+                        offset += write;
+                        length -= write;
+
+                        Pipe.this.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public
+            void close() {
+                synchronized (Pipe.this) {
+                    writeClosed = true;
+                    Pipe.this.notifyAll();
+                }
+            }
+        };
+
+        Pipe(final int size) {
+            this.buffer = new byte[size];
+        }
+
+        synchronized
+        void fail(final Throwable throwable) {
+            failure = throwable;
+            notifyAll();
+        }
+
+        private
+        void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a stream stage");
+            }
+        }
+    }
+
+
+    private final StreamStage[] stages;
+
+    public
+    StreamPipeline(final StreamStage... stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Runs all of the stages, from the input to the output. The last stage runs on the calling thread, all others on their own thread.
+     * Both streams are closed.
+     */
+    public
+    void run(final InputStream input, final OutputStream output) throws IOException {
+        if (stages.length == 0) {
+            try {
+                IO.copyStream(input, output);
+            } finally {
+                IO.close(input);
+                IO.close(output);
+            }
+            return;
+        }
+
+        InputStream stream = open(input, stages.length - 1);
+        try {
+            stages[stages.length - 1].process(stream, output);
+        } finally {
+            // if the last stage failed, closing it's input stops the stages before it
+            IO.close(stream);
+            IO.close(output);
+        }
+    }
+
+    /**
+     * Starts all of the stages (each on it's own thread).
+     *
+     * @return the output of the last stage. If any stage fails, reading this throws the error. Closing it stops the stages.
+     */
+    public
+    InputStream open(final InputStream input) {
+        return open(input, stages.length);
+    }
+
+    private
+    InputStream open(final InputStream input, final int count) {
+        InputStream stream = input;
+
+        for (int i = 0; i < count; i++) {
+            Pipe pipe = new Pipe(BUFFER_SIZE);
+            start(stages[i], stream, pipe);
+            stream = pipe.input;
+        }
+
+        return stream;
+    }
+
+    private static
+    void start(final StreamStage stage, final InputStream input, final Pipe pipe) {
+        executor.execute(new Runnable() {
+            @Override
+            public
+            void run() {
+                try {
+                    stage.process(input, pipe.output);
+                    pipe.output.close();
+                } catch (Throwable throwable) {
+                    pipe.fail(throwable);
+                } finally {
+                    // if this is a pipe, it stops the stage before this one (if it failed)
+                    IO.close(input);
+                }
+            }
+        });
+    }
+}
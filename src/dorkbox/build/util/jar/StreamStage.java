@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.jar.JarOutputStream;
+
+import dorkbox.util.LZMA;
+
+/**
+ * One stage of a {@link StreamPipeline}. A stage reads all of it's input, and writes the result to the output (as it goes, so that it
+ * never has to hold the whole stream in memory).
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public abstract
+class StreamStage {
+    /**
+     * LZMA compression. The LZMA header has the uncompressed length, so it must be known up front.
+     */
+    public static
+    StreamStage lzmaEncode(final long length) {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                LZMA.encode(length, input, output);
+            }
+        };
+    }
+
+    /**
+     * Compression with the codec
+     */
+    public static
+    StreamStage encode(final CompressionCodec codec, final long length) {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                codec.encode(length, input, output);
+            }
+        };
+    }
+
+    /**
+     * Decompression with the codec
+     */
+    public static
+    StreamStage decode(final CompressionCodec codec) {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                codec.decode(input, output);
+            }
+        };
+    }
+
+    /**
+     * LZMA decompression
+     */
+    public static
+    StreamStage lzmaDecode() {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                LZMA.decode(input, output);
+            }
+        };
+    }
+
+    /**
+     * {@link ClassArchive} expanding (the input must be a class archive). The output is the expanded jar.
+     */
+    public static
+    StreamStage expandClassArchive() {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                ClassArchive.expand(input, output);
+            }
+        };
+    }
+
+    /**
+     * Pack200 unpacking (the input must be pack200 data). The output is the unpacked jar.
+     */
+    public static
+    StreamStage unpack200() {
+        return new StreamStage() {
+            @Override
+            public
+            void process(final InputStream input, final OutputStream output) throws IOException {
+                // the unpacker closes the jar stream, but the output belongs to the pipeline
+                Pack200Util.Java.unpack200(input, new JarOutputStream(new NonClosingOutputStream(output)));
+            }
+        };
+    }
+
+
+    /**
+     * Reads all of the input, and writes the result to the output. The streams are closed by the pipeline.
+     */
+    public abstract
+    void process(InputStream input, OutputStream output) throws IOException;
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarFile;
+
+import dorkbox.util.IO;
+
+/**
+ * Normalizes a zip/jar file, so that the same content always results in exactly the same file. This replaces the pack200 "repack" (pack
+ * + unpack) that was used to normalize jars, which was slow, kept everything in memory, and does not exist on newer JDKs.
+ * <p/>
+ * The normalized file has:
+ * <ul>
+ *     <li>the entries in the same order as the input file, except for the manifest, which is moved to the front if it isn't there
+ *     already (it must be the first entry for JarInputStream)</li>
+ *     <li>fixed timestamps (if a date is specified)</li>
+ *     <li>no extra fields or comments</li>
+ *     <li>every entry compressed again according to the same {@link CompressionPolicy} (directories and empty files are stored)</li>
+ * </ul>
+ * The entries are read (via the central directory) and written in a single pass, file to file. Entries that were already compressed
+ * according to the policy can be copied without inflating and deflating them again.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class ZipNormalizer {
+    private static final String MANIFEST_NAME = JarFile.MANIFEST_NAME.toUpperCase();
+
+    /**
+     * The order of the entries in a merged zip file: the manifest first, then the rest of META-INF (signature files must be before the
+     * signed entries), then everything else sorted by name
+     */
+    static final Comparator<String> ENTRY_ORDER = new Comparator<String>() {
+        @Override
+        public
+        int compare(final String name1, final String name2) {
+            int group1 = group(name1);
+            int group2 = group(name2);
+
+            if (group1 != group2) {
+                return group1 < group2 ? -1 : 1;
+            }
+
+            return name1.compareTo(name2);
+        }
+
+        private
+        int group(final String name) {
+            String upperCase = name.toUpperCase();
+
+            if (upperCase.equals(JarUtil.metaInfName)) {
+                return 0;
+            }
+            if (upperCase.equals(MANIFEST_NAME)) {
+                return 1;
+            }
+            if (upperCase.startsWith(JarUtil.metaInfName)) {
+                return 2;
+            }
+            return 3;
+        }
+    };
+
+    /**
+     * Normalizes the input zip file, and writes the result to the output file. Every entry is compressed again.
+     *
+     * @param date the date of every entry, or -1 to keep the dates of the entries
+     * @param policy how the entries are compressed
+     */
+    public static
+    void normalize(final File inputZip, final File outputZip, final long date, final CompressionPolicy policy) throws IOException {
+        normalize(inputZip, outputZip, date, policy, true);
+    }
+
+    /**
+     * Normalizes the input zip file, and writes the result to the output file.
+     *
+     * @param date the date of every entry, or -1 to keep the dates of the entries
+     * @param policy how the entries are compressed
+     * @param recompress false if the entries of the input file were already compressed according to the policy (for example, it was
+     *                   just written by us). Then the compressed data is copied as-is, instead of being inflated and deflated again.
+     */
+    public static
+    void normalize(final File inputZip, final File outputZip, final long date, final CompressionPolicy policy, final boolean recompress)
+                    throws IOException {
+
+        ZipReader input = new ZipReader(inputZip);
+        ZipWriter output = null;
+
+        try {
+            // the order is kept, only the manifest (and the META-INF directory before it) are moved to the front
+            List<ZipReader.Entry> entries = new ArrayList<ZipReader.Entry>(input.getEntries());
+            int front = 0;
+            for (String name : new String[] {JarUtil.metaInfName, MANIFEST_NAME}) {
+                for (int i = front; i < entries.size(); i++) {
+                    if (entries.get(i).getName().equalsIgnoreCase(name)) {
+                        entries.add(front++, entries.remove(i));
+                        break;
+                    }
+                }
+            }
+
+            output = new ZipWriter(new BufferedOutputStream(new FileOutputStream(outputZip)));
+
+            for (ZipReader.Entry entry : entries) {
+                String name = entry.getName();
+                int dosTime = date > -1 ? ZipWriter.javaToDosTime(date) : entry.dosTime;
+
+                if (entry.isDirectory()) {
+                    output.copyEntry(name, dosTime, CompressedEntry.EMPTY);
+                    continue;
+                }
+
+                if (!recompress) {
+                    output.copyEntry(name, dosTime, input, entry);
+                }
+                else if (entry.getSize() > ZipWriter.LARGE_ENTRY_SIZE) {
+                    // large entries are streamed (inflated and deflated again) instead of being read into memory
+                    int level;
+                    InputStream sample = input.getInputStream(entry);
+                    try {
+                        level = policy.streamingLevel(name, sample);
+                    } finally {
+                        IO.close(sample);
+                    }
+
+                    InputStream data = input.getInputStream(entry);
+                    try {
+                        output.streamEntry(name, dosTime, level, entry.getCrc(), entry.getSize(), data);
+                    } finally {
+                        IO.close(data);
+                    }
+                }
+                else {
+                    output.copyEntry(name, dosTime, policy.compress(name, readEntry(input, entry)));
+                }
+            }
+
+            output.finish();
+        } finally {
+            IO.close(output);
+            input.close();
+        }
+    }
+
+    private static
+    byte[] readEntry(final ZipReader zipReader, final ZipReader.Entry entry) throws IOException {
+        long size = entry.getSize();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE ? (int) size : 8192);
+
+        InputStream input = zipReader.getInputStream(entry);
+        try {
+            IO.copyStream(input, bytes);
+        } finally {
+            IO.close(input);
+        }
+
+        return bytes.toByteArray();
+    }
+}
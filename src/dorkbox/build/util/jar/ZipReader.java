@@ -0,0 +1,462 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip file via it's central directory, and gives access to the (still compressed) data of each entry. This is so entries can be
+ * copied from one zip file to another without inflating and deflating them again.
+ * <p/>
+ * Zip64 files (entries or offsets of 4 GB or more, or more than 65534 entries) are supported. Entries are streamed from the file, so
+ * they can be of any size.
+ * <p/>
+ * Reading the entries is thread safe.
+ */
+@SuppressWarnings({"Convert2Diamond", "AnonymousHasLambdaAlternative"})
+public
+class ZipReader implements Closeable {
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final int FLAG_ENCRYPTED = 0x0001;
+
+    /**
+     * An entry of the zip file, as it is in the central directory.
+     */
+    public static final
+    class Entry {
+        final String name;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        Entry(final String name, final int flags, final int method, final int dosTime, final long crc, final long compressedSize,
+              final long size, final long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public
+        String getName() {
+            return name;
+        }
+
+        public
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * @return the CRC-32 of the uncompressed data
+         */
+        public
+        long getCrc() {
+            return crc;
+        }
+
+        public
+        long getSize() {
+            return size;
+        }
+
+        public
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return true if the data is stored (not compressed)
+         */
+        public
+        boolean isStored() {
+            return method == ZipWriter.STORED;
+        }
+
+        /**
+         * @return true if the CRC and sizes are after the data (in a data descriptor), because the entry was streamed into the zip
+         */
+        public
+        boolean hasDataDescriptor() {
+            return (flags & ZipWriter.FLAG_DATA_DESCRIPTOR) != 0;
+        }
+
+        /**
+         * @return the time of the entry (the zip file only stores the time with 2 second precision)
+         */
+        public
+        long getTime() {
+            return dosToJavaTime(dosTime);
+        }
+
+        @Override
+        public
+        String toString() {
+            return name;
+        }
+    }
+
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+
+    public
+    ZipReader(final File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+
+        try {
+            this.entries = readCentralDirectory();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw new ZipException("Invalid zip file: " + file + " (" + e.getMessage() + ")");
+        }
+
+        this.entriesByName = new HashMap<String, Entry>(entries.size() * 2);
+        for (Entry entry : entries) {
+            entriesByName.put(entry.name, entry);
+        }
+    }
+
+    public
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the entries, in the order they are in the central directory
+     */
+    public
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the entry with that name, or null if there is no such entry
+     */
+    public
+    Entry getEntry(final String name) {
+        return entriesByName.get(name);
+    }
+
+    public
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Reads the data of the entry as it is in the zip file (still compressed).
+     */
+    public
+    CompressedEntry readCompressed(final Entry entry) throws IOException {
+        if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("Encrypted entries are not supported: " + entry.name);
+        }
+        if (entry.method != ZipWriter.STORED && entry.method != ZipWriter.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+        }
+        if (entry.compressedSize > Integer.MAX_VALUE - 8) {
+            throw new ZipException("Entry is too large to read into memory (use getRawInputStream): " + entry.name);
+        }
+
+        ByteBuffer data = read(dataOffset(entry), (int) entry.compressedSize);
+
+        return new CompressedEntry(entry.method, entry.crc, entry.size, data.array(), (int) entry.compressedSize);
+    }
+
+    /**
+     * @return the data of the entry as it is in the zip file (still compressed), streamed from the file
+     */
+    public
+    InputStream getRawInputStream(final Entry entry) throws IOException {
+        if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("Encrypted entries are not supported: " + entry.name);
+        }
+
+        final long start = dataOffset(entry);
+        final long end = start + entry.compressedSize;
+
+        return new InputStream() {
+            private long position = start;
+            private final byte[] singleByte = new byte[1];
+
+            @Override
+            public
+            int read() throws IOException {
+                int read = read(singleByte, 0, 1);
+                return read < 0 ? -1 : singleByte[0] & 0xFF;
+            }
+
+            @Override
+            public
+            int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+
+                int toRead = (int) Math.min(length, end - position);
+                int read = channel.read(ByteBuffer.wrap(bytes, offset, toRead), position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of zip file: " + file);
+                }
+
+                position += read;
+                return read;
+            }
+
+            @Override
+            public
+            int available() {
+                return (int) Math.min(end - position, Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    /**
+     * @return the (uncompressed) data of the entry, streamed from the file
+     */
+    public
+    InputStream getInputStream(final Entry entry) throws IOException {
+        if (entry.method != ZipWriter.STORED && entry.method != ZipWriter.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+        }
+
+        final InputStream input = getRawInputStream(entry);
+
+        if (entry.method == ZipWriter.STORED) {
+            return input;
+        }
+
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(input, inflater, 8192) {
+            private boolean closed = false;
+
+            @Override
+            public
+            void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    inflater.end();
+                    super.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public
+    void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * The local header can have different extra fields than the central directory, so we have to read it to find the data
+     */
+    private
+    long dataOffset(final Entry entry) throws IOException {
+        ByteBuffer header = read(entry.offset, 30);
+        if (header.getInt(0) != ZipWriter.LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header: " + entry.name);
+        }
+
+        return entry.offset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    private
+    List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+
+        // the end of central directory record is at the end of the file, followed by a comment (of up to 64k)
+        int searchSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        long searchStart = fileSize - searchSize;
+        ByteBuffer tail = read(searchStart, searchSize);
+
+        int endRecord = -1;
+        for (int i = searchSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == ZipWriter.END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                endRecord = i;
+                break;
+            }
+        }
+
+        if (endRecord == -1) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+
+        long count = tail.getShort(endRecord + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(endRecord + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.getInt(endRecord + 16) & 0xFFFFFFFFL;
+
+        // a zip64 file has a locator (that points to the zip64 end of central directory record) just before the end record
+        long locator = searchStart + endRecord - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0) {
+            ByteBuffer locatorRecord = read(locator, ZIP64_LOCATOR_SIZE);
+
+            if (locatorRecord.getInt(0) == ZipWriter.ZIP64_LOCATOR_SIGNATURE) {
+                long zip64EndOffset = locatorRecord.getLong(8);
+                ByteBuffer zip64End = read(zip64EndOffset, ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+
+                if (zip64End.getInt(0) != ZipWriter.ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    throw new ZipException("Invalid zip64 end of central directory: " + file);
+                }
+
+                count = zip64End.getLong(32);
+                centralDirectorySize = zip64End.getLong(40);
+                centralDirectoryOffset = zip64End.getLong(48);
+            }
+        }
+
+        if (centralDirectoryOffset + centralDirectorySize > fileSize || centralDirectorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory: " + file);
+        }
+
+        ByteBuffer directory = read(centralDirectoryOffset, (int) centralDirectorySize);
+
+        List<Entry> entries = new ArrayList<Entry>((int) Math.min(count, 65536));
+        int position = 0;
+        while (position + 46 <= centralDirectorySize) {
+            if (directory.getInt(position) != ZipWriter.CENTRAL_HEADER_SIGNATURE) {
+                break;
+            }
+
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            int dosTime = directory.getInt(position + 12);
+            long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + 46);
+            directory.get(nameBytes);
+
+            if (size == ZipWriter.ZIP64_MAGIC || compressedSize == ZipWriter.ZIP64_MAGIC || offset == ZipWriter.ZIP64_MAGIC) {
+                // only the values that don't fit are in the zip64 extra field (in this order)
+                int extra = position + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+
+                while (extra + 4 <= extraEnd) {
+                    int headerId = directory.getShort(extra) & 0xFFFF;
+                    int dataSize = directory.getShort(extra + 2) & 0xFFFF;
+
+                    if (headerId == ZipWriter.ZIP64_EXTRA) {
+                        int value = extra + 4;
+                        if (size == ZipWriter.ZIP64_MAGIC) {
+                            size = directory.getLong(value);
+                            value += 8;
+                        }
+                        if (compressedSize == ZipWriter.ZIP64_MAGIC) {
+                            compressedSize = directory.getLong(value);
+                            value += 8;
+                        }
+                        if (offset == ZipWriter.ZIP64_MAGIC) {
+                            offset = directory.getLong(value);
+                        }
+                        break;
+                    }
+
+                    extra += 4 + dataSize;
+                }
+            }
+
+            // if the UTF-8 flag is not set, the name is supposed to be IBM437. Java (and everything else) uses UTF-8 anyways.
+            String name = new String(nameBytes, ZipWriter.UTF_8);
+
+            entries.add(new Entry(name, flags, method, dosTime, crc, compressedSize, size, offset));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        return Collections.unmodifiableList(entries);
+    }
+
+    private
+    ByteBuffer read(final long position, final int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+
+        // positional reads do not change the position of the channel, so this is safe to do from several threads
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of zip file: " + file);
+            }
+            offset += read;
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Converts MS-DOS date/time (in the default time zone) to java time, the same as {@link java.util.zip.ZipEntry#getTime()}
+     */
+    static
+    long dosToJavaTime(final int dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(((dosTime >> 25) & 0x7f) + 1980,
+                     ((dosTime >> 21) & 0x0f) - 1,
+                     (dosTime >> 16) & 0x1f,
+                     (dosTime >> 11) & 0x1f,
+                     (dosTime >> 5) & 0x3f,
+                     (dosTime << 1) & 0x3e);
+        return calendar.getTimeInMillis();
+    }
+}
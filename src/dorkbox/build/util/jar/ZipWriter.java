@@ -0,0 +1,885 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import dorkbox.util.Base64Fast;
+
+/**
+ * Writes a zip file "by hand", so that we control exactly what is written. There are no extra fields (a JarOutputStream adds 0xCAFE
+ * to the first entry), and entries can be written from data that was already compressed (on another thread, or copied from another
+ * zip file).
+ * <p/>
+ * Entries are written in the order they are added. Entries written with {@link #writeEntry(String, long, CompressedEntry)} have their
+ * sizes and CRC in the local header, entries that are streamed with {@link #putNextEntry(String, long)} use a data descriptor.
+ * <p/>
+ * Zip64 records are written only when they are needed (entries or offsets of 4 GB or more, or more than 65534 entries), so small zip
+ * files are the same as before. Streamed entries of 4 GB or more must be started with their size, so that their local header has the
+ * zip64 extra field (which tells readers that the data descriptor has 8 byte sizes).
+ * <p/>
+ * For signed jars, the entries can be digested while they are written (see {@link #setDigest(String)}). The manifest and signature
+ * files must be the first entries, so they are written in front of the other entries when the jar is finished (see {@link
+ * #finish(File, OutputStream, List, List, long)}).
+ * <p/>
+ * Like the other zip/jar streams, this is NOT thread safe.
+ */
+public
+class ZipWriter extends OutputStream {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    // the header ID of the zip64 extra field, and the values in the headers that mean "the real value is in the zip64 record"
+    static final int ZIP64_EXTRA = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * Entries that are larger than this are streamed (with a fixed size buffer), instead of being compressed in memory.
+     */
+    static final long LARGE_ENTRY_SIZE = 16L * 1024L * 1024L;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    // general purpose flags
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * An entry that has been written, and will be in the central directory.
+     */
+    static final
+    class Entry {
+        final byte[] name;
+        final int dosTime;
+        final int method;
+        final int flags;
+        long crc;
+        long compressedSize;
+        long size;
+        final long offset;
+
+        Entry(final byte[] name, final int dosTime, final int method, final int flags, final long offset) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.method = method;
+            this.flags = flags;
+            this.offset = offset;
+        }
+
+        /**
+         * The same entry, at a different offset
+         */
+        Entry(final Entry entry, final long offset) {
+            this(entry.name, entry.dosTime, entry.method, entry.flags, offset);
+            this.crc = entry.crc;
+            this.compressedSize = entry.compressedSize;
+            this.size = entry.size;
+        }
+    }
+
+
+    private OutputStream out;
+    private long written = 0L;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Set<String> names = new HashSet<String>();
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    // the entry that is currently being streamed (if any), and if it has the zip64 extra field
+    private Entry current;
+    private boolean currentZip64;
+    private Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private final byte[] streamBuffer = new byte[65536];
+
+    private final byte[] header = new byte[64];
+    private final byte[] singleByte = new byte[1];
+
+    // the entries are digested while they are written (if there is a digest), so a jar can be signed without reading it again
+    private MessageDigest digest;
+    private boolean digesting = false;
+    private Inflater inflater;
+    private final Map<String, String> digests = new LinkedHashMap<String, String>();
+
+    private boolean finished = false;
+
+    /**
+     * @param out where the zip is written. This should be buffered, since we write many small headers.
+     */
+    public
+    ZipWriter(final OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Sets the compression level of entries that are compressed by this writer (streamed entries and {@link #writeEntry(String, long,
+     * byte[])}).
+     */
+    public
+    void setLevel(final int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.level = level;
+    }
+
+    public
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Digests the entries (except directories and META-INF) while they are written, so that the jar can be signed without reading the
+     * entries again. This must be set before the first entry is written.
+     *
+     * @param algorithm the digest that the jar is signed with (for example, "SHA1")
+     */
+    public
+    void setDigest(final String algorithm) throws IOException {
+        if (!this.entries.isEmpty()) {
+            throw new IllegalStateException("The digest must be set before the first entry is written");
+        }
+
+        try {
+            this.digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create the digest " + algorithm, e);
+        }
+    }
+
+    /**
+     * @return the digest algorithm of the entries, or null if they are not digested
+     */
+    public
+    String getDigestAlgorithm() {
+        if (this.digest == null) {
+            return null;
+        }
+        return this.digest.getAlgorithm();
+    }
+
+    /**
+     * @return the (base64) digests of the entries that were written, in the order they were written
+     */
+    public
+    Map<String, String> getDigests() {
+        return Collections.unmodifiableMap(this.digests);
+    }
+
+    /**
+     * @return true if the entry is digested for signing. The same entries as JarSigner digests: not directories, and not in META-INF.
+     */
+    static
+    boolean isDigested(final String name) {
+        return !name.endsWith("/") && !name.startsWith(JarUtil.metaInfName);
+    }
+
+    /**
+     * @return true if an entry with the name was already written
+     */
+    public
+    boolean contains(final String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Writes a directory entry. Directory names must end with a '/'
+     */
+    public
+    void writeDirectory(final String name, final long time) throws IOException {
+        if (!name.endsWith("/")) {
+            throw new IllegalArgumentException("Directory names must end with a '/': " + name);
+        }
+
+        writeEntry(name, time, CompressedEntry.EMPTY);
+    }
+
+    /**
+     * Compresses the data with the level of this writer (on the calling thread), and writes it as an entry.
+     */
+    public
+    void writeEntry(final String name, final long time, final byte[] data) throws IOException {
+        writeEntry(name, time, CompressedEntry.deflate(data, 0, data.length, level));
+    }
+
+    /**
+     * Writes an entry with data that was already compressed.
+     */
+    public
+    void writeEntry(final String name, final long time, final CompressedEntry data) throws IOException {
+        copyEntry(name, javaToDosTime(time), data);
+    }
+
+    /**
+     * Writes an entry with data that was already compressed, and the (MS-DOS) time that is was already in another zip file.
+     */
+    void copyEntry(final String name, final int dosTime, final CompressedEntry data) throws IOException {
+        Entry entry = startEntry(name, dosTime, data.method, 0);
+        entry.crc = data.crc;
+        entry.size = data.size;
+        entry.compressedSize = data.compressedSize;
+
+        writeLocalHeader(entry, false);
+        data.writeTo(this.out);
+        this.written += data.compressedSize;
+
+        if (this.digesting) {
+            if (data.digest != null) {
+                // it was digested when it was compressed
+                this.digests.put(name, data.digest);
+            }
+            else {
+                digestCompressed(data.method, data.data, 0, (int) data.compressedSize);
+                finishDigest(name, data.method);
+            }
+        }
+    }
+
+    /**
+     * Copies an entry from another zip file, without inflating it. Large entries are streamed, everything else is read into memory.
+     * <p/>
+     * An entry that was streamed into the other zip (it has a data descriptor) is written the same way (with the same data descriptor)
+     * as {@link #streamEntry(String, int, int, long, long, InputStream)} writes it, so the zip is the same as if it was streamed again.
+     */
+    void copyEntry(final String name, final int dosTime, final ZipReader reader, final ZipReader.Entry entry) throws IOException {
+        if (entry.isDirectory()) {
+            copyEntry(name, dosTime, CompressedEntry.EMPTY);
+        }
+        else if (entry.getCompressedSize() <= LARGE_ENTRY_SIZE && !entry.hasDataDescriptor()) {
+            copyEntry(name, dosTime, reader.readCompressed(entry));
+        }
+        else {
+            int flags = entry.hasDataDescriptor() ? FLAG_DATA_DESCRIPTOR : 0;
+
+            InputStream input = reader.getRawInputStream(entry);
+            try {
+                copyEntry(name, dosTime, entry.method, flags, entry.crc, entry.size, entry.compressedSize, input);
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Writes an entry where the CRC and sizes are already known, by copying the (already compressed) data from the input stream.
+     */
+    void copyEntry(final String name, final int dosTime, final int method, final long crc, final long size, final long compressedSize,
+                   final InputStream data) throws IOException {
+        copyEntry(name, dosTime, method, 0, crc, size, compressedSize, data);
+    }
+
+    /**
+     * @param flags {@link #FLAG_DATA_DESCRIPTOR} to write the CRC and sizes after the data (like a streamed entry), or 0
+     */
+    private
+    void copyEntry(final String name, final int dosTime, final int method, final int flags, final long crc, final long size,
+                   final long compressedSize, final InputStream data) throws IOException {
+        Entry entry = startEntry(name, dosTime, method, flags);
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+
+        // a streamed entry has the zip64 extra field if it was started with a size of 4 GB or more (see putNextEntry)
+        boolean dataDescriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        boolean zip64 = dataDescriptor && size >= ZIP64_MAGIC;
+        writeLocalHeader(entry, zip64);
+
+        long remaining = compressedSize;
+        while (remaining > 0) {
+            int read = data.read(this.buffer, 0, (int) Math.min(this.buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of data for " + name);
+            }
+
+            this.out.write(this.buffer, 0, read);
+            remaining -= read;
+
+            if (this.digesting) {
+                digestCompressed(method, this.buffer, 0, read);
+            }
+        }
+        this.written += compressedSize;
+
+        if (dataDescriptor) {
+            writeDataDescriptor(entry, zip64);
+        }
+
+        if (this.digesting) {
+            finishDigest(name, method);
+        }
+    }
+
+    /**
+     * Writes a (large) entry by streaming the uncompressed data, with a fixed size buffer.
+     *
+     * @param level the compression level, or {@link CompressionPolicy#STORED}. Stored entries must have the CRC and size, since they
+     *              cannot use a data descriptor. Entries that {@link #canDeflateStreamed(long) cannot be deflated} are always stored.
+     */
+    void streamEntry(final String name, final int dosTime, final int level, final long crc, final long size, final InputStream data)
+                    throws IOException {
+        if (level == CompressionPolicy.STORED || !canDeflateStreamed(size)) {
+            copyEntry(name, dosTime, STORED, crc, size, size, data);
+            return;
+        }
+
+        putNextEntry(name, dosTime, level, size);
+
+        int read;
+        while ((read = data.read(this.streamBuffer)) > 0) {
+            write(this.streamBuffer, 0, read);
+        }
+
+        if (this.current.size != size) {
+            throw new ZipException("The size of " + name + " changed while it was written");
+        }
+
+        closeEntry();
+    }
+
+    /**
+     * @return true if an entry of this (uncompressed) size can be compressed while it is streamed. Entries that are just under 4 GB
+     * might be 4 GB or more after they are deflated (if they don't compress), which needs a zip64 data descriptor that readers would
+     * not expect, so those have to be stored instead.
+     */
+    static
+    boolean canDeflateStreamed(final long size) {
+        // the most that deflate can grow the data (stored blocks have a 5 byte header for every 16 KB)
+        return size >= ZIP64_MAGIC || size + (size >>> 11) + 1024 < ZIP64_MAGIC;
+    }
+
+    /**
+     * Starts an entry that is compressed while it is written (with {@link #write(byte[], int, int)}). The size and CRC are written
+     * after the data, in a data descriptor. {@link #closeEntry()} must be called when done.
+     */
+    public
+    void putNextEntry(final String name, final long time) throws IOException {
+        putNextEntry(name, javaToDosTime(time), this.level, -1L);
+    }
+
+    /**
+     * Starts an entry that is compressed (with the specified level) while it is written.
+     *
+     * @param size the uncompressed size, or -1 if it isn't known. Entries of 4 GB or more must have their size (see {@link
+     *             #canDeflateStreamed(long)}), everything else fails when it reaches 4 GB.
+     */
+    void putNextEntry(final String name, final int dosTime, final int level, final long size) throws IOException {
+        Entry entry = startEntry(name, dosTime, DEFLATED, FLAG_DATA_DESCRIPTOR);
+        this.currentZip64 = size >= ZIP64_MAGIC;
+        writeLocalHeader(entry, this.currentZip64);
+
+        if (this.deflater == null) {
+            this.deflater = new Deflater(level, true);
+        }
+        else {
+            this.deflater.reset();
+            this.deflater.setLevel(level);
+        }
+
+        this.crc.reset();
+        this.current = entry;
+    }
+
+    @Override
+    public
+    void write(final int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public
+    void write(final byte[] b, final int off, final int len) throws IOException {
+        if (this.current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        if (len == 0) {
+            return;
+        }
+
+        this.crc.update(b, off, len);
+        this.current.size += len;
+
+        if (this.digesting) {
+            this.digest.update(b, off, len);
+        }
+
+        this.deflater.setInput(b, off, len);
+        while (!this.deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Finishes the entry that was started with {@link #putNextEntry(String, long)}
+     */
+    public
+    void closeEntry() throws IOException {
+        Entry entry = this.current;
+        if (entry == null) {
+            return;
+        }
+
+        this.deflater.finish();
+        while (!this.deflater.finished()) {
+            deflate();
+        }
+
+        entry.crc = this.crc.getValue();
+        entry.compressedSize = this.deflater.getBytesWritten();
+
+        if (this.digesting) {
+            // the data was digested before it was compressed
+            finishDigest(new String(entry.name, UTF_8), STORED);
+        }
+
+        if (!this.currentZip64 && (entry.compressedSize >= ZIP64_MAGIC || entry.size >= ZIP64_MAGIC)) {
+            // the local header (without the zip64 extra field) is already written, so readers would expect 4 byte sizes
+            throw new ZipException("Streamed entries of 4 GB or more must be started with their size: " + new String(entry.name, UTF_8));
+        }
+
+        writeDataDescriptor(entry, this.currentZip64);
+        this.current = null;
+    }
+
+    private
+    void writeDataDescriptor(final Entry entry, final boolean zip64) throws IOException {
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(entry.crc);
+        if (zip64) {
+            // the zip64 data descriptor has 8 byte sizes (the local header has the zip64 extra field, and more than 4 GB was read)
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        }
+        else {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+    }
+
+    private
+    void deflate() throws IOException {
+        int length = this.deflater.deflate(this.buffer, 0, this.buffer.length);
+        if (length > 0) {
+            this.out.write(this.buffer, 0, length);
+            this.written += length;
+        }
+    }
+
+    /**
+     * Digests the data of an entry, as it is in the zip file (deflated data is inflated first)
+     */
+    private
+    void digestCompressed(final int method, final byte[] bytes, final int offset, final int length) throws IOException {
+        if (method == STORED) {
+            this.digest.update(bytes, offset, length);
+            return;
+        }
+
+        if (this.inflater == null) {
+            this.inflater = new Inflater(true);
+        }
+
+        this.inflater.setInput(bytes, offset, length);
+        inflate();
+    }
+
+    private
+    void inflate() throws IOException {
+        try {
+            int length;
+            while ((length = this.inflater.inflate(this.streamBuffer)) > 0) {
+                this.digest.update(this.streamBuffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data: " + e.getMessage());
+        }
+    }
+
+    private
+    void finishDigest(final String name, final int method) throws IOException {
+        if (method != STORED && this.inflater != null) {
+            if (!this.inflater.finished()) {
+                // raw (nowrap) inflating sometimes needs an extra "dummy" byte at the end
+                this.inflater.setInput(new byte[1]);
+                inflate();
+            }
+            this.inflater.reset();
+        }
+
+        this.digests.put(name, Base64Fast.encodeToString(this.digest.digest(), false));
+    }
+
+    private
+    Entry startEntry(final String name, final int dosTime, final int method, final int flags) throws IOException {
+        if (this.finished) {
+            throw new ZipException("The zip file has already been finished");
+        }
+        if (this.current != null) {
+            closeEntry();
+        }
+        if (!this.names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        Entry entry = new Entry(name.getBytes(UTF_8), dosTime, method, flags | FLAG_UTF8, this.written);
+        this.entries.add(entry);
+
+        this.digesting = this.digest != null && isDigested(name);
+        if (this.digesting) {
+            this.digest.reset();
+        }
+        return entry;
+    }
+
+    /**
+     * @param streamedZip64 true if the entry is streamed (it has a data descriptor), and will be 4 GB or more
+     */
+    private
+    void writeLocalHeader(final Entry entry, final boolean streamedZip64) throws IOException {
+        final byte[] header = this.header;
+
+        boolean dataDescriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        boolean zip64 = dataDescriptor ? streamedZip64 : (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC);
+
+        putInt(header, 0, LOCAL_HEADER_SIGNATURE);
+        putShort(header, 4, zip64 ? 45 : versionNeeded(entry));
+        putShort(header, 6, entry.flags);
+        putShort(header, 8, entry.method);
+        putInt(header, 10, entry.dosTime);
+
+        if (dataDescriptor) {
+            // the real values are in the data descriptor. With zip64, the sizes point to the extra field (which has zeros)
+            putInt(header, 14, 0);
+            putInt(header, 18, zip64 ? ZIP64_MAGIC : 0);
+            putInt(header, 22, zip64 ? ZIP64_MAGIC : 0);
+        }
+        else {
+            putInt(header, 14, entry.crc);
+            putInt(header, 18, zip64 ? ZIP64_MAGIC : entry.compressedSize);
+            putInt(header, 22, zip64 ? ZIP64_MAGIC : entry.size);
+        }
+
+        putShort(header, 26, entry.name.length);
+        putShort(header, 28, zip64 ? 20 : 0); // only the zip64 extra field (if needed)
+
+        this.out.write(header, 0, 30);
+        this.out.write(entry.name);
+        this.written += 30 + entry.name.length;
+
+        if (zip64) {
+            // the local zip64 extra field must have both sizes (they are 0 for a streamed entry, they are in the data descriptor)
+            putShort(header, 0, ZIP64_EXTRA);
+            putShort(header, 2, 16);
+            putLong(header, 4, dataDescriptor ? 0L : entry.size);
+            putLong(header, 12, dataDescriptor ? 0L : entry.compressedSize);
+
+            this.out.write(header, 0, 20);
+            this.written += 20;
+        }
+    }
+
+    /**
+     * Writes the entries in front of all of the entries that were already written, and then finishes the zip file (like {@link
+     * #finish()}). This is how the manifest and signature files of a signed jar are first, even though they can only be created after
+     * everything else was digested.
+     * <p/>
+     * The entries that were already written are copied as-is from the file (they are not compressed or digested again), so the
+     * finished zip file is written to the output, instead of to the file.
+     *
+     * @param file the file that this writer was writing to. It is closed first.
+     * @param output where the finished zip file is written
+     * @param time the time of the new entries
+     */
+    void finish(final File file, final OutputStream output, final List<String> names, final List<byte[]> data, final long time)
+                    throws IOException {
+        if (this.finished) {
+            throw new ZipException("The zip file has already been finished");
+        }
+
+        closeEntry();
+        this.out.close();
+
+        final long length = this.written;
+        final List<Entry> entries = new ArrayList<Entry>(this.entries);
+
+        this.out = output;
+        this.written = 0L;
+        this.entries.clear();
+
+        for (int i = 0; i < names.size(); i++) {
+            writeEntry(names.get(i), time, data.get(i));
+        }
+
+        // everything that was already written is moved back, behind the new entries
+        final long offset = this.written;
+
+        InputStream input = new FileInputStream(file);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = input.read(this.streamBuffer, 0, (int) Math.min(this.streamBuffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of " + file);
+                }
+
+                this.out.write(this.streamBuffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            input.close();
+        }
+        this.written += length;
+
+        for (Entry entry : entries) {
+            this.entries.add(new Entry(entry, entry.offset + offset));
+        }
+
+        finish();
+    }
+
+    /**
+     * Finishes the current entry (if any) and writes the central directory. Nothing can be written afterwards.
+     */
+    public
+    void finish() throws IOException {
+        if (this.finished) {
+            return;
+        }
+
+        closeEntry();
+        this.finished = true;
+
+        final byte[] header = this.header;
+        final long centralDirectoryOffset = this.written;
+
+        for (Entry entry : this.entries) {
+            // only the values that don't fit are in the zip64 extra field (in this order)
+            boolean zip64Size = entry.size >= ZIP64_MAGIC;
+            boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+
+            int extraLength = 0;
+            if (zip64Size || zip64CompressedSize || zip64Offset) {
+                extraLength = 4 + (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+            }
+
+            int version = extraLength > 0 ? 45 : versionNeeded(entry);
+
+            putInt(header, 0, CENTRAL_HEADER_SIGNATURE);
+            putShort(header, 4, version);  // version made by
+            putShort(header, 6, version);  // version needed to extract
+            putShort(header, 8, entry.flags);
+            putShort(header, 10, entry.method);
+            putInt(header, 12, entry.dosTime);
+            putInt(header, 16, entry.crc);
+            putInt(header, 20, zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize);
+            putInt(header, 24, zip64Size ? ZIP64_MAGIC : entry.size);
+            putShort(header, 28, entry.name.length);
+            putShort(header, 30, extraLength);
+            putShort(header, 32, 0); // comment length
+            putShort(header, 34, 0); // disk number
+            putShort(header, 36, 0); // internal attributes
+            putInt(header, 38, 0);   // external attributes
+            putInt(header, 42, zip64Offset ? ZIP64_MAGIC : entry.offset);
+
+            this.out.write(header, 0, 46);
+            this.out.write(entry.name);
+            this.written += 46 + entry.name.length;
+
+            if (extraLength > 0) {
+                int position = 4;
+                putShort(header, 0, ZIP64_EXTRA);
+                putShort(header, 2, extraLength - 4);
+                if (zip64Size) {
+                    putLong(header, position, entry.size);
+                    position += 8;
+                }
+                if (zip64CompressedSize) {
+                    putLong(header, position, entry.compressedSize);
+                    position += 8;
+                }
+                if (zip64Offset) {
+                    putLong(header, position, entry.offset);
+                }
+
+                this.out.write(header, 0, extraLength);
+                this.written += extraLength;
+            }
+        }
+
+        final long centralDirectorySize = this.written - centralDirectoryOffset;
+        final int count = this.entries.size();
+
+        boolean zip64 = count >= ZIP64_MAGIC_COUNT || centralDirectorySize >= ZIP64_MAGIC || centralDirectoryOffset >= ZIP64_MAGIC;
+        if (zip64) {
+            final long zip64EndOffset = this.written;
+
+            putInt(header, 0, ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            putLong(header, 4, 44);     // size of the rest of this record
+            putShort(header, 12, 45);   // version made by
+            putShort(header, 14, 45);   // version needed to extract
+            putInt(header, 16, 0);      // this disk
+            putInt(header, 20, 0);      // disk with the central directory
+            putLong(header, 24, count); // entries on this disk
+            putLong(header, 32, count); // total entries
+            putLong(header, 40, centralDirectorySize);
+            putLong(header, 48, centralDirectoryOffset);
+
+            this.out.write(header, 0, 56);
+            this.written += 56;
+
+            putInt(header, 0, ZIP64_LOCATOR_SIGNATURE);
+            putInt(header, 4, 0);       // disk with the zip64 end of central directory
+            putLong(header, 8, zip64EndOffset);
+            putInt(header, 16, 1);      // total number of disks
+
+            this.out.write(header, 0, 20);
+            this.written += 20;
+        }
+
+        putInt(header, 0, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        putShort(header, 4, 0);  // this disk
+        putShort(header, 6, 0);  // disk with the central directory
+        putShort(header, 8, Math.min(count, ZIP64_MAGIC_COUNT));
+        putShort(header, 10, Math.min(count, ZIP64_MAGIC_COUNT));
+        putInt(header, 12, Math.min(centralDirectorySize, ZIP64_MAGIC));
+        putInt(header, 16, Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        putShort(header, 20, 0); // comment length
+
+        this.out.write(header, 0, 22);
+        this.written += 22;
+
+        this.out.flush();
+
+        if (this.deflater != null) {
+            this.deflater.end();
+        }
+        if (this.inflater != null) {
+            this.inflater.end();
+        }
+    }
+
+    @Override
+    public
+    void flush() throws IOException {
+        this.out.flush();
+    }
+
+    @Override
+    public
+    void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    private static
+    int versionNeeded(final Entry entry) {
+        if (entry.method == DEFLATED || (entry.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            return 20;
+        }
+        return 10;
+    }
+
+    private
+    void writeInt(final long value) throws IOException {
+        putInt(this.header, 0, value);
+        this.out.write(this.header, 0, 4);
+        this.written += 4;
+    }
+
+    private
+    void writeLong(final long value) throws IOException {
+        putLong(this.header, 0, value);
+        this.out.write(this.header, 0, 8);
+        this.written += 8;
+    }
+
+    static
+    void putShort(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    static
+    void putInt(final byte[] bytes, final int offset, final long value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    static
+    void putLong(final byte[] bytes, final int offset, final long value) {
+        putInt(bytes, offset, value);
+        putInt(bytes, offset + 4, value >>> 32);
+    }
+
+    /**
+     * Converts the time to MS-DOS date/time (in the default time zone), the same as {@link java.util.zip.ZipEntry#setTime(long)}.
+     * Times before 1980 cannot be represented, and are written as 1980-01-01.
+     */
+    static
+    int javaToDosTime(final long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return (year - 1980) << 25 |
+               (calendar.get(Calendar.MONTH) + 1) << 21 |
+               calendar.get(Calendar.DAY_OF_MONTH) << 16 |
+               calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+               calendar.get(Calendar.MINUTE) << 5 |
+               calendar.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -38,6 +38,7 @@ import java.util.zip.ZipOutputStream;
 import dorkbox.Build;
 import dorkbox.Builder;
 import dorkbox.build.Project;
+import dorkbox.build.util.jar.ZipWriter;
 import dorkbox.util.FileUtil;
 
 public
@@ -80,12 +81,10 @@ class License implements Comparable<License> {
         else if (object instanceof Project) {
             Project<?> proj = (Project<?>) object;
 
-            Set<Project<?>> deps = new HashSet<Project<?>>();
-            proj.getRecursiveDependencies(deps);
-
+            // the closure is already recursive, so only the licenses of each project are needed
             Set<License> lics = new HashSet<License>();
-            for (Project<?> project : deps) {
-                project.getRecursiveLicenses(lics);
+            for (Project<?> project : proj.getDependencyClosure()) {
+                lics.addAll(project.getLicenses());
             }
 
             List<License> list2 = convert(lics);
@@ -307,6 +306,36 @@ class License implements Comparable<License> {
         }
     }
 
+    /**
+     * Install the listed license files + full text licenses into the target zip file.
+     *
+     * @param date the timestamp the file will have when it's created
+     */
+    public static
+    void install(ZipWriter zipWriter, List<License> licenses, long date) throws IOException {
+        if (zipWriter == null) {
+            throw new IllegalArgumentException("zipWriter cannot be null.");
+        }
+        if (licenses == null || licenses.isEmpty()) {
+            throw new IllegalArgumentException("licenses cannot be null or empty");
+        }
+
+        if (date == -1) {
+            date = System.currentTimeMillis();
+        }
+
+        String licenseFile = License.buildString(licenses);
+
+        // WHAT IF LICENSE ALREADY EXISTS?!?!
+        zipWriter.writeEntry("LICENSE", date, licenseFile.getBytes(UTF_8));
+
+        // iterator is different every time...
+        List<LicenseWrapper> licenseWrappers = License.getActualLicensesAsBytes(licenses);
+        for (LicenseWrapper entry : licenseWrappers) {
+            zipWriter.writeEntry("LICENSE." + entry.license.getExtension(), date, entry.bytes);
+        }
+    }
+
     /**
      * @param licenses if NULL, then it returns ALL of the license types
      */
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+public
+class AesGcmStreamEncryptionTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    // version + chunk size + nonce prefix
+    private static final int HEADER_SIZE = 1 + 4 + 7;
+    private static final int TAG_SIZE = 16;
+
+    private final SecretKey key = key(1);
+    private final AesGcmStreamEncryption encryption = new AesGcmStreamEncryption(key, CHUNK_SIZE);
+
+    @Test
+    public
+    void roundTrip() throws IOException {
+        int[] sizes = new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 3, CHUNK_SIZE * 3 + 17};
+
+        for (int size : sizes) {
+            byte[] data = data(size);
+            byte[] encrypted = encrypt(data);
+
+            // every chunk has a tag, and there is always at least one chunk (which can be empty)
+            int chunks = Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            assertEquals("size " + size, HEADER_SIZE + size + chunks * TAG_SIZE, encrypted.length);
+            assertArrayEquals("size " + size, data, decrypt(encrypted));
+        }
+    }
+
+    @Test
+    public
+    void streamAndBufferAreTheSameFormat() throws IOException {
+        byte[] data = data(CHUNK_SIZE * 2 + 5);
+
+        ByteArrayOutputStream encrypted = encryption.encrypt(new ByteArrayInputStream(data), data.length);
+        assertArrayEquals(data, decrypt(encrypted.toByteArray()));
+    }
+
+    @Test
+    public
+    void writtenOneByteAtATime() throws IOException {
+        byte[] data = data(CHUNK_SIZE + 3);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        OutputStream encrypted = encryption.encrypt(outputStream);
+        for (byte b : data) {
+            encrypted.write(b);
+        }
+        encrypted.close();
+
+        assertArrayEquals(data, decrypt(outputStream.toByteArray()));
+    }
+
+    @Test
+    public
+    void sameDataIsEncryptedDifferently() throws IOException {
+        byte[] data = data(100);
+        assertNotEquals(encrypt(data), encrypt(data));
+    }
+
+    /**
+     * Dropping whole chunks from the end must fail, even when the stream still ends on a chunk boundary.
+     */
+    @Test
+    public
+    void truncationIsDetected() throws IOException {
+        byte[] data = data(CHUNK_SIZE * 3);
+        byte[] encrypted = encrypt(data);
+
+        int chunk = CHUNK_SIZE + TAG_SIZE;
+
+        assertEquals(HEADER_SIZE + 3 * chunk, encrypted.length);
+
+        // without the last chunk, the 2nd chunk is read as the last one
+        assertFails(Arrays.copyOf(encrypted, encrypted.length - chunk));
+        // without the last two chunks
+        assertFails(Arrays.copyOf(encrypted, encrypted.length - 2 * chunk));
+        // in the middle of a chunk, and in the tag
+        assertFails(Arrays.copyOf(encrypted, encrypted.length - 100));
+        assertFails(Arrays.copyOf(encrypted, encrypted.length - 1));
+        // only the header
+        assertFails(Arrays.copyOf(encrypted, HEADER_SIZE));
+    }
+
+    @Test
+    public
+    void changesAreDetected() throws IOException {
+        byte[] data = data(CHUNK_SIZE * 2 + 10);
+        byte[] encrypted = encrypt(data);
+
+        for (int position : new int[] {HEADER_SIZE - 1, HEADER_SIZE, HEADER_SIZE + CHUNK_SIZE + 3, encrypted.length - 1}) {
+            byte[] changed = encrypted.clone();
+            changed[position] ^= 1;
+            assertFails(changed);
+        }
+    }
+
+    @Test
+    public
+    void invalidChunkSizeIsDetected() throws IOException {
+        byte[] encrypted = encrypt(data(100));
+
+        for (int size : new int[] {0, -1, AesGcmStreamEncryption.MAX_CHUNK_SIZE + 1, Integer.MAX_VALUE}) {
+            byte[] changed = encrypted.clone();
+            changed[1] = (byte) (size >>> 24);
+            changed[2] = (byte) (size >>> 16);
+            changed[3] = (byte) (size >>> 8);
+            changed[4] = (byte) size;
+            assertFails(changed);
+        }
+    }
+
+    @Test
+    public
+    void reorderedChunksAreDetected() throws IOException {
+        byte[] data = data(CHUNK_SIZE * 3);
+        byte[] encrypted = encrypt(data);
+
+        int chunk = CHUNK_SIZE + TAG_SIZE;
+        byte[] reordered = encrypted.clone();
+        System.arraycopy(encrypted, HEADER_SIZE, reordered, HEADER_SIZE + chunk, chunk);
+        System.arraycopy(encrypted, HEADER_SIZE + chunk, reordered, HEADER_SIZE, chunk);
+
+        assertFails(reordered);
+    }
+
+    @Test
+    public
+    void wrongKeyIsDetected() throws IOException {
+        byte[] encrypted = encrypt(data(100));
+
+        try {
+            read(new AesGcmStreamEncryption(key(2), CHUNK_SIZE).decrypt(new ByteArrayInputStream(encrypted)));
+            fail("The data was decrypted with the wrong key");
+        } catch (IOException expected) {
+        }
+    }
+
+    private
+    byte[] encrypt(final byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        OutputStream encrypted = encryption.encrypt(outputStream);
+        encrypted.write(data);
+        encrypted.close();
+        return outputStream.toByteArray();
+    }
+
+    private
+    byte[] decrypt(final byte[] encrypted) throws IOException {
+        return read(encryption.decrypt(new ByteArrayInputStream(encrypted)));
+    }
+
+    private
+    void assertFails(final byte[] encrypted) {
+        try {
+            decrypt(encrypted);
+            fail("The changed data was decrypted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static
+    void assertNotEquals(final byte[] a, final byte[] b) {
+        if (Arrays.equals(a, b)) {
+            fail("The data was encrypted the same way twice");
+        }
+    }
+
+    private static
+    SecretKey key(final int seed) {
+        byte[] bytes = new byte[16];
+        new Random(seed).nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    private static
+    byte[] data(final int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static
+    byte[] read(final InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dorkbox.build.util.wildcard.Paths;
+
+/**
+ * A jar that is built incrementally (from the previous version of the jar) must be exactly the same as a jar that is built from scratch.
+ */
+public
+class IncrementalJarTest {
+    private static final long TIME = 1483228800000L; // 2017-01-01
+
+    private File dir;
+    private File jar;
+    private File fullJar;
+
+    @Before
+    public
+    void setUp() throws IOException {
+        dir = File.createTempFile("incrementalJar", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        jar = new File(dir.getParentFile(), dir.getName() + ".jar");
+        fullJar = new File(dir.getParentFile(), dir.getName() + "-full.jar");
+
+        Random random = new Random(1);
+
+        write("a/text.txt", "some text, some text, some text".getBytes());
+        write("a/empty.txt", new byte[0]);
+
+        byte[] bytes = new byte[100000];
+        random.nextBytes(bytes);
+        write("a/random.bin", bytes);
+
+        // larger than LARGE_ENTRY_SIZE, so they are streamed into the jar. This one compresses very well (the compressed data is small)
+        byte[] large = new byte[(int) ZipWriter.LARGE_ENTRY_SIZE + 1000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 7);
+        }
+        write("large.bin", large);
+
+        // and this one doesn't (the compressed data is also larger than LARGE_ENTRY_SIZE)
+        random.nextBytes(large);
+        write("largeRandom.bin", large);
+    }
+
+    @After
+    public
+    void tearDown() {
+        delete(dir);
+        delete(jar);
+        delete(fullJar);
+    }
+
+    @Test
+    public
+    void unchanged() throws IOException {
+        JarUtil.jar(options(jar, false));
+        byte[] full = Files.readAllBytes(jar.toPath());
+
+        JarUtil.jar(options(jar, true));
+        assertArrayEquals(full, Files.readAllBytes(jar.toPath()));
+    }
+
+    @Test
+    public
+    void unchangedInParallel() throws IOException {
+        JarUtil.jar(options(jar, false));
+        byte[] full = Files.readAllBytes(jar.toPath());
+
+        JarOptions options = options(jar, true);
+        options.parallelCompression = true;
+        JarUtil.jar(options);
+        assertArrayEquals(full, Files.readAllBytes(jar.toPath()));
+    }
+
+    @Test
+    public
+    void changed() throws IOException {
+        JarUtil.jar(options(jar, false));
+
+        write("a/text.txt", "other text".getBytes());
+        write("a/new.txt", "a new file".getBytes());
+        assertTrue(new File(dir, "a/random.bin").delete());
+
+        JarUtil.jar(options(jar, true));
+        JarUtil.jar(options(fullJar, false));
+
+        assertArrayEquals(Files.readAllBytes(fullJar.toPath()), Files.readAllBytes(jar.toPath()));
+    }
+
+    private
+    JarOptions options(final File outputFile, final boolean incremental) {
+        JarOptions options = new JarOptions();
+        options.outputFile = outputFile;
+        options.inputPaths = new Paths(dir.getAbsolutePath());
+        options.overrideDate = TIME;
+        options.incremental = incremental;
+        return options;
+    }
+
+    private
+    void write(final String name, final byte[] bytes) throws IOException {
+        File file = new File(dir, name);
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create " + file.getParentFile());
+        }
+
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static
+    void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
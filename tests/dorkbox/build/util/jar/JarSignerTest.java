@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dorkbox.build.util.wildcard.Paths;
+
+/**
+ * Creates signed jars, and verifies them with java.util.jar.JarFile (the same way the JVM verifies a jar).
+ */
+public
+class JarSignerTest {
+    private static final long TIME = 1483228800000L; // 2017-01-01
+
+    private File dir;
+    private File jar;
+
+    // entry name -> contents
+    private final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+
+    @Before
+    public
+    void setUp() throws IOException {
+        dir = File.createTempFile("jarSigner", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        jar = new File(dir.getParentFile(), dir.getName() + ".jar");
+
+        Random random = new Random(1);
+
+        byte[] text = new byte[10000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(4));
+        }
+        files.put("a/text.txt", text);
+        files.put("a/b/empty.txt", new byte[0]);
+
+        byte[] bytes = new byte[100000];
+        random.nextBytes(bytes);
+        files.put("a/b/random.bin", bytes);
+
+        // this is streamed into the jar
+        byte[] large = new byte[(int) ZipWriter.LARGE_ENTRY_SIZE + 1000];
+        random.nextBytes(large);
+        files.put("large.bin", large);
+
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            File file = new File(dir, entry.getKey());
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Unable to create " + file.getParentFile());
+            }
+
+            OutputStream outputStream = new FileOutputStream(file);
+            try {
+                outputStream.write(entry.getValue());
+            } finally {
+                outputStream.close();
+            }
+        }
+    }
+
+    @After
+    public
+    void tearDown() {
+        delete(dir);
+        delete(jar);
+    }
+
+    @Test
+    public
+    void signedWhileWritten() throws IOException {
+        JarOptions options = options();
+        options.signatureName = "test";
+        JarUtil.jar(options);
+
+        verify(jar, "TEST");
+    }
+
+    @Test
+    public
+    void signedWhileWrittenInParallel() throws IOException {
+        JarOptions options = options();
+        options.parallelCompression = true;
+        options.signatureName = "test";
+        JarUtil.jar(options);
+
+        verify(jar, "TEST");
+    }
+
+    @Test
+    public
+    void signedAfterWritten() throws IOException {
+        JarUtil.jar(options());
+        JarSigner.sign(jar.getAbsolutePath(), "test");
+
+        verify(jar, "TEST");
+    }
+
+    /**
+     * An entry that was changed after the jar was signed must fail verification.
+     */
+    @Test
+    public
+    void changedEntryFails() throws IOException {
+        JarOptions options = options();
+        options.signatureName = "test";
+        JarUtil.jar(options);
+
+        File changed = new File(jar.getAbsolutePath() + ".changed");
+        try {
+            ZipReader reader = new ZipReader(jar);
+            try {
+                ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(changed)));
+                for (ZipReader.Entry entry : reader.getEntries()) {
+                    if (entry.name.equals("a/text.txt")) {
+                        writer.writeEntry(entry.name, TIME, "changed".getBytes());
+                    }
+                    else {
+                        writer.copyEntry(entry.name, entry.dosTime, reader, entry);
+                    }
+                }
+                writer.close();
+            } finally {
+                reader.close();
+            }
+
+            JarFile jarFile = new JarFile(changed, true);
+            try {
+                read(jarFile.getInputStream(jarFile.getJarEntry("a/text.txt")));
+                fail("The changed entry was verified");
+            } catch (SecurityException expected) {
+            } finally {
+                jarFile.close();
+            }
+        } finally {
+            delete(changed);
+        }
+    }
+
+    private
+    JarOptions options() {
+        JarOptions options = new JarOptions();
+        options.outputFile = jar;
+        options.inputPaths = new Paths(dir.getAbsolutePath());
+        options.overrideDate = TIME;
+        return options;
+    }
+
+    private
+    void verify(final File file, final String alias) throws IOException {
+        // the manifest must be first (or directly after the META-INF/ directory), or JarInputStream does not find it
+        JarInputStream jarInputStream = new JarInputStream(new FileInputStream(file), true);
+        try {
+            assertNotNull("The manifest must be the first entry", jarInputStream.getManifest());
+        } finally {
+            jarInputStream.close();
+        }
+
+        JarFile jarFile = new JarFile(file, true);
+        try {
+            assertNotNull(jarFile.getJarEntry("META-INF/" + alias + ".SF"));
+            assertNotNull(jarFile.getJarEntry("META-INF/" + alias + ".DSA"));
+
+            int signed = 0;
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+
+                // the entry has to be read completely before it is verified (a SecurityException is thrown if it doesn't match)
+                byte[] bytes = read(jarFile.getInputStream(entry));
+
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+
+                assertNotNull(entry.getName() + " is not signed", entry.getCodeSigners());
+                assertArrayEquals(entry.getName(), files.get(entry.getName()), bytes);
+                signed++;
+            }
+
+            assertEquals(files.size(), signed);
+            assertTrue(jarFile.getManifest().getEntries().keySet().containsAll(files.keySet()));
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static
+    byte[] read(final InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, read);
+        }
+        inputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    private static
+    void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2017 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.build.util.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dorkbox.util.Base64Fast;
+
+/**
+ * Writes zip files with the ZipWriter, and reads them back with java.util.zip (and the ZipReader).
+ */
+public
+class ZipWriterTest {
+    private static final long TIME = 1483228800000L; // 2017-01-01
+
+    private final List<File> files = new ArrayList<File>();
+
+    private byte[] random;
+    private byte[] large;
+
+    @Before
+    public
+    void setUp() {
+        random = new byte[100000];
+        new Random(1).nextBytes(random);
+        // half of it compresses well
+        Arrays.fill(random, 0, 50000, (byte) 7);
+
+        large = new byte[(int) ZipWriter.LARGE_ENTRY_SIZE + 12345];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 251);
+        }
+    }
+
+    @After
+    public
+    void tearDown() {
+        for (File file : files) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    public
+    void roundTrip() throws IOException {
+        File file = tempFile(".zip");
+
+        ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(file)));
+        writer.writeDirectory("a/", TIME);
+        writer.writeEntry("a/random.bin", TIME, random);
+        writer.writeEntry("a/stored.txt", TIME, CompressedEntry.store("hello".getBytes()));
+        writer.writeEntry("a/empty.txt", TIME, new byte[0]);
+        writer.streamEntry("a/streamed.bin", ZipWriter.javaToDosTime(TIME), 6, 0L, large.length, new ByteArrayInputStream(large));
+        writer.streamEntry("a/streamedStored.bin", ZipWriter.javaToDosTime(TIME), CompressionPolicy.STORED, crc(large), large.length,
+                           new ByteArrayInputStream(large));
+        writer.putNextEntry("a/unknownSize.bin", TIME);
+        writer.write(random);
+        writer.closeEntry();
+        writer.close();
+
+        Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+        expected.put("a/", new byte[0]);
+        expected.put("a/random.bin", random);
+        expected.put("a/stored.txt", "hello".getBytes());
+        expected.put("a/empty.txt", new byte[0]);
+        expected.put("a/streamed.bin", large);
+        expected.put("a/streamedStored.bin", large);
+        expected.put("a/unknownSize.bin", random);
+
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            assertEquals(expected.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+                assertNotNull(entry.getKey(), zipEntry);
+                assertEquals(entry.getKey(), entry.getValue().length, zipEntry.getSize());
+                assertEquals(entry.getKey(), crc(entry.getValue()), zipEntry.getCrc());
+                assertArrayEquals(entry.getKey(), entry.getValue(), read(zipFile.getInputStream(zipEntry)));
+            }
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("a/stored.txt").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("a/streamedStored.bin").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("a/streamed.bin").getMethod());
+        } finally {
+            zipFile.close();
+        }
+
+        // the entries are in the order they were written, and the local headers (and data descriptors) match the central directory
+        ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            List<String> names = new ArrayList<String>();
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                names.add(zipEntry.getName());
+                assertArrayEquals(zipEntry.getName(), expected.get(zipEntry.getName()), read(zipInputStream));
+            }
+            assertEquals(new ArrayList<String>(expected.keySet()), names);
+        } finally {
+            zipInputStream.close();
+        }
+
+        ZipReader reader = new ZipReader(file);
+        try {
+            assertEquals(expected.size(), reader.size());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                ZipReader.Entry zipEntry = reader.getEntry(entry.getKey());
+                assertNotNull(entry.getKey(), zipEntry);
+                assertArrayEquals(entry.getKey(), entry.getValue(), read(reader.getInputStream(zipEntry)));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public
+    void copiedEntriesAreTheSame() throws IOException {
+        File file = tempFile(".zip");
+
+        ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(file)));
+        writer.writeEntry("random.bin", TIME, random);
+        writer.streamEntry("streamed.bin", ZipWriter.javaToDosTime(TIME), 6, 0L, large.length, new ByteArrayInputStream(large));
+        writer.close();
+
+        File copy = tempFile(".zip");
+
+        ZipReader reader = new ZipReader(file);
+        try {
+            writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(copy)));
+            for (ZipReader.Entry entry : reader.getEntries()) {
+                writer.copyEntry(entry.name, entry.dosTime, reader, entry);
+            }
+            writer.close();
+        } finally {
+            reader.close();
+        }
+
+        ZipFile zipFile = new ZipFile(copy);
+        try {
+            assertArrayEquals(random, read(zipFile.getInputStream(zipFile.getEntry("random.bin"))));
+            assertArrayEquals(large, read(zipFile.getInputStream(zipFile.getEntry("streamed.bin"))));
+        } finally {
+            zipFile.close();
+        }
+
+        // the streamed entry is copied with it's data descriptor, so the copy is exactly the same
+        assertArrayEquals(read(new FileInputStream(file)), read(new FileInputStream(copy)));
+    }
+
+    @Test
+    public
+    void digestsMatchTheEntries() throws Exception {
+        File body = tempFile(".zip");
+        File jar = tempFile(".jar");
+
+        ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(body)));
+        writer.setDigest("SHA-256");
+
+        CompressedEntry deflated = CompressedEntry.deflate(random, 0, random.length, 6);
+
+        writer.writeDirectory("a/", TIME);
+        writer.writeEntry("a/random.bin", TIME, random);
+        writer.writeEntry("a/stored.txt", TIME, CompressedEntry.store("hello".getBytes()));
+        // no digest was computed with the compressed data, so the writer has to inflate it
+        writer.writeEntry("a/deflated.bin", TIME, deflated);
+        writer.streamEntry("a/streamed.bin", ZipWriter.javaToDosTime(TIME), 6, 0L, large.length, new ByteArrayInputStream(large));
+        writer.copyEntry("a/copied.bin", ZipWriter.javaToDosTime(TIME), ZipWriter.DEFLATED, deflated.crc, deflated.size,
+                         deflated.compressedSize, new ByteArrayInputStream(deflated.getBytes()));
+        writer.writeEntry("META-INF/other.txt", TIME, "other".getBytes());
+
+        Map<String, String> digests = new LinkedHashMap<String, String>(writer.getDigests());
+        assertEquals(Arrays.asList("a/random.bin", "a/stored.txt", "a/deflated.bin", "a/streamed.bin", "a/copied.bin"),
+                     new ArrayList<String>(digests.keySet()));
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes()
+                .put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            Attributes attributes = new Attributes();
+            attributes.putValue("SHA-256-Digest", entry.getValue());
+            manifest.getEntries()
+                    .put(entry.getKey(), attributes);
+        }
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+
+        // the manifest is written in front of the entries that were already written
+        writer.finish(body, new BufferedOutputStream(new FileOutputStream(jar)), Arrays.asList(JarFile.MANIFEST_NAME),
+                      Arrays.asList(manifestBytes.toByteArray()), TIME);
+        writer.close();
+
+        JarInputStream jarInputStream = new JarInputStream(new FileInputStream(jar));
+        try {
+            assertNotNull("The manifest must be the first entry", jarInputStream.getManifest());
+
+            List<String> names = new ArrayList<String>();
+            JarEntry entry;
+            while ((entry = jarInputStream.getNextJarEntry()) != null) {
+                names.add(entry.getName());
+            }
+            assertEquals(Arrays.asList("a/", "a/random.bin", "a/stored.txt", "a/deflated.bin", "a/streamed.bin", "a/copied.bin",
+                                       "META-INF/other.txt"), names);
+        } finally {
+            jarInputStream.close();
+        }
+
+        JarFile jarFile = new JarFile(jar);
+        try {
+            Manifest read = jarFile.getManifest();
+            for (Map.Entry<String, String> entry : digests.entrySet()) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(read(jarFile.getInputStream(jarFile.getEntry(entry.getKey()))));
+
+                String expected = Base64Fast.encodeToString(digest.digest(), false);
+                assertEquals(entry.getKey(), expected, read.getAttributes(entry.getKey())
+                                                           .getValue("SHA-256-Digest"));
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @Test
+    public
+    void duplicateEntriesAreNotAllowed() throws IOException {
+        ZipWriter writer = new ZipWriter(new NullOutputStream());
+        writer.writeEntry("a.txt", TIME, "a".getBytes());
+
+        try {
+            writer.writeEntry("a.txt", TIME, "b".getBytes());
+            fail("The entry was written twice");
+        } catch (ZipException expected) {
+        }
+    }
+
+    /**
+     * An entry that is larger than 4GB, and is streamed (so the sizes are only known at the end). It needs the zip64 extra field in the
+     * local header, and an 8 byte data descriptor.
+     */
+    @Test
+    public
+    void largerThan4GB() throws IOException {
+        final long size = ZipWriter.ZIP64_MAGIC + 1L + 12345L;
+
+        File file = tempFile(".zip");
+
+        ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(file)));
+        writer.setLevel(1);
+        writer.writeEntry("first.txt", TIME, "first".getBytes());
+        writer.streamEntry("large.bin", ZipWriter.javaToDosTime(TIME), 1, 0L, size, new ZeroInputStream(size));
+        writer.putNextEntry("last.txt", TIME);
+        writer.write("last".getBytes());
+        writer.closeEntry();
+        writer.close();
+
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            assertEquals(3, zipFile.size());
+            assertEquals(size, zipFile.getEntry("large.bin").getSize());
+            assertEquals(size, count(zipFile.getInputStream(zipFile.getEntry("large.bin"))));
+            assertArrayEquals("first".getBytes(), read(zipFile.getInputStream(zipFile.getEntry("first.txt"))));
+            assertArrayEquals("last".getBytes(), read(zipFile.getInputStream(zipFile.getEntry("last.txt"))));
+        } finally {
+            zipFile.close();
+        }
+
+        ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            assertEquals("first.txt", zipInputStream.getNextEntry().getName());
+            assertArrayEquals("first".getBytes(), read(zipInputStream));
+
+            assertEquals("large.bin", zipInputStream.getNextEntry().getName());
+            assertEquals(size, count(zipInputStream));
+
+            // the data descriptor of the large entry must be read correctly, or the next entry is not found
+            assertEquals("last.txt", zipInputStream.getNextEntry().getName());
+            assertArrayEquals("last".getBytes(), read(zipInputStream));
+
+            assertNull(zipInputStream.getNextEntry());
+        } finally {
+            zipInputStream.close();
+        }
+
+        ZipReader reader = new ZipReader(file);
+        try {
+            assertEquals(size, reader.getEntry("large.bin").getSize());
+            assertArrayEquals("last".getBytes(), read(reader.getInputStream(reader.getEntry("last.txt"))));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Without the size, the local header cannot have the zip64 extra field, so the entry cannot be larger than 4GB.
+     */
+    @Test
+    public
+    void unknownSizeIsLimitedTo4GB() throws IOException {
+        ZipWriter writer = new ZipWriter(new NullOutputStream());
+        writer.setLevel(1);
+        writer.putNextEntry("large.bin", TIME);
+
+        byte[] zeros = new byte[1024 * 1024];
+        try {
+            for (long written = 0; written <= ZipWriter.ZIP64_MAGIC; written += zeros.length) {
+                writer.write(zeros, 0, zeros.length);
+            }
+            writer.closeEntry();
+            fail("An entry without a size was larger than 4GB");
+        } catch (ZipException expected) {
+        }
+    }
+
+    private
+    File tempFile(final String suffix) throws IOException {
+        File file = File.createTempFile("zipWriter", suffix);
+        files.add(file);
+        return file;
+    }
+
+    private static
+    long crc(final byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static
+    byte[] read(final InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static
+    long count(final InputStream inputStream) throws IOException {
+        long count = 0L;
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            count += read;
+        }
+        return count;
+    }
+
+
+    private static
+    class ZeroInputStream extends InputStream {
+        private long remaining;
+
+        ZeroInputStream(final long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public
+        int read() {
+            return remaining-- > 0 ? 0 : -1;
+        }
+
+        @Override
+        public
+        int read(final byte[] bytes, final int offset, final int length) {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = (int) Math.min(length, remaining);
+            Arrays.fill(bytes, offset, offset + read, (byte) 0);
+            remaining -= read;
+            return read;
+        }
+    }
+
+
+    private static
+    class NullOutputStream extends OutputStream {
+        @Override
+        public
+        void write(final int b) {
+        }
+
+        @Override
+        public
+        void write(final byte[] bytes, final int offset, final int length) {
+        }
+    }
+}